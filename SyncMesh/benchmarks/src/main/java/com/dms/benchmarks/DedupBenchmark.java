@@ -0,0 +1,70 @@
+package com.dms.benchmarks;
+
+import com.dms.server.dedup.DedupIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DedupIndex#markSeen} for ids seen for the first time (the common case, which also ages
+ * the window and the Bloom filters) and for recent duplicates, with one and four threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupBenchmark {
+    @Param({"262144"})
+    int maxEntries;
+
+    private DedupIndex index;
+    private String[] recent;
+
+    @Setup
+    public void setUp() {
+        // nothing is ever in the store, so Bloom false positives are answered "not seen"
+        index = new DedupIndex(id -> false, maxEntries, 600_000, 4, 2_000_000, 0.001);
+        recent = new String[1024];
+        for (int i = 0; i < recent.length; i++) {
+            recent[i] = UUID.randomUUID().toString();
+            index.markSeen(recent[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean fresh() {
+        return index.markSeen(UUID.randomUUID().toString());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean freshContended() {
+        return fresh();
+    }
+
+    @Benchmark
+    public boolean duplicate() {
+        return index.markSeen(recent[ThreadLocalRandom.current().nextInt(recent.length)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean duplicateContended() {
+        return duplicate();
+    }
+}
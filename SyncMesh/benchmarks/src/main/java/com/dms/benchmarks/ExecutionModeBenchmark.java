@@ -0,0 +1,131 @@
+package com.dms.benchmarks;
+
+import com.dms.server.ServerApplication;
+import com.dms.server.execution.VirtualThreads;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end client sends against a two-node cluster running in this JVM, with request handling and
+ * replication fan-out on platform threads ({@code threads=platform}) or on virtual threads
+ * ({@code threads=virtual}, needs Java 21). Many more callers than Tomcat has platform threads keep
+ * the node saturated, and {@code syncWrites=true} makes every send wait for its group fsync, which is
+ * where parked request threads cost the most. Admission control is off so overload shows up as
+ * latency rather than 429s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(256)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ExecutionModeBenchmark {
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"false", "true"})
+    public boolean syncWrites;
+
+    private TestingServer zk;
+    private Path dataDir;
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+    private HttpClient http;
+    private URI send;
+    private final AtomicLong seq = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        boolean virtual = "virtual".equals(threads);
+        if (virtual && !VirtualThreads.available()) {
+            throw new IllegalStateException("threads=virtual needs Java 21, running on " + System.getProperty("java.version"));
+        }
+        zk = new TestingServer(true);
+        dataDir = Files.createTempDirectory("syncmesh-bench");
+        List<Integer> ports = List.of(freePort(), freePort());
+        for (int port : ports) {
+            nodes.add(new SpringApplicationBuilder(ServerApplication.class).run(
+                    "--server.port=" + port,
+                    "--node.id=server-" + port,
+                    "--zookeeper.connect=" + zk.getConnectString(),
+                    "--storage.dir=" + dataDir.resolve("server-" + port),
+                    "--storage.sync-writes=" + syncWrites,
+                    "--threads.virtual.enabled=" + virtual,
+                    "--admission.enabled=false"));
+        }
+        // HTTP/1.1 so each caller gets its own connection; h2c would multiplex them onto one and cap the streams
+        http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(2)).build();
+        send = URI.create("http://localhost:" + ports.get(0) + "/api/messages/send");
+        awaitPeer("http://localhost:" + ports.get(0), ports.get(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (ConfigurableApplicationContext node : nodes) node.close();
+        nodes.clear();
+        zk.close();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int broadcast() throws Exception {
+        String body = "{\"sender\":\"bench\",\"receiver\":\"BROADCAST\",\"content\":\"m" + seq.incrementAndGet() + "\"}";
+        HttpResponse<Void> resp = http.send(HttpRequest.newBuilder(send)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.discarding());
+        if (resp.statusCode() != 200) throw new IllegalStateException("send answered " + resp.statusCode());
+        return resp.statusCode();
+    }
+
+    // the first node must be replicating to the second before sends are measured
+    private void awaitPeer(String base, int peerPort) throws Exception {
+        URI replicas = URI.create(base + "/admin/replicas");
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            String body = http.send(HttpRequest.newBuilder(replicas).GET().build(), HttpResponse.BodyHandlers.ofString()).body();
+            if (body.contains(":" + peerPort)) return;
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("nodes did not see each other");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.dms.benchmarks;
+
+import com.dms.common.model.Message;
+import com.dms.server.causal.CausalBuffer;
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.order.TotalOrderService;
+import com.dms.server.partition.PartitionManager;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.service.MessageService;
+import com.dms.server.service.ReplicationService;
+import com.dms.server.storage.MessageLog;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client write path ({@link MessageService#handleMessage}) and the replica path
+ * ({@link MessageService#acceptReplica}) wired by hand around a {@link StubConnector}, with an
+ * in-memory store. Unicasts go to a stub peer whose outbox is never attached, so they measure
+ * everything up to handing the message to replication; broadcasts have no peers to fan out to.
+ * Standard output is discarded while measuring: the service logs every message, and the console
+ * would otherwise dominate the numbers and flood the JMH output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MessageServiceBenchmark {
+    private static final String SELF = "server-bench";
+    private static final String PEER = "server-peer";
+
+    private PrintStream stdout;
+    private MessageLog log;
+    private CausalBuffer causal;
+    private PartitionManager partitions;
+    private ReplicationService replication;
+    private MessageService service;
+    private final AtomicLong peerLamport = new AtomicLong();
+
+    // a fresh node per iteration, so the store does not keep growing across the run
+    @Setup(Level.Iteration)
+    public void setUp() {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        StubConnector connector = new StubConnector(SELF, PEER);
+        log = MessageLog.inMemory();
+        MeterRegistry meters = new SimpleMeterRegistry();
+        MessageRepository repo = new MessageRepository(log);
+        DedupIndex seen = new DedupIndex(repo, 262_144, 600_000, 4, 2_000_000, 0.001);
+        causal = new CausalBuffer(repo, connector, true, 10_000, 5_000);
+        partitions = new PartitionManager(connector, 16, 2, 128);
+        replication = new ReplicationService(connector, log, repo, partitions, 1000, 3000, 4, 10_000, 2, 262_144, 4,
+                64L * 1024 * 1024, "binary", 10_000, 1024, 100, 30_000, false, meters);
+        TotalOrderService order = new TotalOrderService(repo, replication, connector, seen, false, 256, 4, 3, 200, 5000);
+        service = new MessageService(repo, replication, connector, seen, causal, partitions, order, 1000, meters);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        replication.cleanup();
+        causal.stop();
+        partitions.stop();
+        log.close();
+        System.setOut(stdout);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Client {
+        @Param({"BROADCAST", PEER})
+        String receiver;
+    }
+
+    @Benchmark
+    public Message handleMessage(Client client) throws Exception {
+        return service.handleMessage(new Message("client", client.receiver, "benchmark payload of a typical size"));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Message handleMessageContended(Client client) throws Exception {
+        return handleMessage(client);
+    }
+
+    // a unicast from the peer to this node; its empty clock has no dependencies to wait for
+    @Benchmark
+    public Message acceptReplica() {
+        Message m = new Message("server-peer", SELF, "benchmark payload of a typical size");
+        m.setOriginNodeId(PEER);
+        m.setLamport(peerLamport.incrementAndGet());
+        return service.acceptReplica(m);
+    }
+}
@@ -0,0 +1,132 @@
+package com.dms.benchmarks;
+
+import com.dms.common.model.Message;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.storage.MessageLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * {@link MessageRepository#upsertByIdWithLamport} on a store preloaded with {@code storeSize}
+ * messages, held in memory or backed by the segmented log. {@code insert} stores new ids;
+ * {@code update} replaces a random existing id with a newer version, so the store size stays put.
+ * The contended variants run four writers. The store is rebuilt for every iteration so inserts
+ * do not keep growing it; {@code newMessage} is the cost of building the message alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RepositoryBenchmark {
+    @Param({"1000", "100000"})
+    int storeSize;
+
+    @Param({"memory", "log"})
+    String storage;
+
+    private Path dir;
+    private MessageLog log;
+    private MessageRepository repo;
+    private String[] ids;
+    private final AtomicLong lamport = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        if ("log".equals(storage)) {
+            dir = Files.createTempDirectory("syncmesh-bench-repo");
+            log = new MessageLog(true, dir.toString(), 64L * 1024 * 1024, 3_600_000, 10, false, 1000, 4096);
+        } else {
+            log = MessageLog.inMemory();
+        }
+        repo = new MessageRepository(log, 100_000);
+        // what Spring would call after construction; it opens the log for writing
+        repo.recover();
+        ids = new String[storeSize];
+        List<Message> chunk = new ArrayList<>(1000);
+        for (int i = 0; i < storeSize; i++) {
+            Message m = message("server-8082");
+            m.setLamport(lamport.incrementAndGet());
+            ids[i] = m.getId();
+            chunk.add(m);
+            if (chunk.size() == 1000) {
+                repo.upsertAll(chunk);
+                chunk.clear();
+            }
+        }
+        repo.upsertAll(chunk);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        log.close();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+            dir = null;
+        }
+    }
+
+    static Message message(String receiver) {
+        Message m = new Message("server-8081", receiver, "benchmark payload of a typical size, a sentence or two of text");
+        m.setOriginNodeId("server-8081");
+        return m;
+    }
+
+    @Benchmark
+    public Message newMessage() {
+        return message("server-8082");
+    }
+
+    @Benchmark
+    public void insert() {
+        Message m = message("server-8082");
+        m.setLamport(lamport.incrementAndGet());
+        repo.upsertByIdWithLamport(m);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void insertContended() {
+        insert();
+    }
+
+    @Benchmark
+    public void update() {
+        Message m = message("server-8082");
+        m.setId(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+        m.setLamport(lamport.incrementAndGet());
+        repo.upsertByIdWithLamport(m);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void updateContended() {
+        update();
+    }
+}
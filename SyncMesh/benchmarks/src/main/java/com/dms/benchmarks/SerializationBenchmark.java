@@ -0,0 +1,78 @@
+package com.dms.benchmarks;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeSlots;
+import com.dms.common.model.VectorClock;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Message} with a vector clock of {@code clockEntries} nodes through the Jackson mapper
+ * the server uses for JSON replication and forwarding, next to the binary {@link MessageCodec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "16", "256"})
+    int clockEntries;
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    private Message message;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = new Message("server-8081", "BROADCAST", "benchmark payload of a typical size, a sentence or two of text");
+        message.setOriginNodeId("server-8081");
+        message.setLamport(123_456);
+        VectorClock clock = new VectorClock();
+        for (int i = 0; i < clockEntries; i++) {
+            String node = "server-" + (8081 + i);
+            NodeSlots.register(node);
+            clock.set(node, 1000 + i);
+        }
+        message.setVectorClock(clock);
+        json = mapper.writeValueAsBytes(message);
+        binary = MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] jacksonWrite() throws IOException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public Message jacksonRead() throws IOException {
+        return mapper.readValue(json, Message.class);
+    }
+
+    @Benchmark
+    public byte[] codecWrite() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message codecRead() {
+        return MessageCodec.decode(binary);
+    }
+}
@@ -0,0 +1,38 @@
+package com.dms.benchmarks;
+
+import com.dms.common.model.NodeInfo;
+import com.dms.common.model.NodeSlots;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Connector with a fixed membership that never talks to ZooKeeper; this node is the leader. */
+class StubConnector extends ZooKeeperConnector {
+    private final String self;
+    private final Map<String, NodeInfo> members = new LinkedHashMap<>();
+
+    StubConnector(String self, String... peers) {
+        this.self = self;
+        int port = 18081;
+        members.put(self, new NodeInfo(self, "localhost", port++));
+        for (String peer : peers) members.put(peer, new NodeInfo(peer, "localhost", port++));
+        // what ZooKeeper membership would do: members get vector clock slots
+        members.keySet().forEach(NodeSlots::register);
+    }
+
+    @Override
+    public String getNodeId() { return self; }
+
+    @Override
+    public String getLeaderId() { return self; }
+
+    @Override
+    public boolean isLeader() { return true; }
+
+    @Override
+    public NodeInfo getMember(String id) { return members.get(id); }
+
+    @Override
+    public Map<String, NodeInfo> getMembers() { return new LinkedHashMap<>(members); }
+}
@@ -5,26 +5,65 @@ import com.dms.client.discovery.ZooKeeperDiscovery;
 import com.dms.common.constants.Config;
 import com.dms.common.model.Message;
 import org.apache.zookeeper.ZooKeeper;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 @Component
 public class CliRunner implements CommandLineRunner {
     private final MessageSender sender;
     private final ZooKeeperDiscovery discovery;
+    private final String zkConnect;
 
-    public CliRunner(MessageSender sender, ZooKeeperDiscovery discovery) {
-        this.sender = sender; this.discovery = discovery;
+    public CliRunner(MessageSender sender, ZooKeeperDiscovery discovery,
+                     @Value("${zookeeper.connect:" + Config.ZK_CONNECT + "}") String zkConnect) {
+        this.sender = sender; this.discovery = discovery; this.zkConnect = zkConnect;
     }
 
     @Override
     public void run(String... args) throws Exception {
-        ZooKeeper zk = new ZooKeeper(Config.ZK_CONNECT, 3000, event -> {});
+        ZooKeeper zk = new ZooKeeper(zkConnect, 3000, event -> {});
         String base = discovery.discoverOne(zk);
         if (base == null) { System.out.println("No servers found"); return; }
+        int count = 0;
+        String receiver = "BROADCAST";
+        for (String a : args) {
+            if (a.startsWith("--count=")) count = Integer.parseInt(a.substring("--count=".length()));
+            if (a.startsWith("--receiver=")) receiver = a.substring("--receiver=".length());
+        }
+        if (count > 0) {
+            sendPipelined(base, receiver, count);
+            zk.close();
+            return;
+        }
         Message m = new Message("client1", "server", "hello from client");
         Message resp = sender.send(base, m);
         System.out.println("Sent message, got response id=" + (resp != null ? resp.getId() : "null"));
         zk.close();
     }
+
+    // --count=N sends N messages through the pipelined sender and reports the rate
+    private void sendPipelined(String base, String receiver, int count) throws Exception {
+        long start = System.nanoTime();
+        List<CompletableFuture<Message>> sent = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sent.add(sender.sendAsync(base, new Message("client1", receiver, "pipelined " + i)));
+        }
+        sender.flush();
+        int failed = 0;
+        for (CompletableFuture<Message> f : sent) {
+            try {
+                f.join();
+            } catch (Exception e) {
+                if (failed++ == 0) System.out.println("First failure: " + e.getMessage());
+            }
+        }
+        long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("Sent " + (count - failed) + "/" + count + " messages to " + base + " in " + ms + "ms ("
+                + (count * 1000L / ms) + " msg/s)");
+    }
 }
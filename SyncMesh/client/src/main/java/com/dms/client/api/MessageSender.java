@@ -1,16 +1,70 @@
 package com.dms.client.api;
 
 import com.dms.common.model.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends messages to a server. {@link #send} is one blocking request per message; {@link #sendAsync}
+ * pipelines: messages for the same server are collected for up to {@code client.sender.linger-ms}
+ * (or until {@code client.sender.max-batch} are waiting) into one {@code POST /api/messages/send/batch},
+ * and up to {@code client.sender.max-in-flight} batches per server are on the wire at once.
+ * Callers block in {@code sendAsync} once {@code client.sender.max-queued} messages are unanswered.
+ */
 @Component
 public class MessageSender {
+    private static final ParameterizedTypeReference<List<Map<String, Object>>> RESULTS = new ParameterizedTypeReference<>() {};
     private final RestTemplate rest = new RestTemplate();
+    private final long lingerMs;
+    private final int maxBatch;
+    private final int maxInFlight;
+    private final Semaphore queued;
+    private final Map<String, Pipeline> pipelines = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sender-linger");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService senders;
+
+    public MessageSender(@Value("${client.sender.linger-ms:5}") long lingerMs,
+                         @Value("${client.sender.max-batch:500}") int maxBatch,
+                         @Value("${client.sender.max-in-flight:4}") int maxInFlight,
+                         @Value("${client.sender.max-queued:10000}") int maxQueued) {
+        this.lingerMs = Math.max(0, lingerMs);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.queued = new Semaphore(Math.max(this.maxBatch, maxQueued));
+        AtomicInteger threadIds = new AtomicInteger();
+        this.senders = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "sender-" + threadIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
     public Message send(String baseUrl, Message m) {
         String url = baseUrl + "/api/messages/send";
@@ -20,4 +74,141 @@ public class MessageSender {
         ResponseEntity<Message> resp = rest.postForEntity(url, req, Message.class);
         return resp.getBody();
     }
+
+    /** Sends a batch in one request and returns the server's result for each message, in order. */
+    public List<Map<String, Object>> sendBatch(String baseUrl, List<Message> batch) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<List<Map<String, Object>>> resp = rest.exchange(baseUrl + "/api/messages/send/batch",
+                HttpMethod.POST, new HttpEntity<>(batch, headers), RESULTS);
+        return resp.getBody();
+    }
+
+    /**
+     * Queues a message for the next batch to {@code baseUrl}. The future completes with the
+     * message, its Lamport stamp and origin filled in, once the server has stored it (or found it
+     * a duplicate), and fails if the server rejected it or the batch could not be sent.
+     */
+    public CompletableFuture<Message> sendAsync(String baseUrl, Message m) throws InterruptedException {
+        queued.acquire();
+        Pending p = new Pending(m);
+        p.future.whenComplete((ok, err) -> queued.release());
+        pipelines.computeIfAbsent(baseUrl, Pipeline::new).offer(p);
+        return p.future;
+    }
+
+    /** Sends whatever is lingering now instead of waiting out {@code client.sender.linger-ms}. */
+    public void flush() {
+        pipelines.values().forEach(Pipeline::flush);
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+        lingerTimer.shutdownNow();
+        senders.shutdown();
+    }
+
+    private static final class Pending {
+        final Message message;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        Pending(Message message) {
+            this.message = message;
+        }
+    }
+
+    private final class Pipeline {
+        final String baseUrl;
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<List<Pending>> ready = new ArrayDeque<>();
+        List<Pending> open = new ArrayList<>();
+        ScheduledFuture<?> linger;
+        int inFlight;
+
+        Pipeline(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        void offer(Pending p) {
+            lock.lock();
+            try {
+                open.add(p);
+                if (open.size() >= maxBatch || lingerMs == 0) seal();
+                else if (linger == null) linger = lingerTimer.schedule(this::flush, lingerMs, TimeUnit.MILLISECONDS);
+                pump();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void flush() {
+            lock.lock();
+            try {
+                seal();
+                pump();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // caller holds the lock
+        private void seal() {
+            if (linger != null) {
+                linger.cancel(false);
+                linger = null;
+            }
+            if (open.isEmpty()) return;
+            ready.add(open);
+            open = new ArrayList<>();
+        }
+
+        // caller holds the lock; the window slides as each batch is answered
+        private void pump() {
+            while (inFlight < maxInFlight && !ready.isEmpty()) {
+                List<Pending> batch = ready.poll();
+                inFlight++;
+                senders.execute(() -> post(batch));
+            }
+        }
+
+        private void post(List<Pending> batch) {
+            try {
+                List<Message> messages = new ArrayList<>(batch.size());
+                for (Pending p : batch) messages.add(p.message);
+                List<Map<String, Object>> results = sendBatch(baseUrl, messages);
+                for (int i = 0; i < batch.size(); i++) {
+                    complete(batch.get(i), results != null && i < results.size() ? results.get(i) : null);
+                }
+            } catch (Exception e) {
+                for (Pending p : batch) p.future.completeExceptionally(e);
+            } finally {
+                lock.lock();
+                try {
+                    inFlight--;
+                    pump();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void complete(Pending p, Map<String, Object> result) {
+            if (result == null) {
+                p.future.completeExceptionally(new IllegalStateException("no result for message " + p.message.getId()));
+                return;
+            }
+            Object status = result.get("status");
+            if ("stored".equals(status) || "duplicate".equals(status)) {
+                if (result.get("lamport") instanceof Number) p.message.setLamport(((Number) result.get("lamport")).longValue());
+                if (result.get("originNodeId") != null) p.message.setOriginNodeId(result.get("originNodeId").toString());
+                if (result.get("sequence") instanceof Number) p.message.setSequence(((Number) result.get("sequence")).longValue());
+                p.future.complete(p.message);
+            } else if ("rejected".equals(status)) {
+                p.future.completeExceptionally(new IllegalArgumentException(String.valueOf(result.get("error"))));
+            } else {
+                p.future.completeExceptionally(new IllegalStateException(String.valueOf(result.get("error"))));
+            }
+        }
+    }
 }
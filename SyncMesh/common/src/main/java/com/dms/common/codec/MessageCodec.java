@@ -0,0 +1,342 @@
+package com.dms.common.codec;
+
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeSlots;
+import com.dms.common.model.VectorClock;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of {@link Message} batches for the server-to-server path.
+ *
+ * <pre>
+ * frame   := MAGIC VERSION strings:varint string* count:varint message*
+ * string  := len:varint utf8-bytes
+ * message := flags id lamport:zigzag-varint [sender:ref] [receiver:ref] [origin:ref]
+ *            [seconds:zigzag-varint nanos:varint] [payload:string] clock-size:varint (node:ref value:zigzag-varint)*
+ *            [topic:ref partition:varint] [key:string] [sequence:varint [sequence-epoch:varint]]
+ * flags   := byte in versions 1 and 2, varint from version 3
+ * id      := 16 bytes when FLAG_UUID_ID is set, otherwise a string
+ * </pre>
+ *
+ * Topic and key only exist from version 2, sequence numbers from version 3, and the epoch that
+ * assigned them and the withdrawn flag from version 4. Each batch is written
+ * in the oldest version that can hold it, so peers that predate a field keep decoding everything
+ * that doesn't use it.
+ *
+ * Node ids, senders and receivers are interned into the frame's string table and referenced by
+ * index, so a batch of messages between the same few nodes spells each id out once. Clock entries
+ * are mapped between {@link NodeSlots} slots and string references once per frame, so encoding
+ * and decoding a {@link VectorClock} never hashes a node id per entry. Decoding drops clock
+ * entries for ids without a slot unless the caller asks for them to be registered, which only the
+ * replay of a node's own log does.
+ */
+public final class MessageCodec {
+    public static final String CONTENT_TYPE = "application/x-syncmesh-message";
+    public static final byte MAGIC = (byte) 0xD5;
+    public static final byte VERSION = 4;
+    private static final byte VERSION_WITHOUT_EPOCHS = 3;
+    private static final byte VERSION_WITHOUT_SEQUENCES = 2;
+    private static final byte VERSION_WITHOUT_TOPICS = 1;
+
+    // refSlots markers: not looked up yet, and looked up but not a registered node
+    private static final int UNRESOLVED = -1;
+    private static final int UNKNOWN_NODE = -2;
+
+    private static final int FLAG_UUID_ID = 1;
+    private static final int FLAG_SENDER = 1 << 1;
+    private static final int FLAG_RECEIVER = 1 << 2;
+    private static final int FLAG_ORIGIN = 1 << 3;
+    private static final int FLAG_TIMESTAMP = 1 << 4;
+    private static final int FLAG_PAYLOAD = 1 << 5;
+    private static final int FLAG_TOPIC = 1 << 6;
+    private static final int FLAG_KEY = 1 << 7;
+    private static final int FLAG_SEQUENCE = 1 << 8;
+    private static final int FLAG_WITHDRAWN = 1 << 9;
+
+    private MessageCodec() {}
+
+    public static byte[] encode(Message m) {
+        return encodeBatch(Collections.singletonList(m));
+    }
+
+    public static byte[] encodeBatch(List<Message> batch) {
+        Map<String, Integer> refs = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        // string reference of each clock slot used in this frame, -1 until interned
+        int width = 0;
+        for (Message m : batch) width = Math.max(width, m.getVectorClock().width());
+        int[] slotRefs = new int[width];
+        Arrays.fill(slotRefs, -1);
+        boolean topics = false;
+        boolean sequences = false;
+        boolean withdrawals = false;
+        for (Message m : batch) {
+            intern(m.getSender(), refs, strings);
+            intern(m.getReceiver(), refs, strings);
+            intern(m.getOriginNodeId(), refs, strings);
+            intern(m.getTopic(), refs, strings);
+            topics |= m.getTopic() != null || m.getKey() != null;
+            sequences |= m.getSequence() > 0;
+            withdrawals |= m.isWithdrawn();
+            m.getVectorClock().forEach((slot, value) -> {
+                if (slotRefs[slot] < 0) {
+                    String node = NodeSlots.nameOf(slot);
+                    intern(node, refs, strings);
+                    slotRefs[slot] = refs.get(node);
+                }
+            });
+        }
+        Writer w = new Writer(64 + batch.size() * 96);
+        w.put(MAGIC);
+        byte version = sequences || withdrawals ? VERSION : topics ? VERSION_WITHOUT_SEQUENCES : VERSION_WITHOUT_TOPICS;
+        w.put(version);
+        w.varint(strings.size());
+        for (String s : strings) w.string(s);
+        w.varint(batch.size());
+        for (Message m : batch) writeMessage(w, m, refs, slotRefs, version);
+        return w.toByteArray();
+    }
+
+    private static void writeMessage(Writer w, Message m, Map<String, Integer> refs, int[] slotRefs, byte version) {
+        UUID uuid = parseUuid(m.getId());
+        int flags = (uuid != null ? FLAG_UUID_ID : 0)
+                | (m.getSender() != null ? FLAG_SENDER : 0)
+                | (m.getReceiver() != null ? FLAG_RECEIVER : 0)
+                | (m.getOriginNodeId() != null ? FLAG_ORIGIN : 0)
+                | (m.getTimestamp() != null ? FLAG_TIMESTAMP : 0)
+                | (m.getPayload() != null ? FLAG_PAYLOAD : 0)
+                | (m.getTopic() != null ? FLAG_TOPIC : 0)
+                | (m.getKey() != null ? FLAG_KEY : 0)
+                | (m.getSequence() > 0 ? FLAG_SEQUENCE : 0)
+                | (m.isWithdrawn() ? FLAG_WITHDRAWN : 0);
+        if (version >= VERSION_WITHOUT_EPOCHS) w.varint(flags);
+        else w.put((byte) flags);
+        if (uuid != null) {
+            w.fixed64(uuid.getMostSignificantBits());
+            w.fixed64(uuid.getLeastSignificantBits());
+        } else {
+            w.string(m.getId() == null ? "" : m.getId());
+        }
+        w.zigzag(m.getLamport());
+        if (m.getSender() != null) w.varint(refs.get(m.getSender()));
+        if (m.getReceiver() != null) w.varint(refs.get(m.getReceiver()));
+        if (m.getOriginNodeId() != null) w.varint(refs.get(m.getOriginNodeId()));
+        if (m.getTimestamp() != null) {
+            w.zigzag(m.getTimestamp().getEpochSecond());
+            w.varint(m.getTimestamp().getNano());
+        }
+        if (m.getPayload() != null) w.string(m.getPayload());
+        VectorClock clock = m.getVectorClock();
+        w.varint(clock.size());
+        clock.forEach((slot, value) -> {
+            w.varint(slotRefs[slot]);
+            w.zigzag(value);
+        });
+        if (m.getTopic() != null) {
+            w.varint(refs.get(m.getTopic()));
+            w.varint(Math.max(0, m.getPartition()));
+        }
+        if (m.getKey() != null) w.string(m.getKey());
+        if (m.getSequence() > 0) {
+            w.varint(m.getSequence());
+            w.varint(Math.max(0, m.getSequenceEpoch()));
+        }
+    }
+
+    public static Message decode(byte[] bytes) {
+        List<Message> batch = decodeBatch(ByteBuffer.wrap(bytes));
+        if (batch.size() != 1) throw new IllegalArgumentException("expected one message, frame holds " + batch.size());
+        return batch.get(0);
+    }
+
+    public static List<Message> decodeBatch(byte[] bytes) {
+        return decodeBatch(ByteBuffer.wrap(bytes));
+    }
+
+    public static List<Message> decodeBatch(ByteBuffer in) {
+        return decodeBatch(in, false);
+    }
+
+    /**
+     * Decodes a frame, registering clock node ids that have no slot yet when {@code registerNodes}
+     * is set. Only for frames this node wrote itself; see {@link NodeSlots}.
+     */
+    public static List<Message> decodeBatch(ByteBuffer in, boolean registerNodes) {
+        try {
+            if (in.get() != MAGIC) throw new IllegalArgumentException("not a SyncMesh message frame");
+            byte version = in.get();
+            if (version < VERSION_WITHOUT_TOPICS || version > VERSION) throw new IllegalArgumentException("unsupported message frame version " + version);
+            int stringCount = count(in);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) strings[i] = string(in);
+            // slot of each string used as a clock node, resolved on first use
+            int[] refSlots = new int[stringCount];
+            Arrays.fill(refSlots, UNRESOLVED);
+            int count = count(in);
+            List<Message> out = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) out.add(readMessage(in, strings, refSlots, version, registerNodes));
+            return out;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated or corrupt message frame", e);
+        }
+    }
+
+    private static Message readMessage(ByteBuffer in, String[] strings, int[] refSlots, byte version, boolean registerNodes) {
+        int flags = version >= VERSION_WITHOUT_EPOCHS ? varint32(in) : in.get() & 0xFF;
+        Message m = Message.blank();
+        if ((flags & FLAG_UUID_ID) != 0) {
+            m.setId(new UUID(in.getLong(), in.getLong()).toString());
+        } else {
+            m.setId(string(in));
+        }
+        m.setLamport(zigzag(in));
+        m.setSender((flags & FLAG_SENDER) != 0 ? strings[varint32(in)] : null);
+        m.setReceiver((flags & FLAG_RECEIVER) != 0 ? strings[varint32(in)] : null);
+        m.setOriginNodeId((flags & FLAG_ORIGIN) != 0 ? strings[varint32(in)] : null);
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            long seconds = zigzag(in);
+            m.setTimestamp(Instant.ofEpochSecond(seconds, varint32(in)));
+        }
+        if ((flags & FLAG_PAYLOAD) != 0) m.setPayload(string(in));
+        int clockSize = count(in);
+        VectorClock clock = m.getVectorClock();
+        for (int i = 0; i < clockSize; i++) {
+            int ref = varint32(in);
+            if (refSlots[ref] == UNRESOLVED) {
+                int slot = registerNodes ? NodeSlots.register(strings[ref]) : NodeSlots.find(strings[ref]);
+                refSlots[ref] = slot < 0 ? UNKNOWN_NODE : slot;
+            }
+            long value = zigzag(in);
+            if (refSlots[ref] != UNKNOWN_NODE) clock.set(refSlots[ref], value);
+        }
+        if ((flags & FLAG_TOPIC) != 0) {
+            m.setTopic(strings[varint32(in)]);
+            m.setPartition(varint32(in));
+        }
+        if ((flags & FLAG_KEY) != 0) m.setKey(string(in));
+        if ((flags & FLAG_SEQUENCE) != 0) {
+            m.setSequence(varint(in));
+            if (version >= VERSION) m.setSequenceEpoch(varint(in));
+        }
+        m.setWithdrawn((flags & FLAG_WITHDRAWN) != 0);
+        return m;
+    }
+
+    /** True when the bytes start with this codec's frame header. */
+    public static boolean isFrame(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC;
+    }
+
+    private static void intern(String s, Map<String, Integer> refs, List<String> strings) {
+        if (s != null && !refs.containsKey(s)) {
+            refs.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    private static UUID parseUuid(String id) {
+        // only canonical lower-case ids round-trip through UUID.toString()
+        if (id == null || id.length() != 36) return null;
+        try {
+            UUID u = UUID.fromString(id);
+            return u.toString().equals(id) ? u : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        int len = varint32(in);
+        if (len > in.remaining()) throw new BufferUnderflowException();
+        if (!in.hasArray()) {
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    private static long varint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    // every counted item takes at least a byte, so a count past the rest of the frame is corrupt and
+    // must not size an allocation
+    private static int count(ByteBuffer in) {
+        int n = varint32(in);
+        if (n > in.remaining()) throw new IllegalArgumentException("count " + n + " exceeds the " + in.remaining() + " bytes left in the frame");
+        return n;
+    }
+
+    private static int varint32(ByteBuffer in) {
+        long v = varint(in);
+        if (v < 0 || v > Integer.MAX_VALUE) throw new IllegalArgumentException("varint out of range: " + v);
+        return (int) v;
+    }
+
+    private static long zigzag(ByteBuffer in) {
+        long v = varint(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int len;
+
+        Writer(int capacity) { buf = new byte[capacity]; }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[len++] = b;
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void zigzag(long v) { varint((v << 1) ^ (v >> 63)); }
+
+        void fixed64(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) buf[len++] = (byte) (v >>> (i * 8));
+        }
+
+        void string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(buf, len); }
+    }
+}
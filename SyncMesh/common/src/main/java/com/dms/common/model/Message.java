@@ -1,10 +1,10 @@
 package com.dms.common.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.io.Serializable;
 import java.time.Instant;
 import java.util.UUID;
-import java.util.Map;
-import java.util.HashMap;
 
 public class Message implements Serializable {
     private String id;
@@ -14,11 +14,35 @@ public class Message implements Serializable {
     private Instant timestamp;
     private long lamport;
     private String originNodeId;
-    private Map<String, Long> vectorClock = new HashMap<>();
+    private VectorClock vectorClock = new VectorClock();
+    // set for topic messages, which live only on the owners of their partition
+    private String topic;
+    private String key;
+    private int partition = -1;
+    // position in the cluster-wide total order, 0 when the message was not sequenced
+    private long sequence;
+    // epoch of the total order leader that assigned the sequence
+    private long sequenceEpoch;
+    // marks a log record that takes the message back, e.g. a total order entry dropped before it committed
+    private boolean withdrawn;
 
     public Message() {
-        this.id = UUID.randomUUID().toString();
-        this.timestamp = Instant.now();
+        this(true);
+    }
+
+    private Message(boolean generateIdentity) {
+        if (generateIdentity) {
+            this.id = UUID.randomUUID().toString();
+            this.timestamp = Instant.now();
+        }
+    }
+
+    /**
+     * An empty message without a generated id or timestamp, for decoders that set every field
+     * themselves and would otherwise pay for a random UUID and a clock read per message.
+     */
+    public static Message blank() {
+        return new Message(false);
     }
 
     public Message(String sender, String receiver, String payload) {
@@ -30,6 +54,7 @@ public class Message implements Serializable {
 
     // getters and setters
     public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
     public String getSender() { return sender; }
     public void setSender(String sender) { this.sender = sender; }
     public String getReceiver() { return receiver; }
@@ -45,6 +70,24 @@ public class Message implements Serializable {
     public String getOriginNodeId() { return originNodeId; }
     public void setOriginNodeId(String originNodeId) { this.originNodeId = originNodeId; }
 
-    public Map<String, Long> getVectorClock() { return vectorClock; }
-    public void setVectorClock(Map<String, Long> vectorClock) { this.vectorClock = vectorClock; }
+    public String getTopic() { return topic; }
+    public void setTopic(String topic) { this.topic = topic; }
+
+    public String getKey() { return key; }
+    public void setKey(String key) { this.key = key; }
+
+    public int getPartition() { return partition; }
+    public void setPartition(int partition) { this.partition = partition; }
+
+    public long getSequence() { return sequence; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
+    public long getSequenceEpoch() { return sequenceEpoch; }
+    public void setSequenceEpoch(long sequenceEpoch) { this.sequenceEpoch = sequenceEpoch; }
+    @JsonIgnore
+    public boolean isWithdrawn() { return withdrawn; }
+    public void setWithdrawn(boolean withdrawn) { this.withdrawn = withdrawn; }
+
+    public VectorClock getVectorClock() { return vectorClock; }
+    public void setVectorClock(VectorClock vectorClock) { this.vectorClock = vectorClock == null ? new VectorClock() : vectorClock; }
 }
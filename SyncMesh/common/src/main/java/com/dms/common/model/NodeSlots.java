@@ -0,0 +1,62 @@
+package com.dms.common.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide table that gives every node id a small integer slot, used as its index into a
+ * {@link VectorClock}'s counters. Slots are handed out in the order ids are first seen and never
+ * reused, so a clock built against the table stays valid for the life of the process. Because the
+ * table never shrinks and every clock is sized to it, only trusted sources register ids: the
+ * server's ZooKeeper membership and the replay of its own log, which only holds clocks that
+ * already passed through the table. Clocks read from requests and peer frames resolve ids with
+ * {@link #find} and drop the ones that have no slot.
+ *
+ * <p>Slots are local to this process. Anything that leaves it (JSON, {@code MessageCodec} frames,
+ * Java serialization) names the nodes instead.
+ */
+public final class NodeSlots {
+    private static final ConcurrentHashMap<String, Integer> SLOTS = new ConcurrentHashMap<>();
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static volatile String[] names = new String[16];
+    private static volatile int size;
+
+    private NodeSlots() {}
+
+    /** Slot of {@code nodeId}, assigning the next free one the first time the id is registered. */
+    public static int register(String nodeId) {
+        Integer slot = SLOTS.get(nodeId);
+        if (slot != null) return slot;
+        LOCK.lock();
+        try {
+            slot = SLOTS.get(nodeId);
+            if (slot != null) return slot;
+            int s = size;
+            if (s == names.length) names = Arrays.copyOf(names, s * 2);
+            names[s] = nodeId;
+            // publish the name before the slot so readers that find the slot can resolve it
+            size = s + 1;
+            SLOTS.put(nodeId, s);
+            return s;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** Slot of {@code nodeId}, or -1 if it has never been registered. Never grows the table. */
+    public static int find(String nodeId) {
+        Integer slot = SLOTS.get(nodeId);
+        return slot == null ? -1 : slot;
+    }
+
+    public static String nameOf(int slot) {
+        if (slot < 0 || slot >= size) throw new IllegalArgumentException("no node in slot " + slot);
+        return names[slot];
+    }
+
+    /** Number of slots handed out so far. */
+    public static int size() {
+        return size;
+    }
+}
@@ -0,0 +1,205 @@
+package com.dms.common.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Vector clock held as a primitive {@code long[]} indexed by {@link NodeSlots} slot instead of a
+ * map of boxed counters keyed by node id. Reads, increments, merges and comparisons never
+ * allocate; the array only grows when a node with a higher slot first ticks the clock. Slots with
+ * no entry count as zero.
+ *
+ * <p>In JSON the clock is still an object of node id to counter, so the REST API and older peers
+ * see the same shape as before. Entries for node ids without a slot are dropped when a clock is
+ * read, so a request cannot widen every clock in the process by inventing ids. Like the map it
+ * replaces, an instance is not thread-safe.
+ */
+public final class VectorClock implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final long[] EMPTY = new long[0];
+
+    /** How two clocks relate. */
+    public enum Order { BEFORE, AFTER, EQUAL, CONCURRENT }
+
+    /** Receives the non-zero entries of a clock, by slot. */
+    @FunctionalInterface
+    public interface SlotVisitor {
+        void visit(int slot, long value);
+    }
+
+    private transient long[] counts = EMPTY;
+
+    public VectorClock() {}
+
+    public long get(int slot) {
+        return slot >= 0 && slot < counts.length ? counts[slot] : 0;
+    }
+
+    public long get(String nodeId) {
+        return get(NodeSlots.find(nodeId));
+    }
+
+    public void set(int slot, long value) {
+        ensure(slot);
+        counts[slot] = value;
+    }
+
+    /** Sets the counter of a registered node; ids without a slot are rejected. */
+    public void set(String nodeId, long value) {
+        set(registered(nodeId), value);
+    }
+
+    /** Adds one to the slot's counter and returns the new value. */
+    public long increment(int slot) {
+        ensure(slot);
+        return ++counts[slot];
+    }
+
+    public long increment(String nodeId) {
+        return increment(registered(nodeId));
+    }
+
+    private static int registered(String nodeId) {
+        int slot = NodeSlots.find(nodeId);
+        if (slot < 0) throw new IllegalArgumentException("node " + nodeId + " has no vector clock slot");
+        return slot;
+    }
+
+    /** Raises every counter to at least the other clock's value for the same node. */
+    public void merge(VectorClock other) {
+        long[] theirs = other.counts;
+        if (theirs.length > counts.length) counts = Arrays.copyOf(counts, theirs.length);
+        for (int i = 0; i < theirs.length; i++) {
+            if (theirs[i] > counts[i]) counts[i] = theirs[i];
+        }
+    }
+
+    /** Compares this clock with {@code other}: BEFORE means this one happened before it. */
+    public Order compare(VectorClock other) {
+        long[] a = counts, b = other.counts;
+        boolean less = false, greater = false;
+        int n = Math.max(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            long x = i < a.length ? a[i] : 0;
+            long y = i < b.length ? b[i] : 0;
+            if (x < y) less = true;
+            else if (x > y) greater = true;
+            if (less && greater) return Order.CONCURRENT;
+        }
+        if (less) return Order.BEFORE;
+        return greater ? Order.AFTER : Order.EQUAL;
+    }
+
+    public boolean happensBefore(VectorClock other) {
+        return compare(other) == Order.BEFORE;
+    }
+
+    public boolean isConcurrentWith(VectorClock other) {
+        return compare(other) == Order.CONCURRENT;
+    }
+
+    /** Calls {@code visitor} for each non-zero entry in slot order. */
+    public void forEach(SlotVisitor visitor) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) visitor.visit(i, counts[i]);
+        }
+    }
+
+    /** Number of non-zero entries. */
+    public int size() {
+        int n = 0;
+        for (long c : counts) {
+            if (c != 0) n++;
+        }
+        return n;
+    }
+
+    /** One past the highest slot this clock has room for; every non-zero entry is below it. */
+    public int width() {
+        return counts.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public VectorClock copy() {
+        VectorClock c = new VectorClock();
+        c.counts = counts.length == 0 ? EMPTY : counts.clone();
+        return c;
+    }
+
+    private void ensure(int slot) {
+        if (slot < 0) throw new IllegalArgumentException("negative slot " + slot);
+        if (slot >= counts.length) counts = Arrays.copyOf(counts, Math.max(slot + 1, Math.max(4, NodeSlots.size())));
+    }
+
+    @JsonValue
+    public Map<String, Long> toMap() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        forEach((slot, value) -> out.put(NodeSlots.nameOf(slot), value));
+        return out;
+    }
+
+    @JsonCreator
+    public static VectorClock fromMap(Map<String, Long> map) {
+        VectorClock c = new VectorClock();
+        if (map != null) {
+            for (Map.Entry<String, Long> e : map.entrySet()) {
+                if (e.getKey() == null || e.getValue() == null || e.getValue() == 0) continue;
+                int slot = NodeSlots.find(e.getKey());
+                if (slot >= 0) c.set(slot, e.getValue());
+            }
+        }
+        return c;
+    }
+
+    // slots mean nothing in another process, so the serialized form names the nodes
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            out.writeUTF(NodeSlots.nameOf(i));
+            out.writeLong(counts[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        counts = EMPTY;
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int slot = NodeSlots.find(in.readUTF());
+            long value = in.readLong();
+            if (slot >= 0) set(slot, value);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VectorClock && compare((VectorClock) o) == Order.EQUAL;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) h = 31 * h + (i * 0x9E3779B9 ^ Long.hashCode(counts[i]));
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
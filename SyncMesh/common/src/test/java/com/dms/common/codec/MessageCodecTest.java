@@ -0,0 +1,172 @@
+package com.dms.common.codec;
+
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeSlots;
+import com.dms.common.model.VectorClock;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Round trips through {@link MessageCodec}, frame versioning, and rejection of broken frames. */
+class MessageCodecTest {
+    private static final String A = "codec-test-a";
+    private static final String B = "codec-test-b";
+    private static final String C = "codec-test-c";
+
+    @BeforeAll
+    static void registerNodes() {
+        NodeSlots.register(A);
+        NodeSlots.register(B);
+        NodeSlots.register(C);
+    }
+
+    @Test
+    void roundTripsEveryField() {
+        Message m = new Message(A, B, "héllo, wörld ✓");
+        m.setOriginNodeId(A);
+        m.setLamport(-42);
+        m.setTimestamp(Instant.ofEpochSecond(1_700_000_000L, 123_456_789));
+        m.setVectorClock(clock(A, 7, B, 300, C, 1L << 40));
+        m.setTopic("orders");
+        m.setPartition(11);
+        m.setKey("customer-9");
+        m.setSequence(99_999);
+        m.setSequenceEpoch(17);
+
+        assertSameMessage(m, MessageCodec.decode(MessageCodec.encode(m)));
+    }
+
+    @Test
+    void keepsNonUuidIdsAndAbsentFields() {
+        Message m = Message.blank();
+        m.setId("custom-id");
+
+        Message decoded = MessageCodec.decode(MessageCodec.encode(m));
+
+        assertSameMessage(m, decoded);
+        assertNull(decoded.getTimestamp());
+        assertNull(decoded.getSender());
+        assertTrue(decoded.getVectorClock().isEmpty());
+    }
+
+    @Test
+    void batchKeepsOrderAndSpellsSharedStringsOnce() {
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Message m = new Message(A, "BROADCAST", "message " + i);
+            m.setOriginNodeId(A);
+            m.setLamport(i);
+            m.setVectorClock(clock(A, i + 1, B, i / 2));
+            batch.add(m);
+        }
+
+        byte[] frame = MessageCodec.encodeBatch(batch);
+        List<Message> decoded = MessageCodec.decodeBatch(frame);
+
+        assertEquals(batch.size(), decoded.size());
+        for (int i = 0; i < batch.size(); i++) assertSameMessage(batch.get(i), decoded.get(i));
+        int separately = 0;
+        for (Message m : batch) separately += MessageCodec.encode(m).length;
+        assertTrue(frame.length < separately, "a batch should be smaller than its messages framed one by one");
+    }
+
+    @Test
+    void writesTheOldestVersionThatHoldsTheBatch() {
+        Message plain = new Message(A, B, "p");
+        assertEquals(1, MessageCodec.encode(plain)[1]);
+
+        Message topic = new Message(A, B, "t");
+        topic.setTopic("orders");
+        topic.setPartition(0);
+        assertEquals(2, MessageCodec.encode(topic)[1]);
+
+        Message sequenced = new Message(A, B, "s");
+        sequenced.setSequence(1);
+        assertEquals(MessageCodec.VERSION, MessageCodec.encode(sequenced)[1]);
+        assertEquals(MessageCodec.VERSION, MessageCodec.encodeBatch(Arrays.asList(plain, sequenced))[1]);
+
+        Message withdrawn = Message.blank();
+        withdrawn.setId("w");
+        withdrawn.setWithdrawn(true);
+        assertEquals(MessageCodec.VERSION, MessageCodec.encode(withdrawn)[1]);
+        assertTrue(MessageCodec.decode(MessageCodec.encode(withdrawn)).isWithdrawn());
+        assertFalse(MessageCodec.decode(MessageCodec.encode(plain)).isWithdrawn());
+    }
+
+    @Test
+    void rejectsBrokenFrames() {
+        byte[] frame = MessageCodec.encode(new Message(A, B, "payload"));
+
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(Arrays.copyOf(frame, frame.length - 3)));
+        byte[] badMagic = frame.clone();
+        badMagic[0] = 0;
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(badMagic));
+        byte[] badVersion = frame.clone();
+        badVersion[1] = (byte) (MessageCodec.VERSION + 1);
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(badVersion));
+
+        // string counts of 2^31 - 1 and 2^32 must be refused before anything is allocated
+        byte[] hugeCount = {MessageCodec.MAGIC, MessageCodec.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(hugeCount));
+        byte[] overflowingCount = {MessageCodec.MAGIC, MessageCodec.VERSION, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0};
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(overflowingCount));
+    }
+
+    @Test
+    void dropsClockEntriesOfUnknownNodesUnlessRegistering() {
+        String ghost = "codec-test-ghost-" + UUID.randomUUID();
+        byte[] name = ghost.getBytes(StandardCharsets.UTF_8);
+        // version 1 frame: one string, one message with a string id, lamport 0 and clock {ghost: 5}
+        ByteBuffer frame = ByteBuffer.allocate(16 + name.length)
+                .put(MessageCodec.MAGIC).put((byte) 1)
+                .put((byte) 1).put((byte) name.length).put(name)
+                .put((byte) 1)
+                .put((byte) 0).put((byte) 0).put((byte) 0)
+                .put((byte) 1).put((byte) 0).put((byte) 10);
+        frame.flip();
+
+        Message dropped = MessageCodec.decodeBatch(frame.duplicate()).get(0);
+        assertTrue(dropped.getVectorClock().isEmpty());
+        assertEquals(-1, NodeSlots.find(ghost));
+
+        Message kept = MessageCodec.decodeBatch(frame.duplicate(), true).get(0);
+        assertEquals(5, kept.getVectorClock().get(ghost));
+    }
+
+    private static VectorClock clock(Object... nodeValuePairs) {
+        VectorClock c = new VectorClock();
+        for (int i = 0; i < nodeValuePairs.length; i += 2) {
+            c.set((String) nodeValuePairs[i], ((Number) nodeValuePairs[i + 1]).longValue());
+        }
+        return c;
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getReceiver(), actual.getReceiver());
+        assertEquals(expected.getPayload(), actual.getPayload());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getLamport(), actual.getLamport());
+        assertEquals(expected.getOriginNodeId(), actual.getOriginNodeId());
+        assertEquals(expected.getVectorClock(), actual.getVectorClock());
+        assertEquals(expected.getTopic(), actual.getTopic());
+        assertEquals(expected.getPartition(), actual.getPartition());
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getSequenceEpoch(), actual.getSequenceEpoch());
+    }
+}
@@ -0,0 +1,295 @@
+package com.dms.server.admission;
+
+import com.dms.server.service.ReplicationService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides whether a client send may start, so a saturated node turns requests away at once with a
+ * {@code Retry-After} hint instead of parking them on request threads. A send must pass three gates:
+ *
+ * <ul>
+ *   <li>Concurrency: at most {@code limit} client sends are processed at once. Every
+ *       {@code admission.sample-interval-ms} the limit shrinks by a tenth while the slowest attached
+ *       peer's smoothed ack time is above {@code admission.latency-target-ms}, and grows by one
+ *       while it is below and the limit is actually being used.</li>
+ *   <li>Backlog: accepted messages wait for their acks in the per-peer outboxes. Once the most
+ *       backed-up live outbox holds {@code admission.max-backlog} messages, new sends are refused
+ *       until it drains, so the outboxes act as a bounded ingest queue between accepting a message
+ *       and replicating it.</li>
+ *   <li>Rate: with {@code admission.sender.rate} set, each sender has a token bucket of that many
+ *       messages per second and {@code admission.sender.burst} capacity. A batch takes one token
+ *       per message from the bucket of that message's sender, and is refused without charging
+ *       anyone if one sender can't pay; a share larger than the burst is let through on a full
+ *       bucket and leaves it in debt.</li>
+ * </ul>
+ *
+ * Messages a peer forwards over its internal endpoint were admitted there and are not checked again.
+ */
+@Component
+public class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+    private static final long IDLE_BUCKET_MS = 60_000;
+
+    private final ReplicationService repl;
+    private final boolean enabled;
+    private final double senderRate;
+    private final double senderBurst;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetMs;
+    private final int maxBacklog;
+    private final long sampleIntervalMs;
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admission-sampler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile int limit;
+    private volatile int backlog;
+    private volatile long latencyMs;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Counter rejectedConcurrency;
+    private final Counter rejectedBacklog;
+    private final Counter rejectedRate;
+    // written by the sampler only
+    private volatile long admitted;
+    private volatile long decreases;
+    private volatile long increases;
+
+    public AdmissionControl(ReplicationService repl, MeterRegistry meters,
+                            @Value("${admission.enabled:true}") boolean enabled,
+                            @Value("${admission.sender.rate:0}") double senderRate,
+                            @Value("${admission.sender.burst:200}") double senderBurst,
+                            @Value("${admission.concurrency.initial:64}") int initialLimit,
+                            @Value("${admission.concurrency.min:8}") int minLimit,
+                            @Value("${admission.concurrency.max:512}") int maxLimit,
+                            @Value("${admission.latency-target-ms:500}") long latencyTargetMs,
+                            @Value("${admission.max-backlog:8000}") int maxBacklog,
+                            @Value("${admission.sample-interval-ms:100}") long sampleIntervalMs) {
+        this.repl = repl;
+        this.enabled = enabled;
+        this.senderRate = senderRate;
+        this.senderBurst = Math.max(1, senderBurst);
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.latencyTargetMs = Math.max(1, latencyTargetMs);
+        this.maxBacklog = Math.max(1, maxBacklog);
+        this.sampleIntervalMs = Math.max(10, sampleIntervalMs);
+        this.rejectedConcurrency = Counter.builder("dms.admission.rejected").tag("reason", "concurrency").register(meters);
+        this.rejectedBacklog = Counter.builder("dms.admission.rejected").tag("reason", "backlog").register(meters);
+        this.rejectedRate = Counter.builder("dms.admission.rejected").tag("reason", "rate").register(meters);
+        Gauge.builder("dms.admission.limit", this, a -> a.limit).description("Current concurrency limit for client sends").register(meters);
+        Gauge.builder("dms.admission.in-flight", inFlight, AtomicInteger::get).register(meters);
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) return;
+        sampler.scheduleWithFixedDelay(this::adjust, sampleIntervalMs, sampleIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        sampler.shutdownNow();
+    }
+
+    /**
+     * Admits a send of {@code messages} messages from {@code sender}, or says why not and when to
+     * retry. An admitted ticket must be released once the send has been handled.
+     */
+    public Ticket admit(String sender, int messages) {
+        return admit(Collections.singletonMap(sender, messages));
+    }
+
+    /** Admits one send carrying messages from several senders, given how many each one sent. */
+    public Ticket admit(Map<String, Integer> messagesBySender) {
+        if (!enabled) return Ticket.FREE;
+        int now = inFlight.incrementAndGet();
+        if (now > limit) {
+            inFlight.decrementAndGet();
+            rejectedConcurrency.increment();
+            return Ticket.rejected("too many concurrent sends (limit " + limit + ")", 1);
+        }
+        if (backlog >= maxBacklog) {
+            inFlight.decrementAndGet();
+            rejectedBacklog.increment();
+            return Ticket.rejected("replication backlog of " + backlog + " messages", 1);
+        }
+        if (senderRate > 0) {
+            Map<Bucket, Integer> taken = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> e : messagesBySender.entrySet()) {
+                String sender = e.getKey() == null ? "" : e.getKey();
+                Bucket bucket = buckets.computeIfAbsent(sender, s -> new Bucket(senderBurst));
+                long waitMs = bucket.take(e.getValue(), senderRate, senderBurst);
+                if (waitMs > 0) {
+                    // the send is refused as a whole, so the senders already charged get their tokens back
+                    taken.forEach((b, n) -> b.refund(n, senderBurst));
+                    inFlight.decrementAndGet();
+                    rejectedRate.increment();
+                    return Ticket.rejected("sender " + e.getKey() + " is over " + (long) senderRate + " messages/s",
+                            Math.max(1, (waitMs + 999) / 1000));
+                }
+                taken.put(bucket, e.getValue());
+            }
+        }
+        peakInFlight.accumulateAndGet(now, Math::max);
+        return new Ticket(this);
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        completed.incrementAndGet();
+    }
+
+    // AIMD on the concurrency limit, driven by how fast peers ack; only moves while sends are completing
+    private void adjust() {
+        try {
+            latencyMs = repl.replicationLatencyMs();
+            backlog = repl.replicationBacklog();
+            int done = completed.getAndSet(0);
+            int peak = peakInFlight.getAndSet(inFlight.get());
+            admitted += done;
+            if (done > 0) {
+                int current = limit;
+                if (latencyMs > latencyTargetMs) {
+                    int next = Math.max(minLimit, current - Math.max(1, current / 10));
+                    if (next != current) {
+                        limit = next;
+                        decreases++;
+                        logger.debug("Replication acks take {}ms, send concurrency limit lowered to {}", latencyMs, next);
+                    }
+                } else if (peak * 2 >= current && current < maxLimit) {
+                    limit = current + 1;
+                    increases++;
+                }
+            }
+            long idleBefore = System.currentTimeMillis() - IDLE_BUCKET_MS;
+            buckets.values().removeIf(b -> b.usedAt < idleBefore);
+        } catch (Exception e) {
+            logger.warn("Admission sampling failed: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("enabled", enabled);
+        out.put("limit", limit);
+        out.put("minLimit", minLimit);
+        out.put("maxLimit", maxLimit);
+        out.put("inFlight", inFlight.get());
+        out.put("replicationLatencyMs", latencyMs);
+        out.put("latencyTargetMs", latencyTargetMs);
+        out.put("backlog", backlog);
+        out.put("maxBacklog", maxBacklog);
+        out.put("senderRate", senderRate);
+        out.put("senderBurst", senderBurst);
+        out.put("trackedSenders", buckets.size());
+        out.put("admitted", admitted);
+        out.put("rejectedConcurrency", (long) rejectedConcurrency.count());
+        out.put("rejectedBacklog", (long) rejectedBacklog.count());
+        out.put("rejectedRate", (long) rejectedRate.count());
+        out.put("limitIncreases", increases);
+        out.put("limitDecreases", decreases);
+        return out;
+    }
+
+    /** Outcome of {@link #admit}: either a slot to release when done, or a reason and retry hint. */
+    public static final class Ticket implements AutoCloseable {
+        static final Ticket FREE = new Ticket(null);
+
+        private final AdmissionControl owner;
+        private final String reason;
+        private final long retryAfterSeconds;
+        private boolean released;
+
+        private Ticket(AdmissionControl owner) {
+            this(owner, null, 0);
+        }
+
+        private Ticket(AdmissionControl owner, String reason, long retryAfterSeconds) {
+            this.owner = owner;
+            this.reason = reason;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Ticket rejected(String reason, long retryAfterSeconds) {
+            return new Ticket(null, reason, retryAfterSeconds);
+        }
+
+        public boolean admitted() { return reason == null; }
+
+        public String reason() { return reason; }
+
+        public long retryAfterSeconds() { return retryAfterSeconds; }
+
+        @Override
+        public void close() {
+            if (owner == null || released) return;
+            released = true;
+            owner.release();
+        }
+    }
+
+    // refilled lazily on each take
+    private static final class Bucket {
+        private final ReentrantLock lock = new ReentrantLock();
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        volatile long usedAt = System.currentTimeMillis();
+
+        Bucket(double burst) {
+            this.tokens = burst;
+        }
+
+        // takes n tokens and returns 0, or returns how many ms until the bucket could cover them
+        long take(int n, double rate, double burst) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+                refilledAt = now;
+                usedAt = System.currentTimeMillis();
+                double needed = Math.min(n, burst);
+                if (tokens >= needed) {
+                    tokens -= n;
+                    return 0;
+                }
+                return (long) Math.ceil((needed - tokens) * 1000 / rate);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void refund(int n, double burst) {
+            lock.lock();
+            try {
+                tokens = Math.min(burst, tokens + n);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.dms.server.antientropy;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.dms.server.partition.ConsistentHashRing;
+import com.dms.server.partition.PartitionManager;
+import com.dms.server.replication.PeerChannel;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.service.MessageService;
+import com.dms.server.service.ReplicationService;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background repair between replicas. Every round this node picks one peer and walks the
+ * {@link DigestTree} of the messages they should share: branch digests, then the leaves of
+ * differing branches, then the version stamps in differing leaves. Only versions the peer holds
+ * that would win here under the repository's last-writer-wins rule are fetched and applied.
+ *
+ * <p>Rounds only pull. Anything this node has that the peer lacks is picked up when the peer runs
+ * its own round against this node, so no node ever writes into another's store uninvited.
+ */
+@Service
+public class AntiEntropyService {
+    private static final Logger logger = LoggerFactory.getLogger(AntiEntropyService.class);
+    private static final TypeReference<Map<Integer, long[]>> LEAF_MAP = new TypeReference<>() {};
+    private static final TypeReference<List<VersionStamp>> STAMP_LIST = new TypeReference<>() {};
+    private static final String SYNC_PATH = "/api/messages/sync";
+    private static final int FETCH_CHUNK = 500;
+
+    private final MessageRepository repo;
+    private final MessageService messageService;
+    private final ReplicationService replication;
+    private final ZooKeeperConnector connector;
+    private final PartitionManager partitions;
+    private final ObjectMapper M = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final boolean enabled;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final int maxLeavesPerRound;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "anti-entropy");
+        t.setDaemon(true);
+        return t;
+    });
+    // trees this node serves to each requesting peer, rebuilt only after the store or the ring changed
+    private final Map<String, Cached> trees = new ConcurrentHashMap<>();
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private volatile Map<String, Object> lastRound = new LinkedHashMap<>();
+
+    public AntiEntropyService(MessageRepository repo, MessageService messageService, ReplicationService replication,
+                              ZooKeeperConnector connector, PartitionManager partitions,
+                              @Value("${antientropy.enabled:true}") boolean enabled,
+                              @Value("${antientropy.interval-ms:30000}") long intervalMs,
+                              @Value("${antientropy.max-leaves-per-round:512}") int maxLeavesPerRound,
+                              @Value("${replication.peer-timeout-ms:3000}") long timeoutMs) {
+        this.repo = repo;
+        this.messageService = messageService;
+        this.replication = replication;
+        this.connector = connector;
+        this.partitions = partitions;
+        this.enabled = enabled;
+        this.intervalMs = intervalMs;
+        this.maxLeavesPerRound = maxLeavesPerRound;
+        this.timeoutMs = timeoutMs;
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) return;
+        scheduler.scheduleWithFixedDelay(this::runRound, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void runRound() {
+        List<String> peers = replication.peerIds();
+        if (peers.isEmpty()) return;
+        String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+        try {
+            syncWith(peer);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.warn("Anti-entropy round with {} failed: {}", peer, e.getMessage());
+        }
+    }
+
+    /** Runs one repair round against {@code peer} and returns what it found. */
+    public Map<String, Object> syncWith(String peer) throws Exception {
+        long start = System.currentTimeMillis();
+        PeerChannel channel = replication.channelTo(peer);
+        if (channel == null) throw new IllegalArgumentException("not a current peer: " + peer);
+        DigestTree mine = tree(peer);
+        rounds.incrementAndGet();
+
+        long[] theirBranches = M.readValue(call(channel, "/digest", new byte[0]), long[].class);
+        List<Integer> branches = DigestTree.diff(mine.branches(), theirBranches);
+        List<Integer> leaves = new ArrayList<>();
+        if (!branches.isEmpty()) {
+            Map<Integer, long[]> theirLeaves = M.readValue(call(channel, "/leaves", M.writeValueAsBytes(branches)), LEAF_MAP);
+            for (int b : branches) {
+                long[] theirs = theirLeaves.get(b);
+                if (theirs == null) continue;
+                for (int i : DigestTree.diff(mine.leavesOf(b), theirs)) {
+                    if (leaves.size() < maxLeavesPerRound) leaves.add(b * DigestTree.LEAVES_PER_BRANCH + i);
+                }
+            }
+        }
+        List<String> wanted = new ArrayList<>();
+        if (!leaves.isEmpty()) {
+            List<VersionStamp> stamps = M.readValue(call(channel, "/versions", M.writeValueAsBytes(leaves)), STAMP_LIST);
+            for (VersionStamp v : stamps) {
+                if (repo.wouldAccept(v.getId(), v.getLamport(), v.getOriginNodeId())) wanted.add(v.getId());
+            }
+        }
+        int applied = 0;
+        for (int i = 0; i < wanted.size(); i += FETCH_CHUNK) {
+            List<String> chunk = wanted.subList(i, Math.min(wanted.size(), i + FETCH_CHUNK));
+            List<Message> fetched = MessageCodec.decodeBatch(call(channel, "/fetch", M.writeValueAsBytes(chunk)));
+            if (!fetched.isEmpty()) applied += messageService.acceptReplicaBatch(fetched).size();
+        }
+        repaired.addAndGet(applied);
+
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("peer", peer);
+        out.put("differingBranches", branches.size());
+        out.put("differingLeaves", leaves.size());
+        out.put("repaired", applied);
+        out.put("durationMs", System.currentTimeMillis() - start);
+        lastRound = out;
+        if (applied > 0) logger.info("Anti-entropy with {} repaired {} messages across {} leaves", peer, applied, leaves.size());
+        return out;
+    }
+
+    private byte[] call(PeerChannel channel, String path, byte[] body) throws Exception {
+        String node = URLEncoder.encode(connector.getNodeId(), StandardCharsets.UTF_8);
+        HttpResponse<byte[]> resp = channel.post(SYNC_PATH + path + "?node=" + node, "application/json", body)
+                .get(timeoutMs, TimeUnit.MILLISECONDS);
+        if (resp.statusCode() / 100 != 2) throw new IllegalStateException(path + " answered " + resp.statusCode());
+        return resp.body();
+    }
+
+    // ---- serving side: answers the rounds other nodes run against this one ----
+
+    public long[] branches(String requester) {
+        return tree(requester).branches();
+    }
+
+    public Map<Integer, long[]> leaves(String requester, List<Integer> branches) {
+        DigestTree t = tree(requester);
+        Map<Integer, long[]> out = new LinkedHashMap<>();
+        for (int b : branches) {
+            if (b >= 0 && b < DigestTree.BRANCHES) out.put(b, t.leavesOf(b));
+        }
+        return out;
+    }
+
+    public List<VersionStamp> versions(String requester, List<Integer> leaves) {
+        BitSet wanted = new BitSet(DigestTree.LEAVES);
+        for (int l : leaves) {
+            if (l >= 0 && l < DigestTree.LEAVES) wanted.set(l);
+        }
+        String self = connector.getNodeId();
+        List<VersionStamp> out = new ArrayList<>();
+        repo.forEachVersion((id, lamport, origin, receiver, topic, partition) -> {
+            if (wanted.get(DigestTree.leafOf(id)) && DigestTree.shared(origin, receiver, topic, partition, self, requester, partitions::owns)) {
+                out.add(new VersionStamp(id, lamport, origin));
+            }
+        });
+        return out;
+    }
+
+    public byte[] fetch(List<String> ids) {
+        List<Message> out = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Message m = repo.findById(id);
+            if (m != null) out.add(m);
+        }
+        return MessageCodec.encodeBatch(out);
+    }
+
+    private DigestTree tree(String peer) {
+        long version = repo.version();
+        ConsistentHashRing ring = partitions.ring();
+        Cached c = trees.get(peer);
+        if (c != null && c.version == version && c.ring == ring) return c.tree;
+        DigestTree t = DigestTree.build(repo, connector.getNodeId(), peer, partitions::owns);
+        trees.put(peer, new Cached(version, ring, t));
+        return t;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("enabled", enabled);
+        out.put("intervalMs", intervalMs);
+        out.put("rounds", rounds.get());
+        out.put("failures", failures.get());
+        out.put("repaired", repaired.get());
+        out.put("lastRound", lastRound);
+        return out;
+    }
+
+    private static final class Cached {
+        final long version;
+        // partition ownership decides what is shared, so a rebalance invalidates the tree too
+        final ConsistentHashRing ring;
+        final DigestTree tree;
+        Cached(long version, ConsistentHashRing ring, DigestTree tree) { this.version = version; this.ring = ring; this.tree = tree; }
+    }
+}
@@ -0,0 +1,91 @@
+package com.dms.server.antientropy;
+
+import com.dms.server.repository.MessageRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Two-level hash tree over the message versions two nodes are both expected to hold. Every
+ * version hashes (id, lamport, originNodeId) to 64 bits and is XORed into the leaf picked by its
+ * id, so two stores agree on a leaf exactly when they hold the same versions of the same ids.
+ * {@link #BRANCHES} top-level digests each cover {@link #LEAVES_PER_BRANCH} leaves; peers compare
+ * the top level first and only descend into branches that differ.
+ *
+ * <p>The set compared between nodes A and B is every broadcast, the unicasts between A and B, and
+ * the topic partitions both of them own. Anything else is not expected on both sides and is left out.
+ */
+public final class DigestTree {
+    public static final int BRANCHES = 64;
+    public static final int LEAVES_PER_BRANCH = 64;
+    public static final int LEAVES = BRANCHES * LEAVES_PER_BRANCH;
+
+    private final long[] leaves;
+
+    private DigestTree(long[] leaves) { this.leaves = leaves; }
+
+    /** Answers whether a node owns a topic partition. */
+    @FunctionalInterface
+    public interface Ownership {
+        boolean owns(String nodeId, String topic, int partition);
+    }
+
+    /** Builds the tree of versions in {@code repo} that both {@code self} and {@code peer} should hold. */
+    public static DigestTree build(MessageRepository repo, String self, String peer, Ownership ownership) {
+        long[] leaves = new long[LEAVES];
+        repo.forEachVersion((id, lamport, origin, receiver, topic, partition) -> {
+            if (shared(origin, receiver, topic, partition, self, peer, ownership)) leaves[leafOf(id)] ^= versionHash(id, lamport, origin);
+        });
+        return new DigestTree(leaves);
+    }
+
+    public static boolean shared(String origin, String receiver, String topic, int partition, String a, String b, Ownership ownership) {
+        if (topic != null) return ownership.owns(a, topic, partition) && ownership.owns(b, topic, partition);
+        if ("BROADCAST".equals(receiver)) return true;
+        return origin != null && receiver != null
+                && (origin.equals(a) || origin.equals(b)) && (receiver.equals(a) || receiver.equals(b));
+    }
+
+    public long[] branches() {
+        long[] out = new long[BRANCHES];
+        for (int i = 0; i < LEAVES; i++) out[i / LEAVES_PER_BRANCH] ^= leaves[i];
+        return out;
+    }
+
+    public long[] leavesOf(int branch) {
+        long[] out = new long[LEAVES_PER_BRANCH];
+        System.arraycopy(leaves, branch * LEAVES_PER_BRANCH, out, 0, LEAVES_PER_BRANCH);
+        return out;
+    }
+
+    public long leaf(int index) { return leaves[index]; }
+
+    /** Indices that differ between two equally sized digest arrays. */
+    public static List<Integer> diff(long[] mine, long[] theirs) {
+        List<Integer> out = new ArrayList<>();
+        for (int i = 0; i < mine.length && i < theirs.length; i++) {
+            if (mine[i] != theirs[i]) out.add(i);
+        }
+        return out;
+    }
+
+    public static int leafOf(String id) {
+        return (int) (hash(id) >>> (64 - 12)) & (LEAVES - 1);
+    }
+
+    static long versionHash(String id, long lamport, String origin) {
+        return mix(hash(id) ^ mix(lamport + 0x9E3779B97F4A7C15L) ^ Long.rotateLeft(hash(origin == null ? "" : origin), 31));
+    }
+
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,20 @@
+package com.dms.server.antientropy;
+
+/** Identity of one stored message version, as exchanged when comparing differing leaves. */
+public class VersionStamp {
+    private String id;
+    private long lamport;
+    private String originNodeId;
+
+    public VersionStamp() {}
+    public VersionStamp(String id, long lamport, String originNodeId) {
+        this.id = id; this.lamport = lamport; this.originNodeId = originNodeId;
+    }
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    public long getLamport() { return lamport; }
+    public void setLamport(long lamport) { this.lamport = lamport; }
+    public String getOriginNodeId() { return originNodeId; }
+    public void setOriginNodeId(String originNodeId) { this.originNodeId = originNodeId; }
+}
@@ -0,0 +1,353 @@
+package com.dms.server.causal;
+
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeSlots;
+import com.dms.common.model.VectorClock;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Causal delivery stage between replication and the repository.
+ *
+ * <p>The node keeps a vector clock of what it has delivered: for every origin, how many of that
+ * origin's broadcasts are in the store. Messages sent from this node are stamped with a copy of
+ * it, a broadcast first counting itself. A replicated broadcast is delivered once it is the next
+ * broadcast from its origin and everything else its origin had delivered is delivered here; a
+ * unicast only needs the latter. Anything else waits in the pending buffer.
+ *
+ * <p>Pending messages are indexed by the one dependency they are currently waiting on (a node's
+ * slot and the counter it has to reach), so a delivery only looks at the messages it can actually
+ * release. A message held longer than {@code causal.hold-timeout-ms}, or pushed out because the
+ * buffer holds {@code causal.max-pending} messages, is delivered anyway and its clock merged, so a
+ * lost dependency delays history rather than stalling it; anti-entropy fills the gap later.
+ *
+ * <p>Held messages are acked to the sender and live only in memory; if this node stops before
+ * releasing them, anti-entropy pulls them back from a peer.
+ */
+@Component
+public class CausalBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(CausalBuffer.class);
+    private final MessageRepository repo;
+    private final ZooKeeperConnector connector;
+    private final boolean enabled;
+    private final int maxPending;
+    private final long holdTimeoutMs;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "causal-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final VectorClock delivered;
+    // per slot: counter value that slot has to reach -> messages waiting for it
+    private final List<TreeMap<Long, List<Pending>>> waiting = new ArrayList<>();
+    // every held message in arrival order, for timeouts and overflow; released ones are skipped lazily
+    private final ArrayDeque<Pending> arrivals = new ArrayDeque<>();
+    private final Map<String, Pending> pendingById = new HashMap<>();
+    private final ArrayDeque<Pending> recheck = new ArrayDeque<>();
+
+    private long held;
+    private long releasedInOrder;
+    private long forcedByTimeout;
+    private long forcedByOverflow;
+    private long totalHoldMs;
+    private long maxHoldMs;
+    private int maxDepth;
+
+    public CausalBuffer(MessageRepository repo, ZooKeeperConnector connector,
+                        @Value("${causal.enabled:true}") boolean enabled,
+                        @Value("${causal.max-pending:10000}") int maxPending,
+                        @Value("${causal.hold-timeout-ms:5000}") long holdTimeoutMs) {
+        this.repo = repo;
+        this.connector = connector;
+        this.enabled = enabled;
+        this.maxPending = Math.max(1, maxPending);
+        this.holdTimeoutMs = Math.max(1, holdTimeoutMs);
+        // resume from the broadcasts recovered from the log
+        this.delivered = repo.recoveredFrontier().copy();
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) return;
+        long period = Math.max(10, holdTimeoutMs / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Stamps a message about to be stored by this node with the delivered clock, counting it first
+     * if it is a broadcast. Returns the stamp; the caller stores the message.
+     */
+    public VectorClock stampLocal(boolean broadcast) {
+        List<Message> released = new ArrayList<>();
+        lock.lock();
+        try {
+            VectorClock stamp = delivered.copy();
+            if (broadcast) stamp.increment(connector.getNodeId());
+            advance(stamp);
+            drain(released);
+            if (!released.isEmpty()) repo.upsertAll(released);
+            return stamp;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@link #stampLocal(boolean)} for a batch stored together: stamps each message in order under one lock. */
+    public void stampLocal(List<Message> batch) {
+        List<Message> released = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Message m : batch) {
+                VectorClock stamp = delivered.copy();
+                if ("BROADCAST".equals(m.getReceiver())) stamp.increment(connector.getNodeId());
+                advance(stamp);
+                m.setVectorClock(stamp);
+            }
+            drain(released);
+            if (!released.isEmpty()) repo.upsertAll(released);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores replicated messages seen here for the first time, each as soon as its dependencies
+     * are delivered. Messages released by them are stored in the same call, in causal order.
+     */
+    public void submit(List<Message> batch) {
+        if (!enabled) {
+            repo.upsertAll(batch);
+            return;
+        }
+        List<Message> ready = new ArrayList<>(batch.size());
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (Message m : batch) {
+                Pending p = new Pending(m, now);
+                if (place(p)) {
+                    deliver(p, ready);
+                } else {
+                    hold(p);
+                }
+                drain(ready);
+            }
+            while (pendingById.size() > maxPending) {
+                Pending oldest = oldest();
+                forcedByOverflow++;
+                deliver(oldest, ready);
+                drain(ready);
+            }
+            if (!ready.isEmpty()) repo.upsertAll(ready);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores newer versions of messages already seen. A version of a message that is still held
+     * replaces the held one if it wins, so it can't overtake the message's own dependencies.
+     */
+    public void update(List<Message> versions) {
+        List<Message> direct = new ArrayList<>(versions.size());
+        lock.lock();
+        try {
+            for (Message m : versions) {
+                Pending p = pendingById.get(m.getId());
+                if (p == null) {
+                    direct.add(m);
+                } else if (wins(m, p.message)) {
+                    p.message = m;
+                }
+            }
+            if (!direct.isEmpty()) repo.upsertAll(direct);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // finds the first dependency p is missing and records it on p; true if there is none
+    private boolean place(Pending p) {
+        VectorClock clock = p.message.getVectorClock();
+        String origin = p.message.getOriginNodeId();
+        int originSlot = origin == null ? -1 : NodeSlots.find(origin);
+        boolean broadcast = "BROADCAST".equals(p.message.getReceiver());
+        int width = clock.width();
+        for (int slot = 0; slot < width; slot++) {
+            long value = clock.get(slot);
+            if (value == 0) continue;
+            // a broadcast needs its origin's previous broadcast, everything else needs the counter itself
+            long needed = broadcast && slot == originSlot ? value - 1 : value;
+            if (delivered.get(slot) < needed) {
+                p.waitSlot = slot;
+                p.waitFor = needed;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void hold(Pending p) {
+        Pending previous = pendingById.put(p.message.getId(), p);
+        if (previous != null && previous != p) previous.done = true;
+        if (p.heldSince == 0) {
+            p.heldSince = p.arrived;
+            held++;
+            arrivals.addLast(p);
+        }
+        while (waiting.size() <= p.waitSlot) waiting.add(null);
+        TreeMap<Long, List<Pending>> bySlot = waiting.get(p.waitSlot);
+        if (bySlot == null) waiting.set(p.waitSlot, bySlot = new TreeMap<>());
+        bySlot.computeIfAbsent(p.waitFor, k -> new ArrayList<>(2)).add(p);
+        maxDepth = Math.max(maxDepth, pendingById.size());
+    }
+
+    private void deliver(Pending p, List<Message> out) {
+        p.done = true;
+        if (p.heldSince != 0) {
+            pendingById.remove(p.message.getId(), p);
+            long heldMs = System.currentTimeMillis() - p.heldSince;
+            totalHoldMs += heldMs;
+            maxHoldMs = Math.max(maxHoldMs, heldMs);
+        }
+        out.add(p.message);
+        advance(p.message.getVectorClock());
+    }
+
+    // merges a delivered clock and queues every message waiting on a counter it reached
+    private void advance(VectorClock clock) {
+        clock.forEach((slot, value) -> {
+            if (value <= delivered.get(slot)) return;
+            delivered.set(slot, value);
+            if (slot >= waiting.size()) return;
+            TreeMap<Long, List<Pending>> bySlot = waiting.get(slot);
+            if (bySlot == null) return;
+            NavigableMap<Long, List<Pending>> due = bySlot.headMap(value, true);
+            for (List<Pending> ps : due.values()) recheck.addAll(ps);
+            due.clear();
+        });
+    }
+
+    // re-examines released waiters, delivering those with nothing left to wait for
+    private void drain(List<Message> out) {
+        Pending p;
+        while ((p = recheck.pollFirst()) != null) {
+            if (p.done) continue;
+            if (place(p)) {
+                releasedInOrder++;
+                deliver(p, out);
+            } else {
+                hold(p);
+            }
+        }
+    }
+
+    private Pending oldest() {
+        Pending p;
+        while ((p = arrivals.peekFirst()) != null && p.done) arrivals.pollFirst();
+        return arrivals.pollFirst();
+    }
+
+    // delivers whatever has been held past the timeout
+    private void sweep() {
+        List<Message> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            Pending p;
+            while ((p = arrivals.peekFirst()) != null && (p.done || now - p.heldSince >= holdTimeoutMs)) {
+                arrivals.pollFirst();
+                if (p.done) continue;
+                forcedByTimeout++;
+                deliver(p, ready);
+                drain(ready);
+            }
+            if (!ready.isEmpty()) {
+                repo.upsertAll(ready);
+                logger.info("Causal buffer released {} messages after waiting {}ms for missing dependencies", ready.size(), holdTimeoutMs);
+            }
+        } catch (Exception e) {
+            logger.warn("Causal buffer sweep failed: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean wins(Message a, Message b) {
+        int cmp = Long.compare(a.getLamport(), b.getLamport());
+        if (cmp != 0) return cmp > 0;
+        String x = a.getOriginNodeId() == null ? "" : a.getOriginNodeId();
+        String y = b.getOriginNodeId() == null ? "" : b.getOriginNodeId();
+        return x.compareTo(y) > 0;
+    }
+
+    public Map<String, Object> stats() {
+        lock.lock();
+        try {
+            long released = releasedInOrder + forcedByTimeout + forcedByOverflow;
+            long oldestMs = 0;
+            for (Pending p : arrivals) {
+                if (!p.done) {
+                    oldestMs = System.currentTimeMillis() - p.heldSince;
+                    break;
+                }
+            }
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("enabled", enabled);
+            out.put("pending", pendingById.size());
+            out.put("maxPending", maxPending);
+            out.put("maxDepth", maxDepth);
+            out.put("held", held);
+            out.put("releasedInOrder", releasedInOrder);
+            out.put("forcedByTimeout", forcedByTimeout);
+            out.put("forcedByOverflow", forcedByOverflow);
+            out.put("avgHoldMs", released == 0 ? 0 : totalHoldMs / released);
+            out.put("maxHoldMs", maxHoldMs);
+            out.put("oldestHeldMs", oldestMs);
+            out.put("delivered", delivered.toMap());
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Pending {
+        Message message;
+        final long arrived;
+        long heldSince;
+        int waitSlot;
+        long waitFor;
+        boolean done;
+
+        Pending(Message message, long arrived) {
+            this.message = message;
+            this.arrived = arrived;
+        }
+    }
+}
@@ -2,20 +2,28 @@ package com.dms.server.controller;
 
 import com.dms.common.constants.Config;
 import com.dms.common.model.NodeInfo;
+import com.dms.server.admission.AdmissionControl;
+import com.dms.server.antientropy.AntiEntropyService;
+import com.dms.server.causal.CausalBuffer;
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.partition.PartitionRebalancer;
 import com.dms.server.zookeeper.ZooKeeperConnector;
 import com.dms.server.repository.MessageRepository;
+import com.dms.server.service.ConsumerService;
 import com.dms.server.service.ReplicationService;
+import com.dms.server.stream.EventStreamService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import org.apache.zookeeper.ZooKeeper;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.nio.charset.StandardCharsets;
 
@@ -28,20 +36,36 @@ public class AdminController {
 
     private final MessageRepository messageRepository;
     private final ReplicationService replicationService;
-
-    public AdminController(ZooKeeperConnector connector, MessageRepository messageRepository, ReplicationService replicationService) {
+    private final DedupIndex dedupIndex;
+    private final AntiEntropyService antiEntropy;
+    private final CausalBuffer causalBuffer;
+    private final PartitionRebalancer rebalancer;
+    private final ConsumerService consumerService;
+    private final EventStreamService eventStream;
+    private final AdmissionControl admission;
+
+    public AdminController(ZooKeeperConnector connector, MessageRepository messageRepository, ReplicationService replicationService,
+                           DedupIndex dedupIndex, AntiEntropyService antiEntropy, CausalBuffer causalBuffer,
+                           PartitionRebalancer rebalancer, ConsumerService consumerService,
+                           EventStreamService eventStream, AdmissionControl admission) {
         this.connector = connector;
         this.messageRepository = messageRepository;
         this.replicationService = replicationService;
+        this.dedupIndex = dedupIndex;
+        this.antiEntropy = antiEntropy;
+        this.causalBuffer = causalBuffer;
+        this.rebalancer = rebalancer;
+        this.consumerService = consumerService;
+        this.eventStream = eventStream;
+        this.admission = admission;
     }
 
     @GetMapping("/nodes")
     public ResponseEntity<List<NodeInfo>> nodes() throws Exception {
-        ZooKeeper zk = connector.getZooKeeper();
-        List<String> children = zk.getChildren(Config.ROOT + "/servers", false);
+        List<String> children = connector.readChildren(Config.ROOT + "/servers");
         List<NodeInfo> out = new ArrayList<>();
         for (String c : children) {
-            byte[] data = zk.getData(Config.ROOT + "/servers/" + c, false, null);
+            byte[] data = connector.readData(Config.ROOT + "/servers/" + c, null);
             NodeInfo ni = M.readValue(data, NodeInfo.class);
             out.add(ni);
         }
@@ -49,18 +73,68 @@ public class AdminController {
     }
 
     @GetMapping("/messages")
-    public ResponseEntity<List<com.dms.common.model.Message>> messages() {
+    public ResponseEntity<List<com.dms.common.model.Message>> messages(
+            @RequestParam(value = "sinceLamport", required = false) Long sinceLamport,
+            @RequestParam(value = "from", required = false) String from,
+            @RequestParam(value = "to", required = false) String to,
+            @RequestParam(value = "last", required = false) Integer last,
+            @RequestParam(value = "limit", defaultValue = "1000") int limit) {
+        // range reads are served from the mapped log; no parameters keeps the full dump
+        if (sinceLamport != null) {
+            return ResponseEntity.ok(messageRepository.findSinceLamport(sinceLamport, limit));
+        }
+        if (from != null || to != null) {
+            return ResponseEntity.ok(messageRepository.findBetween(
+                    from == null ? null : Instant.parse(from), to == null ? null : Instant.parse(to), limit));
+        }
+        if (last != null) {
+            return ResponseEntity.ok(messageRepository.findLatest(last));
+        }
         return ResponseEntity.ok(messageRepository.findAll());
     }
 
+    @GetMapping("/membership")
+    public ResponseEntity<Map<String, Object>> membership() {
+        return ResponseEntity.ok(connector.membershipStats());
+    }
+
+    @GetMapping("/dedup")
+    public ResponseEntity<Map<String, Object>> dedup() {
+        return ResponseEntity.ok(dedupIndex.stats());
+    }
+
+    @GetMapping("/causal")
+    public ResponseEntity<Map<String, Object>> causal() {
+        return ResponseEntity.ok(causalBuffer.stats());
+    }
+
+    @GetMapping("/consumers")
+    public ResponseEntity<Map<String, Object>> consumers() {
+        return ResponseEntity.ok(consumerService.stats());
+    }
+
+    @GetMapping("/stream")
+    public ResponseEntity<Map<String, Object>> stream() {
+        return ResponseEntity.ok(eventStream.stats());
+    }
+
+    @GetMapping("/admission")
+    public ResponseEntity<Map<String, Object>> admission() {
+        return ResponseEntity.ok(admission.stats());
+    }
+
+    @GetMapping("/partitions")
+    public ResponseEntity<Map<String, Object>> partitions() {
+        return ResponseEntity.ok(rebalancer.stats());
+    }
+
     @GetMapping("/heartbeats")
     public ResponseEntity<List<String>> heartbeats() throws Exception {
-        ZooKeeper zk = connector.getZooKeeper();
         String hbPath = connector.getHeartbeatsPath();
-        List<String> children = zk.getChildren(hbPath, false);
+        List<String> children = connector.readChildren(hbPath);
         List<String> beats = new ArrayList<>();
         for (String c : children) {
-            byte[] data = zk.getData(hbPath + "/" + c, false, null);
+            byte[] data = connector.readData(hbPath + "/" + c, null);
             String ts = new String(data, StandardCharsets.UTF_8);
             beats.add(c + ":" + ts);
         }
@@ -86,6 +160,27 @@ public class AdminController {
         }
     }
 
+    @GetMapping("/outbox")
+    public ResponseEntity<List<Map<String, Object>>> outbox() {
+        return ResponseEntity.ok(replicationService.outboxStats());
+    }
+
+    @GetMapping("/antientropy")
+    public ResponseEntity<Map<String, Object>> antiEntropy() {
+        return ResponseEntity.ok(antiEntropy.stats());
+    }
+
+    @GetMapping("/antientropy/run")
+    public ResponseEntity<?> runAntiEntropy(@RequestParam("peer") String peer) {
+        try {
+            return ResponseEntity.ok(antiEntropy.syncWith(peer));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (Exception e) {
+            return ResponseEntity.status(500).body("anti-entropy failed: " + e.getMessage());
+        }
+    }
+
     @GetMapping("/partition/enable")
     public ResponseEntity<String> enablePartitionMode() {
         replicationService.setPartitionMode(true);
@@ -100,7 +195,7 @@ public class AdminController {
 
     @GetMapping("/replay")
     public ResponseEntity<String> replay() {
-        replicationService.replayTo(new ArrayList<>(List.of())); // no-op placeholder
+        replicationService.catchUpAll();
         return ResponseEntity.ok("replay triggered");
     }
 
@@ -1,29 +1,104 @@
 package com.dms.server.controller;
 
 import com.dms.common.model.Message;
+import com.dms.server.admission.AdmissionControl;
+import com.dms.server.service.ConsumerService;
 import com.dms.server.service.MessageService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/api/messages")
 public class MessageController {
     @Autowired
     private MessageService messageService;
 
+    @Autowired
+    private ConsumerService consumerService;
+
+    @Autowired
+    private AdmissionControl admission;
+
+    // a saturated node answers 429 with Retry-After
     @PostMapping("/send")
     public ResponseEntity<?> send(@RequestBody Message m) {
-        try {
-            Message out = messageService.handleMessage(m);
-            return ResponseEntity.ok(out);
+        try (AdmissionControl.Ticket ticket = admission.admit(m.getSender(), 1)) {
+            if (!ticket.admitted()) return tooBusy(ticket);
+            return ResponseEntity.ok(messageService.handleMessage(m));
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception e) {
+            return ResponseEntity.status(500).body(e.getMessage() != null ? e.getMessage() : "Internal error");
+        }
+    }
+
+    // many messages in one request; answers one result per message, in order, with its status.
+    // Admitted as a whole, each message charged to its own sender
+    @PostMapping("/send/batch")
+    public ResponseEntity<?> sendBatch(@RequestBody List<Message> batch) {
+        Map<String, Integer> bySender = new LinkedHashMap<>();
+        for (Message m : batch) bySender.merge(m.getSender(), 1, Integer::sum);
+        try (AdmissionControl.Ticket ticket = admission.admit(bySender)) {
+            if (!ticket.admitted()) return tooBusy(ticket);
+            return ResponseEntity.ok(messageService.handleBatch(batch));
         } catch (IllegalArgumentException iae) {
             return ResponseEntity.badRequest().body(iae.getMessage());
         } catch (Exception e) {
             return ResponseEntity.status(500).body(e.getMessage() != null ? e.getMessage() : "Internal error");
         }
     }
+
+    private static ResponseEntity<String> tooBusy(AdmissionControl.Ticket ticket) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(ticket.retryAfterSeconds()))
+                .body(ticket.reason());
+    }
+
+    // messages for a receiver from an offset on; with waitMs the request is parked until one arrives
+    @GetMapping("/poll")
+    public CompletableFuture<Map<String, Object>> poll(@RequestParam String receiver,
+                                                       @RequestParam(required = false) String consumer,
+                                                       @RequestParam(required = false) Long fromOffset,
+                                                       @RequestParam(defaultValue = "100") int max,
+                                                       @RequestParam(defaultValue = "0") long waitMs,
+                                                       @RequestParam(defaultValue = "false") boolean includeSent) {
+        return consumerService.poll(receiver, consumer, fromOffset, max, waitMs, includeSent);
+    }
+
+    // offset is the next one the consumer wants to read, normally the nextOffset of its last poll
+    @PostMapping("/poll/commit")
+    public Map<String, Object> commit(@RequestParam String consumer, @RequestParam String receiver, @RequestParam long offset) {
+        return consumerService.commit(consumer, receiver, offset);
+    }
+
+    // a receiver's messages (or, with sender=, a sender's) in offset, lamport or time order, paged by cursor
+    @GetMapping("/inbox")
+    public ResponseEntity<?> inbox(@RequestParam(required = false) String receiver,
+                                   @RequestParam(required = false) String sender,
+                                   @RequestParam(defaultValue = "lamport") String order,
+                                   @RequestParam(required = false) String from,
+                                   @RequestParam(required = false) String to,
+                                   @RequestParam(required = false) String after,
+                                   @RequestParam(defaultValue = "100") int limit) {
+        if ((receiver == null) == (sender == null)) return ResponseEntity.badRequest().body("give exactly one of receiver or sender");
+        try {
+            return ResponseEntity.ok(messageService.readInbox(receiver != null ? receiver : sender, sender != null,
+                    order, from, to, after, limit));
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        }
+    }
 }
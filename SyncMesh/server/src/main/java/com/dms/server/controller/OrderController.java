@@ -0,0 +1,54 @@
+package com.dms.server.controller;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.dms.server.order.TotalOrderService;
+import com.dms.server.service.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/order")
+public class OrderController {
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private TotalOrderService order;
+
+    // the leader's append stream; an empty body is a heartbeat carrying the commit offset
+    @PostMapping(value = "/append", consumes = MessageCodec.CONTENT_TYPE)
+    public ResponseEntity<?> append(@RequestParam String leader, @RequestParam long epoch, @RequestParam long commit,
+                                    @RequestParam long from, @RequestParam(defaultValue = "-1") long prevEpoch,
+                                    @RequestBody(required = false) byte[] body) {
+        if (!order.isEnabled()) return ResponseEntity.status(404).body("total order mode is disabled");
+        List<Message> entries = body == null || body.length == 0 ? new ArrayList<>() : MessageCodec.decodeBatch(body);
+        Map<String, Object> reply = messageService.acceptOrdered(leader, epoch, commit, from, prevEpoch, entries);
+        // 409 tells a deposed leader to step down
+        return "stale-epoch".equals(reply.get("reason")) ? ResponseEntity.status(409).body(reply) : ResponseEntity.ok(reply);
+    }
+
+    @GetMapping("/status")
+    public ResponseEntity<Map<String, Object>> status() {
+        return ResponseEntity.ok(order.status());
+    }
+
+    // ordered log by offset (1-based); any node serves the committed prefix it has
+    @GetMapping("/log")
+    public ResponseEntity<?> log(@RequestParam(defaultValue = "1") long from,
+                                 @RequestParam(defaultValue = "1000") int limit,
+                                 @RequestParam(defaultValue = "false") boolean uncommitted) {
+        if (!order.isEnabled()) return ResponseEntity.status(404).body("total order mode is disabled");
+        return ResponseEntity.ok(order.read(Math.max(1, from), Math.max(1, limit), uncommitted));
+    }
+}
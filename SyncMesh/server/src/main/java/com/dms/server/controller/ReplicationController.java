@@ -1,21 +1,94 @@
 package com.dms.server.controller;
 
+import com.dms.common.codec.MessageCodec;
 import com.dms.common.model.Message;
+import com.dms.server.antientropy.AntiEntropyService;
+import com.dms.server.antientropy.VersionStamp;
 import com.dms.server.service.MessageService;
+import com.dms.server.service.ReplicationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+import java.util.Map;
+
 @RestController
 @RequestMapping("/api/messages")
 public class ReplicationController {
     @Autowired
     private MessageService messageService;
 
+    @Autowired
+    private AntiEntropyService antiEntropy;
+
+    @Autowired
+    private ReplicationService replicationService;
+
+    // bodyless request peers use to open (and upgrade to HTTP/2) their replication channel
+    @GetMapping("/replica/ping")
+    public String ping() {
+        return "ok";
+    }
+
     @PostMapping("/replica")
     public Message replicate(@RequestBody Message m) {
         return messageService.acceptReplica(m);
     }
+
+    // a client send a peer received and hands to a partition owner or the leader; admitted there, so
+    // only taken from a current peer's address
+    @PostMapping("/replica/forward")
+    public ResponseEntity<?> forwarded(@RequestParam("node") String node, @RequestBody Message m, HttpServletRequest request) {
+        if (!replicationService.isPeerAddress(node, request.getRemoteAddr())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("not a current peer: " + node);
+        }
+        try {
+            return ResponseEntity.ok(messageService.handleForwarded(m));
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception e) {
+            return ResponseEntity.status(500).body(e.getMessage() != null ? e.getMessage() : "Internal error");
+        }
+    }
+
+    // applies a whole batch in one pass and returns the ids that were applied
+    @PostMapping("/replica/batch")
+    public List<String> replicateBatch(@RequestBody List<Message> batch) {
+        return messageService.acceptReplicaBatch(batch);
+    }
+
+    // same batch in the compact binary wire format negotiated by the sending peer
+    @PostMapping(value = "/replica/batch", consumes = MessageCodec.CONTENT_TYPE)
+    public List<String> replicateBinaryBatch(@RequestBody byte[] body) {
+        return messageService.acceptReplicaBatch(MessageCodec.decodeBatch(body));
+    }
+
+    // anti-entropy: the requesting peer walks our digest tree of the messages it shares with us
+    @PostMapping("/sync/digest")
+    public long[] syncDigest(@RequestParam("node") String node) {
+        return antiEntropy.branches(node);
+    }
+
+    @PostMapping("/sync/leaves")
+    public Map<Integer, long[]> syncLeaves(@RequestParam("node") String node, @RequestBody List<Integer> branches) {
+        return antiEntropy.leaves(node, branches);
+    }
+
+    @PostMapping("/sync/versions")
+    public List<VersionStamp> syncVersions(@RequestParam("node") String node, @RequestBody List<Integer> leaves) {
+        return antiEntropy.versions(node, leaves);
+    }
+
+    @PostMapping(value = "/sync/fetch", produces = MessageCodec.CONTENT_TYPE)
+    public byte[] syncFetch(@RequestBody List<String> ids) {
+        return antiEntropy.fetch(ids);
+    }
 }
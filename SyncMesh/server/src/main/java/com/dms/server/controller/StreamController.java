@@ -0,0 +1,39 @@
+package com.dms.server.controller;
+
+import com.dms.server.stream.EventStreamService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.HashSet;
+import java.util.Set;
+
+@RestController
+@RequestMapping("/api/stream")
+public class StreamController {
+    @Autowired
+    private EventStreamService eventStream;
+
+    // server-sent events: message, membership, leader, heartbeat (types is a comma separated filter)
+    @GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(@RequestParam(required = false) String types,
+                             @RequestParam(required = false) String receiver,
+                             @RequestParam(defaultValue = "false") boolean includeSent,
+                             @RequestParam(required = false) Long fromOffset,
+                             @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        // a reconnecting EventSource sends Last-Event-ID; fromOffset covers the first connection
+        if (lastEventId == null && fromOffset != null) lastEventId = fromOffset - 1;
+        Set<String> wanted = new HashSet<>();
+        if (types != null) {
+            for (String t : types.split(",")) {
+                if (!t.trim().isEmpty()) wanted.add(t.trim());
+            }
+        }
+        return eventStream.subscribe(wanted, receiver == null || receiver.isEmpty() ? null : receiver, includeSent, lastEventId);
+    }
+}
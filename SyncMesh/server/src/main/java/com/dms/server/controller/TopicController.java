@@ -0,0 +1,75 @@
+package com.dms.server.controller;
+
+import com.dms.common.model.Message;
+import com.dms.server.admission.AdmissionControl;
+import com.dms.server.partition.PartitionManager;
+import com.dms.server.service.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/topics")
+public class TopicController {
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private PartitionManager partitions;
+
+    @Autowired
+    private AdmissionControl admission;
+
+    // publish to a topic; the message is stored on the owners of its key's partition. Admitted like a send
+    @PostMapping("/{topic}/messages")
+    public ResponseEntity<?> publish(@PathVariable String topic, @RequestBody Message m) {
+        m.setTopic(topic);
+        try (AdmissionControl.Ticket ticket = admission.admit(m.getSender(), 1)) {
+            if (!ticket.admitted()) {
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, Long.toString(ticket.retryAfterSeconds()))
+                        .body(ticket.reason());
+            }
+            return ResponseEntity.ok(messageService.handleMessage(m));
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception e) {
+            return ResponseEntity.status(500).body(e.getMessage() != null ? e.getMessage() : "Internal error");
+        }
+    }
+
+    // read partitions (comma separated, all by default) from whichever servers own them
+    @GetMapping("/{topic}/messages")
+    public ResponseEntity<?> read(@PathVariable String topic,
+                                  @RequestParam(required = false) String partition,
+                                  @RequestParam(defaultValue = "1000") int limit,
+                                  @RequestParam(defaultValue = "false") boolean local) {
+        List<Integer> parts = new ArrayList<>();
+        try {
+            if (partition != null && !partition.isEmpty()) {
+                for (String p : partition.split(",")) parts.add(Integer.parseInt(p.trim()));
+            }
+            return ResponseEntity.ok(messageService.readTopic(topic, parts, Math.max(1, limit), local));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().body("partition must be a comma separated list of numbers");
+        } catch (Exception e) {
+            return ResponseEntity.status(502).body(e.getMessage() != null ? e.getMessage() : "Internal error");
+        }
+    }
+
+    @GetMapping("/{topic}/partitions")
+    public ResponseEntity<?> partitions(@PathVariable String topic) {
+        return ResponseEntity.ok(partitions.assignments(topic));
+    }
+}
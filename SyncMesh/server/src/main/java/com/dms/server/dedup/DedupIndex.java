@@ -0,0 +1,372 @@
+package com.dms.server.dedup;
+
+import com.dms.server.repository.MessageRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded record of recently processed message ids.
+ *
+ * <p>Ids are reduced to 128 bits (a canonical UUID id is used as-is, anything else is hashed) and
+ * kept as primitive longs in two layers:
+ * <ul>
+ *   <li>an exact window: lock-striped open-addressing tables split into generations. The oldest
+ *       generation is dropped when the newest fills up or ages past {@code window-ms / generations},
+ *       so the window never holds more than {@code dedup.max-entries} ids;</li>
+ *   <li>a rotating Bloom filter that remembers ids for much longer in a few bits each. A filter hit
+ *       for an id outside the exact window is only a "maybe", so it is confirmed against the
+ *       repository before the message is treated as a duplicate; misses there are counted as
+ *       false positives.</li>
+ * </ul>
+ */
+@Component
+public class DedupIndex {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long generationMs;
+    private final Predicate<String> authority;
+    private final long bloomEntries;
+    private final int bloomBits;
+    private final int bloomHashes;
+    private volatile AtomicLongArray bloomCurrent;
+    private volatile AtomicLongArray bloomPrevious;
+    private final AtomicLong bloomInserts = new AtomicLong();
+    private final ReentrantLock bloomRotateLock = new ReentrantLock();
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bloomHits = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong bloomRotations = new AtomicLong();
+
+    @Autowired
+    public DedupIndex(MessageRepository repo,
+                      @Value("${dedup.max-entries:262144}") int maxEntries,
+                      @Value("${dedup.window-ms:600000}") long windowMs,
+                      @Value("${dedup.generations:4}") int generations,
+                      @Value("${dedup.bloom.entries:2000000}") long bloomEntries,
+                      @Value("${dedup.bloom.fpp:0.001}") double bloomFpp) {
+        this(repo::contains, maxEntries, windowMs, generations, bloomEntries, bloomFpp);
+    }
+
+    /**
+     * @param authority answers whether an id really was processed; consulted only on Bloom hits
+     *                  that the exact window cannot confirm
+     */
+    public DedupIndex(Predicate<String> authority, int maxEntries, long windowMs, int generations,
+                      long bloomEntries, double bloomFpp) {
+        this.authority = authority;
+        int gens = Math.max(2, generations);
+        this.generationMs = Math.max(1, windowMs / gens);
+        int perGeneration = Math.max(16, maxEntries / (STRIPES * gens));
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(gens, perGeneration);
+        // each of the two filters covers bloomEntries ids at the requested false positive rate
+        this.bloomEntries = Math.max(1, bloomEntries);
+        double fpp = Math.min(0.5, Math.max(1e-9, bloomFpp));
+        long bits = (long) Math.ceil(-this.bloomEntries * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bloomBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        this.bloomHashes = Math.max(1, (int) Math.round((double) bloomBits / this.bloomEntries * Math.log(2)));
+        this.bloomCurrent = new AtomicLongArray((bloomBits + 63) / 64);
+        this.bloomPrevious = new AtomicLongArray((bloomBits + 63) / 64);
+    }
+
+    /**
+     * Records the id and returns {@code true} if it had not been seen before, {@code false} if it is
+     * a duplicate. Safe to call from any number of request threads.
+     */
+    public boolean markSeen(String id) {
+        if (id == null) return true;
+        long[] key = key(id);
+        long hi = key[0], lo = key[1];
+        Stripe s = stripeOf(hi, lo);
+        s.lock.lock();
+        try {
+            s.rotateIfDue(System.currentTimeMillis());
+            if (s.contains(hi, lo)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            if (bloomContains(hi, lo)) {
+                bloomHits.incrementAndGet();
+                if (authority.test(id)) {
+                    s.insert(hi, lo);
+                    duplicates.incrementAndGet();
+                    return false;
+                }
+                falsePositives.incrementAndGet();
+            }
+            s.insert(hi, lo);
+        } finally {
+            s.lock.unlock();
+        }
+        bloomAdd(hi, lo);
+        return true;
+    }
+
+    /**
+     * Takes back a {@link #markSeen} whose message was then not stored, so a retry is processed
+     * instead of being answered as a duplicate. The id stays in the Bloom filter, but a filter hit
+     * is confirmed against the repository, which does not hold it.
+     */
+    public void forget(String id) {
+        if (id == null) return;
+        long[] key = key(id);
+        Stripe s = stripeOf(key[0], key[1]);
+        s.lock.lock();
+        try {
+            for (Generation g : s.generations) {
+                if (g.count > 0) g.remove(key[0], key[1]);
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /** Ids currently held in the exact window. */
+    public long size() {
+        long n = 0;
+        for (Stripe s : stripes) n += s.size();
+        return n;
+    }
+
+    public Map<String, Object> stats() {
+        long exactBytes = 0;
+        for (Stripe s : stripes) exactBytes += s.bytes();
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("entries", size());
+        out.put("capacity", (long) STRIPES * stripes[0].generations.length * stripes[0].capacity);
+        out.put("duplicates", duplicates.get());
+        out.put("evictions", evictions.get());
+        out.put("bloomHits", bloomHits.get());
+        out.put("falsePositives", falsePositives.get());
+        out.put("bloomRotations", bloomRotations.get());
+        out.put("memoryBytes", exactBytes + 2L * bloomCurrent.length() * Long.BYTES);
+        return out;
+    }
+
+    public long duplicates() { return duplicates.get(); }
+    public long evictions() { return evictions.get(); }
+    public long falsePositives() { return falsePositives.get(); }
+
+    private boolean bloomContains(long hi, long lo) {
+        return bloomTest(bloomCurrent, hi, lo) || bloomTest(bloomPrevious, hi, lo);
+    }
+
+    private boolean bloomTest(AtomicLongArray bits, long hi, long lo) {
+        long h1 = mix(hi), h2 = mix(lo) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void bloomAdd(long hi, long lo) {
+        AtomicLongArray bits = bloomCurrent;
+        long h1 = mix(hi), h2 = mix(lo) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long cur;
+            while (((cur = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, cur, cur | mask)) {
+                // retry until the bit sticks
+            }
+        }
+        if (bloomInserts.incrementAndGet() >= bloomEntries) rotateBloom();
+    }
+
+    // the current filter becomes the previous one and a fresh one takes its place, so an id stays
+    // in the filter for between one and two filter lifetimes
+    private void rotateBloom() {
+        if (!bloomRotateLock.tryLock()) return;
+        try {
+            if (bloomInserts.get() < bloomEntries) return;
+            bloomPrevious = bloomCurrent;
+            bloomCurrent = new AtomicLongArray(bloomPrevious.length());
+            bloomInserts.set(0);
+            bloomRotations.incrementAndGet();
+        } finally {
+            bloomRotateLock.unlock();
+        }
+    }
+
+    private static long[] key(String id) {
+        long[] key = parseUuid(id);
+        if (key == null) key = new long[]{hash(id, 0x9E3779B97F4A7C15L), hash(id, 0xC2B2AE3D27D4EB4FL)};
+        if (key[0] == 0 && key[1] == 0) key[1] = 1; // (0, 0) marks an empty slot
+        return key;
+    }
+
+    private Stripe stripeOf(long hi, long lo) {
+        return stripes[(int) ((mix(hi ^ lo) >>> 32) & (STRIPES - 1))];
+    }
+
+    private static long[] parseUuid(String id) {
+        if (id.length() != 36 || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-') return null;
+        long hi = 0, lo = 0;
+        int nibbles = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (c == '-') continue;
+            int v = Character.digit(c, 16);
+            if (v < 0) return null;
+            if (nibbles < 16) hi = (hi << 4) | v;
+            else lo = (lo << 4) | v;
+            nibbles++;
+        }
+        return nibbles == 32 ? new long[]{hi, lo} : null;
+    }
+
+    private static long hash(String s, long seed) {
+        long h = seed ^ s.length();
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Generation[] generations;
+        final int capacity;
+        int newest;
+
+        Stripe(int count, int capacity) {
+            this.capacity = capacity;
+            this.generations = new Generation[count];
+            for (int i = 0; i < count; i++) generations[i] = new Generation(capacity);
+            generations[0].startedAt = System.currentTimeMillis();
+        }
+
+        void rotateIfDue(long now) {
+            Generation g = generations[newest];
+            if (g.count < capacity && now - g.startedAt < generationMs) return;
+            newest = (newest + 1) % generations.length;
+            Generation oldest = generations[newest];
+            evictions.addAndGet(oldest.count);
+            oldest.clear(now);
+        }
+
+        boolean contains(long hi, long lo) {
+            for (Generation g : generations) {
+                if (g.count > 0 && g.contains(hi, lo)) return true;
+            }
+            return false;
+        }
+
+        void insert(long hi, long lo) {
+            Generation g = generations[newest];
+            if (g.count >= capacity) {
+                rotateIfDue(System.currentTimeMillis());
+                g = generations[newest];
+            }
+            g.insert(hi, lo);
+        }
+
+        long size() {
+            lock.lock();
+            try {
+                long n = 0;
+                for (Generation g : generations) n += g.count;
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytes() {
+            long n = 0;
+            for (Generation g : generations) n += (long) g.slots.length * Long.BYTES;
+            return n;
+        }
+    }
+
+    // open addressing with linear probing over (hi, lo) pairs, kept at most half full
+    private static final class Generation {
+        final long[] slots;
+        final int mask;
+        int count;
+        long startedAt;
+
+        Generation(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.slots = new long[tableSize * 2];
+            this.mask = tableSize - 1;
+        }
+
+        int home(long hi, long lo) {
+            return (int) mix(hi ^ Long.rotateLeft(lo, 17)) & mask;
+        }
+
+        boolean contains(long hi, long lo) {
+            int i = home(hi, lo);
+            while (true) {
+                long h = slots[i * 2], l = slots[i * 2 + 1];
+                if (h == 0 && l == 0) return false;
+                if (h == hi && l == lo) return true;
+                i = (i + 1) & mask;
+            }
+        }
+
+        void insert(long hi, long lo) {
+            int i = home(hi, lo);
+            while (true) {
+                long h = slots[i * 2], l = slots[i * 2 + 1];
+                if (h == 0 && l == 0) break;
+                if (h == hi && l == lo) return;
+                i = (i + 1) & mask;
+            }
+            slots[i * 2] = hi;
+            slots[i * 2 + 1] = lo;
+            count++;
+        }
+
+        // backward-shift deletion: later entries of the probe run move up so lookups still reach them
+        void remove(long hi, long lo) {
+            int i = home(hi, lo);
+            while (true) {
+                long h = slots[i * 2], l = slots[i * 2 + 1];
+                if (h == 0 && l == 0) return;
+                if (h == hi && l == lo) break;
+                i = (i + 1) & mask;
+            }
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                long h = slots[j * 2], l = slots[j * 2 + 1];
+                if (h == 0 && l == 0) break;
+                int k = home(h, l);
+                // entries whose home lies cyclically in (i, j] are still reachable where they are
+                boolean reachable = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+                if (reachable) continue;
+                slots[i * 2] = h;
+                slots[i * 2 + 1] = l;
+                i = j;
+            }
+            slots[i * 2] = 0;
+            slots[i * 2 + 1] = 0;
+            count--;
+        }
+
+        void clear(long now) {
+            Arrays.fill(slots, 0);
+            count = 0;
+            startedAt = now;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.dms.server.execution;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * {@code threads.virtual.enabled=true}: Tomcat runs every request on its own virtual thread
+ * instead of its {@code server.tomcat.threads.max} worker pool, so requests that block (forwarding
+ * to a partition owner or the total order leader, waiting for a group fsync with
+ * {@code storage.sync-writes}) park cheaply rather than holding a platform thread.
+ * {@code ReplicationService} reads the same flag for its fan-out executor. Needs a Java 21
+ * runtime; on an older one the server logs a warning and keeps its thread pools.
+ */
+@Configuration
+@ConditionalOnProperty(name = "threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadConfig {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadRequests() {
+        return factory -> {
+            if (!VirtualThreads.available()) {
+                logger.warn("threads.virtual.enabled is set but {} has no virtual threads, keeping the Tomcat worker pool", Runtime.version());
+                return;
+            }
+            factory.addProtocolHandlerCustomizers(handler -> handler.setExecutor(VirtualThreads.newPerTaskExecutor("http-")));
+            logger.info("Handling requests on virtual threads");
+        };
+    }
+}
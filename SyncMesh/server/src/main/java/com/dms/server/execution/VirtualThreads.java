@@ -0,0 +1,63 @@
+package com.dms.server.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads when the runtime has them. The server is compiled for Java 17, so the Java 21
+ * API ({@code Thread.ofVirtual()}, {@code Executors.newThreadPerTaskExecutor}) is looked up
+ * reflectively once; on an older runtime {@link #available()} is false and callers keep their
+ * platform thread pools.
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method PER_TASK;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, perTask = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // a preview build (19, 20) has the methods but refuses to use them without --enable-preview
+            factory.invoke(ofVirtual.invoke(null));
+        } catch (Throwable e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        PER_TASK = perTask;
+    }
+
+    private VirtualThreads() {}
+
+    public static boolean available() {
+        return OF_VIRTUAL != null;
+    }
+
+    /** Factory for virtual threads named {@code prefix0}, {@code prefix1}, ... */
+    public static ThreadFactory factory(String prefix) {
+        if (!available()) throw new UnsupportedOperationException("virtual threads need a Java 21 runtime, this is " + Runtime.version());
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("could not create a virtual thread factory", e);
+        }
+    }
+
+    /** An unbounded executor that starts a new virtual thread for every task. */
+    public static ExecutorService newPerTaskExecutor(String prefix) {
+        try {
+            return (ExecutorService) PER_TASK.invoke(null, factory(prefix));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("could not create a virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.dms.server.metrics;
+
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gauges over state the services already keep: stored messages, ids in the duplicate-detection
+ * window, cluster members and leadership. They are read when the registry is scraped, so they
+ * cost nothing on the message path. The services register their own timers and counters.
+ *
+ * <p>Not a {@code MeterBinder}: binders are applied while the registry is being built, before the
+ * connector it observes (which needs the registry itself) can exist.
+ */
+@Component
+public class ServerMetrics {
+
+    public ServerMetrics(MeterRegistry registry, MessageRepository repo, DedupIndex seen, ZooKeeperConnector connector) {
+        Gauge.builder("dms.repository.messages", repo, MessageRepository::size)
+                .description("Messages in the store").register(registry);
+        Gauge.builder("dms.dedup.entries", seen, DedupIndex::size)
+                .description("Ids in the exact duplicate-detection window").register(registry);
+        Gauge.builder("dms.cluster.members", connector, c -> c.getMembers().size())
+                .description("Servers registered in ZooKeeper, this one included").register(registry);
+        Gauge.builder("dms.leader", connector, c -> c.isLeader() ? 1 : 0)
+                .description("1 while this node is the elected leader").register(registry);
+    }
+}
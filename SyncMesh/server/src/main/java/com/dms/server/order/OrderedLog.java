@@ -0,0 +1,61 @@
+package com.dms.server.order;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the cluster-wide ordered log: offset (1-based, contiguous) to message id and the epoch
+ * of the leader that sequenced it. Bodies stay in the
+ * {@link com.dms.server.repository.MessageRepository}; this only records their order and how far
+ * it is committed. Not thread-safe, callers hold the owning service's lock.
+ */
+final class OrderedLog {
+    private final List<String> ids = new ArrayList<>();
+    private final List<Long> epochs = new ArrayList<>();
+    private long commit;
+
+    long last() { return ids.size(); }
+
+    long commit() { return commit; }
+
+    /** Id at {@code offset}, or {@code null} outside {@code 1..last()}. */
+    String idAt(long offset) {
+        return offset >= 1 && offset <= ids.size() ? ids.get((int) (offset - 1)) : null;
+    }
+
+    /** Epoch of the entry at {@code offset}, or -1 outside {@code 1..last()}. */
+    long epochAt(long offset) {
+        return offset >= 1 && offset <= epochs.size() ? epochs.get((int) (offset - 1)) : -1;
+    }
+
+    long append(String id, long epoch) {
+        ids.add(id);
+        epochs.add(epoch);
+        return ids.size();
+    }
+
+    /** Drops every entry after {@code offset} and returns their ids; committed entries are never dropped. */
+    List<String> truncateAfter(long offset) {
+        long keep = Math.max(offset, commit);
+        List<String> dropped = new ArrayList<>();
+        while (ids.size() > keep) {
+            dropped.add(ids.remove(ids.size() - 1));
+            epochs.remove(epochs.size() - 1);
+        }
+        return dropped;
+    }
+
+    /** Moves the commit offset forward, never past the last entry. */
+    boolean advanceCommit(long offset) {
+        long next = Math.min(offset, last());
+        if (next <= commit) return false;
+        commit = next;
+        return true;
+    }
+
+    List<String> range(long from, long to) {
+        List<String> out = new ArrayList<>();
+        for (long o = Math.max(1, from); o <= Math.min(to, last()); o++) out.add(ids.get((int) (o - 1)));
+        return out;
+    }
+}
@@ -0,0 +1,601 @@
+package com.dms.server.order;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.replication.PeerChannel;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.service.ReplicationService;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional total-order mode ({@code total-order.enabled}): a single ordered log per cluster,
+ * sequenced by the leader the ZooKeeper election already picks.
+ *
+ * <p>Writes go to the leader, which gives each one the next offset, stores it and streams the log
+ * to every follower. Each follower has its own pipelined stream: up to
+ * {@code total-order.max-in-flight} batches of {@code total-order.batch-size} entries are on the
+ * wire at once, so a slow round trip doesn't serialize commits. An entry is committed once a
+ * majority of {@code total-order.cluster-size} nodes (the leader included) has it, and the write
+ * that created it returns then. Like Raft, a leader only counts replicas of entries from its own
+ * epoch; earlier entries commit along with the first of those. Idle followers get an empty append
+ * every {@code total-order.heartbeat-ms} that carries the commit offset.
+ *
+ * <p>Leaders are fenced by epoch, the sequence number of their election znode: a follower rejects
+ * appends from an epoch older than one it has seen. Every entry records the epoch that sequenced
+ * it, and every append names the epoch of the entry before its first one, so a follower that is
+ * missing entries or holds a different history answers with where it actually is and the leader
+ * resends from there; entries whose epoch differs from the leader's are dropped. A newly elected
+ * leader waits until a majority of the cluster has reported its log, then copies the one with the
+ * highest (last epoch, last offset), so entries a majority had are never lost. Dropped entries
+ * never committed, so they are withdrawn from the repository as well, durably.
+ *
+ * <p>Every node serves committed entries by offset.
+ */
+@Service
+public class TotalOrderService {
+    private static final Logger logger = LoggerFactory.getLogger(TotalOrderService.class);
+    private static final TypeReference<List<Message>> MESSAGE_LIST = new TypeReference<>() {};
+    private static final TypeReference<Map<String, Object>> REPLY = new TypeReference<>() {};
+    private static final long RETRY_BACKOFF_MS = 200;
+
+    private final MessageRepository repo;
+    private final ReplicationService replication;
+    private final ZooKeeperConnector connector;
+    private final DedupIndex seen;
+    private final boolean enabled;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final int clusterSize;
+    private final long heartbeatMs;
+    private final long commitTimeoutMs;
+    private final ObjectMapper M = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "total-order");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final OrderedLog log = new OrderedLog();
+    // offset -> write waiting for that offset to commit; leader only
+    private final TreeMap<Long, CompletableFuture<Long>> waiters = new TreeMap<>();
+    private final Map<String, FollowerStream> streams = new LinkedHashMap<>();
+    private volatile boolean leading;
+    private long leaderEpoch = -1;
+    // highest epoch any leader has appended under, as far as this node knows
+    private long highestEpoch = -1;
+    private String knownLeader;
+
+    private long appended;
+    private long truncated;
+    private long rejectedStale;
+    // election epoch for which a missing quorum was already logged
+    private long quorumWarnedEpoch = -1;
+
+    public TotalOrderService(MessageRepository repo, ReplicationService replication, ZooKeeperConnector connector,
+                             DedupIndex seen,
+                             @Value("${total-order.enabled:false}") boolean enabled,
+                             @Value("${total-order.batch-size:256}") int batchSize,
+                             @Value("${total-order.max-in-flight:4}") int maxInFlight,
+                             @Value("${total-order.cluster-size:3}") int clusterSize,
+                             @Value("${total-order.heartbeat-ms:200}") long heartbeatMs,
+                             @Value("${total-order.commit-timeout-ms:5000}") long commitTimeoutMs) {
+        this.repo = repo;
+        this.replication = replication;
+        this.connector = connector;
+        this.seen = seen;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.clusterSize = Math.max(1, clusterSize);
+        this.heartbeatMs = Math.max(10, heartbeatMs);
+        this.commitTimeoutMs = Math.max(1, commitTimeoutMs);
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) return;
+        recover();
+        ticker.scheduleWithFixedDelay(this::tick, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /** True once this node has taken over as leader and can sequence writes. */
+    public boolean isLeader() { return leading; }
+
+    // rebuilds the index from the sequence numbers in the recovered store; the commit offset is
+    // relearned from the leader
+    private void recover() {
+        TreeMap<Long, Message> bySequence = new TreeMap<>();
+        for (Message m : repo.findAll()) {
+            if (m.getSequence() > 0) bySequence.putIfAbsent(m.getSequence(), m);
+        }
+        long expected = 1;
+        for (Map.Entry<Long, Message> e : bySequence.entrySet()) {
+            if (e.getKey() != expected) break;
+            log.append(e.getValue().getId(), e.getValue().getSequenceEpoch());
+            highestEpoch = Math.max(highestEpoch, e.getValue().getSequenceEpoch());
+            expected++;
+        }
+        if (log.last() > 0) logger.info("Total order log recovered {} entries", log.last());
+    }
+
+    private void tick() {
+        try {
+            // never the connector's fallback to self: a node cut off from ZooKeeper must not
+            // sequence, least of all in the epoch of the leader that replaced it
+            long epoch = connector.getOwnLeaderEpoch();
+            boolean elected = epoch >= 0;
+            if (elected && leading && epoch != leaderEpoch) {
+                lock.lock();
+                try {
+                    stepDown("re-elected for epoch " + epoch);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (elected && !leading) {
+                boolean stale;
+                lock.lock();
+                try {
+                    stale = epoch < highestEpoch;
+                } finally {
+                    lock.unlock();
+                }
+                if (!stale && catchUpFromPeers(epoch)) becomeLeader(epoch);
+            } else if (!elected && leading) {
+                lock.lock();
+                try {
+                    stepDown("no longer elected in ZooKeeper (leader seen as " + connector.getLeaderId() + ")");
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (leading) {
+                lock.lock();
+                try {
+                    syncStreams();
+                    for (FollowerStream s : streams.values()) pump(s);
+                    advanceCommit();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Total order tick failed: {}", e.getMessage());
+        }
+    }
+
+    private void becomeLeader(long epoch) {
+        lock.lock();
+        try {
+            leaderEpoch = epoch;
+            highestEpoch = Math.max(highestEpoch, epoch);
+            knownLeader = connector.getNodeId();
+            leading = true;
+            syncStreams();
+            logger.info("Total order leader for epoch {} at offset {} (committed {})", epoch, log.last(), log.commit());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int majority() {
+        return clusterSize / 2 + 1;
+    }
+
+    /**
+     * Raft's election restriction, applied after ZooKeeper picked the leader: once a majority of the
+     * cluster (this node included) has reported its log, adopts the one with the highest (last
+     * epoch, last offset). Every committed entry is on at least one of them. Returns false while
+     * too few nodes answer, so the election is retried on a later tick.
+     */
+    private boolean catchUpFromPeers(long epoch) {
+        String best = null;
+        long bestEpoch;
+        long bestLast;
+        long from;
+        lock.lock();
+        try {
+            bestLast = log.last();
+            bestEpoch = log.epochAt(bestLast);
+            from = log.commit() + 1;
+        } finally {
+            lock.unlock();
+        }
+        int answered = 1;
+        for (String peer : replication.peerIds()) {
+            PeerChannel channel = replication.channelTo(peer);
+            if (channel == null) continue;
+            try {
+                HttpResponse<byte[]> resp = channel.get("/api/order/status").get(commitTimeoutMs, TimeUnit.MILLISECONDS);
+                if (resp.statusCode() / 100 != 2) continue;
+                Map<String, Object> status = M.readValue(resp.body(), REPLY);
+                answered++;
+                long last = number(status, "last");
+                long lastEpoch = number(status, "lastEpoch");
+                if (lastEpoch > bestEpoch || (lastEpoch == bestEpoch && last > bestLast)) {
+                    best = peer;
+                    bestEpoch = lastEpoch;
+                    bestLast = last;
+                }
+            } catch (Exception e) {
+                logger.warn("Total order status of {} unavailable: {}", peer, e.getMessage());
+            }
+        }
+        if (answered < majority()) {
+            if (quorumWarnedEpoch != epoch) {
+                quorumWarnedEpoch = epoch;
+                logger.warn("Elected for total order epoch {} but only {} of {} nodes answered; waiting for a majority", epoch, answered, clusterSize);
+            }
+            return false;
+        }
+        if (best == null) return true;
+        PeerChannel channel = replication.channelTo(best);
+        try {
+            while (channel != null && from <= bestLast) {
+                HttpResponse<byte[]> resp = channel.get("/api/order/log?uncommitted=true&from=" + from + "&limit=" + batchSize)
+                        .get(commitTimeoutMs, TimeUnit.MILLISECONDS);
+                if (resp.statusCode() / 100 != 2) break;
+                List<Message> entries = M.readValue(resp.body(), MESSAGE_LIST);
+                if (entries.isEmpty()) break;
+                lock.lock();
+                try {
+                    if (from > log.last() + 1) break;
+                    store(from, entries);
+                } finally {
+                    lock.unlock();
+                }
+                from += entries.size();
+            }
+            lock.lock();
+            try {
+                // a longer tail from an older epoch loses to the adopted log
+                if (from > bestLast) truncateAfter(bestLast);
+            } finally {
+                lock.unlock();
+            }
+            logger.info("Total order log caught up to offset {} (epoch {}) from {}", from - 1, bestEpoch, best);
+        } catch (Exception e) {
+            logger.warn("Total order catch-up from {} stopped at offset {}: {}", best, from - 1, e.getMessage());
+            return false;
+        }
+        return from > bestLast;
+    }
+
+    /**
+     * Sequences a write on the leader: stores it at the next offset and waits until a majority has
+     * it. Fails if this node isn't the leader or the write doesn't commit within
+     * {@code total-order.commit-timeout-ms}; in the latter case it stays in the log and may still
+     * commit later.
+     */
+    public long append(Message m) throws Exception {
+        CompletableFuture<Long> committed = new CompletableFuture<>();
+        long offset;
+        lock.lock();
+        try {
+            if (!leading) throw new IllegalStateException("not the total order leader; leader is " + connector.getLeaderId());
+            offset = log.last() + 1;
+            m.setSequence(offset);
+            m.setSequenceEpoch(leaderEpoch);
+            repo.upsertByIdWithLamport(m);
+            log.append(m.getId(), leaderEpoch);
+            appended++;
+            waiters.put(offset, committed);
+            // a batch goes out as soon as a stream has room in its window; later writes queue behind it
+            for (FollowerStream s : streams.values()) pump(s);
+            advanceCommit();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return committed.get(commitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            lock.lock();
+            try {
+                waiters.remove(offset, committed);
+            } finally {
+                lock.unlock();
+            }
+            throw new IllegalStateException("offset " + offset + " not acked by a majority within " + commitTimeoutMs + "ms");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Applies an append from the leader: {@code entries} start at offset {@code from} and follow
+     * an entry of epoch {@code prevEpoch}. Answers with whether they were applied, this node's last
+     * offset and, when applied, the offset up to which it now matches the leader.
+     */
+    public Map<String, Object> apply(String leader, long epoch, long commit, long from, long prevEpoch, List<Message> entries) {
+        Map<String, Object> reply = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            if (epoch < highestEpoch) {
+                rejectedStale++;
+                reply.put("ok", false);
+                reply.put("reason", "stale-epoch");
+            } else {
+                if (epoch > highestEpoch) {
+                    highestEpoch = epoch;
+                    if (leading) stepDown(leader + " leads a newer epoch " + epoch);
+                }
+                knownLeader = leader;
+                if (from > log.last() + 1) {
+                    reply.put("ok", false);
+                    reply.put("reason", "gap");
+                } else if (from > 1 && log.epochAt(from - 1) != prevEpoch) {
+                    // histories differ somewhere after the commit offset: drop the uncommitted tail
+                    truncateAfter(log.commit());
+                    reply.put("ok", false);
+                    reply.put("reason", "diverged");
+                } else {
+                    long matched = store(from, entries);
+                    log.advanceCommit(Math.min(commit, matched));
+                    reply.put("ok", true);
+                    reply.put("match", matched);
+                }
+            }
+            reply.put("last", log.last());
+            reply.put("epoch", highestEpoch);
+            return reply;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // writes entries starting at a known-good offset, replacing the tail from the first entry whose
+    // epoch differs; an entry with the same offset and epoch is the same entry. Returns the last offset written
+    private long store(long from, List<Message> entries) {
+        List<Message> fresh = new ArrayList<>(entries.size());
+        long offset = from;
+        for (Message m : entries) {
+            String existing = log.idAt(offset);
+            if (existing == null) {
+                log.append(m.getId(), m.getSequenceEpoch());
+                fresh.add(m);
+            } else if (log.epochAt(offset) != m.getSequenceEpoch()) {
+                if (offset <= log.commit()) throw new IllegalStateException("offset " + offset + " is committed as " + existing);
+                truncateAfter(offset - 1);
+                log.append(m.getId(), m.getSequenceEpoch());
+                fresh.add(m);
+            }
+            m.setSequence(offset);
+            offset++;
+        }
+        List<Message> unseen = new ArrayList<>(fresh.size());
+        for (Message m : fresh) {
+            seen.markSeen(m.getId());
+            // a message dropped from an earlier tail is stored already, at the same stamp; resequence it
+            if (repo.contains(m.getId())) repo.save(m);
+            else unseen.add(m);
+        }
+        if (!unseen.isEmpty()) repo.upsertAll(unseen);
+        return offset - 1;
+    }
+
+    // drops the uncommitted entries after offset and withdraws them from the repository: their
+    // writes never committed, so no reader may see them, not even after a restart
+    private void truncateAfter(long offset) {
+        List<String> dropped = log.truncateAfter(offset);
+        if (dropped.isEmpty()) return;
+        truncated++;
+        long kept = log.last();
+        for (String id : dropped) {
+            Message m = repo.findById(id);
+            // unless the stored version is sequenced elsewhere, e.g. resent at a lower offset
+            if (m != null && m.getSequence() > kept) repo.withdraw(id);
+        }
+        logger.info("Total order log dropped {} uncommitted entries after offset {}", dropped.size(), Math.max(offset, log.commit()));
+    }
+
+    /** Entries from offset {@code from}, committed ones only unless {@code uncommitted} is set. */
+    public List<Message> read(long from, int limit, boolean uncommitted) {
+        List<String> ids;
+        lock.lock();
+        try {
+            long to = uncommitted ? log.last() : log.commit();
+            ids = log.range(from, Math.min(to, from + limit - 1));
+        } finally {
+            lock.unlock();
+        }
+        List<Message> out = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Message m = repo.findById(id);
+            if (m == null) break;
+            out.add(m);
+        }
+        return out;
+    }
+
+    // keeps one stream per current peer
+    private void syncStreams() {
+        Set<String> peers = new HashSet<>(replication.peerIds());
+        streams.values().removeIf(s -> {
+            if (peers.contains(s.nodeId)) return false;
+            s.closed = true;
+            return true;
+        });
+        for (String peer : peers) streams.computeIfAbsent(peer, FollowerStream::new);
+    }
+
+    // commit offset = highest offset held by a majority of the configured cluster, the leader
+    // included; members without a stream count as holding nothing
+    private void advanceCommit() {
+        long[] matches = new long[Math.max(clusterSize, streams.size() + 1)];
+        matches[0] = log.last();
+        int i = 1;
+        for (FollowerStream s : streams.values()) matches[i++] = s.match;
+        Arrays.sort(matches);
+        long held = matches[matches.length - (matches.length / 2 + 1)];
+        // only an entry of this leader's epoch is committed by counting replicas; see Raft 5.4.2
+        if (held <= log.commit() || log.epochAt(held) != leaderEpoch) return;
+        if (!log.advanceCommit(held)) return;
+        Map<Long, CompletableFuture<Long>> done = waiters.headMap(log.commit(), true);
+        for (Map.Entry<Long, CompletableFuture<Long>> e : done.entrySet()) e.getValue().complete(e.getKey());
+        done.clear();
+    }
+
+    private void stepDown(String reason) {
+        leading = false;
+        for (FollowerStream s : streams.values()) s.closed = true;
+        streams.clear();
+        for (Map.Entry<Long, CompletableFuture<Long>> e : waiters.entrySet()) {
+            e.getValue().completeExceptionally(new IllegalStateException("leadership lost before offset " + e.getKey() + " committed: " + reason));
+        }
+        waiters.clear();
+        logger.info("Stepped down as total order leader: {}", reason);
+    }
+
+    // sends whatever fits in the stream's window, or a heartbeat if it has been idle
+    private void pump(FollowerStream s) {
+        long now = System.currentTimeMillis();
+        if (s.closed || now < s.retryAt) return;
+        PeerChannel channel = replication.channelTo(s.nodeId);
+        if (channel == null) return;
+        while (s.inFlight < maxInFlight && s.next <= log.last()) {
+            long from = s.next;
+            List<Message> entries = new ArrayList<>();
+            for (String id : log.range(from, from + batchSize - 1)) {
+                Message m = repo.findById(id);
+                if (m == null) break;
+                entries.add(m);
+            }
+            if (entries.isEmpty()) break;
+            send(s, channel, from, entries, now);
+            s.next = from + entries.size();
+        }
+        if (s.inFlight == 0 && now - s.lastSent >= heartbeatMs) send(s, channel, s.next, new ArrayList<>(), now);
+    }
+
+    private void send(FollowerStream s, PeerChannel channel, long from, List<Message> entries, long now) {
+        String path = "/api/order/append?leader=" + URLEncoder.encode(connector.getNodeId(), StandardCharsets.UTF_8)
+                + "&epoch=" + leaderEpoch + "&commit=" + log.commit() + "&from=" + from
+                + "&prevEpoch=" + log.epochAt(from - 1);
+        long epoch = leaderEpoch;
+        s.inFlight++;
+        s.lastSent = now;
+        channel.post(path, MessageCodec.CONTENT_TYPE, MessageCodec.encodeBatch(entries))
+                .whenComplete((resp, err) -> onReply(s, epoch, resp, err));
+    }
+
+    private void onReply(FollowerStream s, long epoch, HttpResponse<byte[]> resp, Throwable err) {
+        lock.lock();
+        try {
+            s.inFlight--;
+            if (s.closed || !leading || epoch != leaderEpoch) return;
+            if (err != null || resp.statusCode() / 100 != 2) {
+                if (resp != null && resp.statusCode() == 409) {
+                    highestEpoch = Math.max(highestEpoch, number(M.readValue(resp.body(), REPLY), "epoch"));
+                    stepDown(s.nodeId + " has seen a newer epoch");
+                    return;
+                }
+                // resend from the last acked offset once the peer is back
+                s.next = Math.min(s.next, s.match + 1);
+                s.retryAt = System.currentTimeMillis() + RETRY_BACKOFF_MS;
+                return;
+            }
+            Map<String, Object> reply = M.readValue(resp.body(), REPLY);
+            if (Boolean.TRUE.equals(reply.get("ok"))) {
+                s.match = Math.max(s.match, number(reply, "match"));
+                s.next = Math.max(s.next, s.match + 1);
+                advanceCommit();
+            } else {
+                s.next = Math.min(log.last(), number(reply, "last")) + 1;
+            }
+            pump(s);
+        } catch (Exception e) {
+            logger.warn("Total order reply from {} unreadable: {}", s.nodeId, e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long number(Map<String, Object> reply, String key) {
+        Object v = reply.get(key);
+        return v instanceof Number ? ((Number) v).longValue() : 0;
+    }
+
+    public Map<String, Object> status() {
+        lock.lock();
+        try {
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("enabled", enabled);
+            out.put("role", leading ? "leader" : "follower");
+            out.put("leader", leading ? connector.getNodeId() : knownLeader);
+            out.put("epoch", leading ? leaderEpoch : highestEpoch);
+            out.put("last", log.last());
+            out.put("lastEpoch", log.epochAt(log.last()));
+            out.put("commit", log.commit());
+            out.put("appended", appended);
+            out.put("truncated", truncated);
+            out.put("rejectedStale", rejectedStale);
+            List<Map<String, Object>> followers = new ArrayList<>();
+            for (FollowerStream s : streams.values()) {
+                Map<String, Object> f = new LinkedHashMap<>();
+                f.put("node", s.nodeId);
+                f.put("match", s.match);
+                f.put("next", s.next);
+                f.put("inFlight", s.inFlight);
+                followers.add(f);
+            }
+            out.put("followers", followers);
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // leader-side replication state of one follower; guarded by the service lock
+    private final class FollowerStream {
+        final String nodeId;
+        long next;
+        long match;
+        int inFlight;
+        long lastSent;
+        long retryAt;
+        boolean closed;
+
+        FollowerStream(String nodeId) {
+            this.nodeId = nodeId;
+            // optimistic: the first append tells us where the follower really is
+            this.next = log.last() + 1;
+        }
+    }
+}
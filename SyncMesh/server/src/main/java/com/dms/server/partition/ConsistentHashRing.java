@@ -0,0 +1,85 @@
+package com.dms.server.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring. Every node is placed at {@code virtualNodes} points on a 64-bit
+ * ring; a key belongs to the first distinct nodes found walking clockwise from its hash. Adding or
+ * removing a node only moves the keys next to its points, about 1/n of them.
+ */
+public final class ConsistentHashRing {
+    private final Set<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        int v = Math.max(1, virtualNodes);
+        long[] hashes = new long[this.nodes.size() * v];
+        String[] byHash = new String[hashes.length];
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int r = 0; r < v; r++) {
+                hashes[i] = hash(node + "#" + r);
+                byHash[i] = node;
+                i++;
+            }
+        }
+        // sort the points and carry their owners along
+        Integer[] order = new Integer[hashes.length];
+        for (int k = 0; k < order.length; k++) order[k] = k;
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compare(hashes[a], hashes[b]);
+            return c != 0 ? c : byHash[a].compareTo(byHash[b]);
+        });
+        this.points = new long[hashes.length];
+        this.owners = new String[hashes.length];
+        for (int k = 0; k < order.length; k++) {
+            points[k] = hashes[order[k]];
+            owners[k] = byHash[order[k]];
+        }
+    }
+
+    public Set<String> nodes() { return nodes; }
+
+    public boolean isEmpty() { return nodes.isEmpty(); }
+
+    /** The first {@code count} distinct nodes clockwise from {@code key}'s hash, primary first. */
+    public List<String> owners(String key, int count) {
+        int want = Math.min(count, nodes.size());
+        List<String> out = new ArrayList<>(want);
+        if (want <= 0) return out;
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) i = -i - 1;
+        for (int n = 0; n < points.length && out.size() < want; n++) {
+            String node = owners[(i + n) % points.length];
+            if (!out.contains(node)) out.add(node);
+        }
+        return out;
+    }
+
+    static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ConsistentHashRing && Arrays.equals(points, ((ConsistentHashRing) o).points)
+                && nodes.equals(((ConsistentHashRing) o).nodes);
+    }
+
+    @Override
+    public int hashCode() {
+        return nodes.hashCode();
+    }
+}
@@ -0,0 +1,157 @@
+package com.dms.server.partition;
+
+import com.dms.common.model.Message;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+/**
+ * Maps topic partitions to the servers that own them. Every topic is split into
+ * {@code partition.count} partitions; a message lands in the partition of its key (its id if it
+ * has none), and each partition is owned by the first {@code partition.replication-factor} servers
+ * clockwise from it on a {@link ConsistentHashRing} built from the {@code /dms-system/servers}
+ * membership. The first owner is the partition's primary.
+ *
+ * <p>The ring is rebuilt whenever membership changes. Listeners hear about the old and new ring on
+ * a separate thread, never on the ZooKeeper event thread.
+ */
+@Component
+public class PartitionManager {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionManager.class);
+    private final ZooKeeperConnector connector;
+    private final int partitionCount;
+    private final int replicationFactor;
+    private final int virtualNodes;
+    private volatile ConsistentHashRing ring;
+    private final List<BiConsumer<ConsistentHashRing, ConsistentHashRing>> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "partition-ring");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PartitionManager(ZooKeeperConnector connector,
+                            @Value("${partition.count:16}") int partitionCount,
+                            @Value("${partition.replication-factor:2}") int replicationFactor,
+                            @Value("${partition.virtual-nodes:128}") int virtualNodes) {
+        this.connector = connector;
+        this.partitionCount = Math.max(1, partitionCount);
+        this.replicationFactor = Math.max(1, replicationFactor);
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.ring = new ConsistentHashRing(Collections.singleton(connector.getNodeId()), this.virtualNodes);
+    }
+
+    @PostConstruct
+    private void watchMembership() {
+        connector.addMembershipListener((joined, left) -> rebuild());
+    }
+
+    @PreDestroy
+    public void stop() {
+        notifier.shutdownNow();
+    }
+
+    private void rebuild() {
+        Set<String> nodes = new TreeSet<>(connector.getMembers().keySet());
+        // this node always counts, even before its own registration shows up in the cache
+        nodes.add(connector.getNodeId());
+        ConsistentHashRing before = ring;
+        if (before.nodes().equals(nodes)) return;
+        ConsistentHashRing after = new ConsistentHashRing(nodes, virtualNodes);
+        ring = after;
+        logger.info("Partition ring rebuilt over {}", nodes);
+        notifier.execute(() -> {
+            for (BiConsumer<ConsistentHashRing, ConsistentHashRing> l : listeners) {
+                try {
+                    l.accept(before, after);
+                } catch (Exception e) {
+                    logger.warn("Partition ring listener failed: {}", e.getMessage());
+                }
+            }
+        });
+    }
+
+    /** Called with (previous ring, new ring) after every membership change that moves partitions. */
+    public void addRingListener(BiConsumer<ConsistentHashRing, ConsistentHashRing> listener) {
+        listeners.add(listener);
+    }
+
+    public ConsistentHashRing ring() { return ring; }
+
+    public int partitionCount() { return partitionCount; }
+
+    public int replicationFactor() { return replicationFactor; }
+
+    /** Partition a message belongs to: by its key if it has one, otherwise by its id. */
+    public int partitionOf(Message m) {
+        String k = m.getKey() != null ? m.getKey() : m.getId();
+        return (int) Long.remainderUnsigned(ConsistentHashRing.hash(k == null ? "" : k), partitionCount);
+    }
+
+    public List<String> owners(String topic, int partition) {
+        return owners(ring, topic, partition);
+    }
+
+    public List<String> owners(ConsistentHashRing r, String topic, int partition) {
+        return r.owners(topic + "/" + partition, replicationFactor);
+    }
+
+    public boolean owns(String nodeId, String topic, int partition) {
+        return owners(topic, partition).contains(nodeId);
+    }
+
+    public boolean ownsLocally(String topic, int partition) {
+        return owns(connector.getNodeId(), topic, partition);
+    }
+
+    /** Owners of every partition of {@code topic}, plus how many partitions each server holds. */
+    public Map<String, Object> assignments(String topic) {
+        ConsistentHashRing r = ring;
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("topic", topic);
+        out.put("partitions", partitionCount);
+        out.put("replicationFactor", replicationFactor);
+        out.put("virtualNodes", virtualNodes);
+        out.put("servers", new ArrayList<>(r.nodes()));
+        Map<Integer, List<String>> owners = new LinkedHashMap<>();
+        Map<String, Integer> load = new LinkedHashMap<>();
+        for (String node : r.nodes()) load.put(node, 0);
+        for (int p = 0; p < partitionCount; p++) {
+            List<String> o = owners(r, topic, p);
+            owners.put(p, o);
+            for (String node : o) load.merge(node, 1, Integer::sum);
+        }
+        out.put("owners", owners);
+        out.put("partitionsPerServer", load);
+        return out;
+    }
+
+    /** Groups partitions by the server that should answer for them: this node if it owns one, else the primary. */
+    public Map<String, List<Integer>> readPlan(String topic, Iterable<Integer> partitions) {
+        String self = connector.getNodeId();
+        Map<String, List<Integer>> out = new LinkedHashMap<>();
+        for (int p : partitions) {
+            List<String> o = owners(topic, p);
+            if (o.isEmpty()) continue;
+            String node = o.contains(self) ? self : o.get(0);
+            out.computeIfAbsent(node, k -> new ArrayList<>()).add(p);
+        }
+        return out;
+    }
+}
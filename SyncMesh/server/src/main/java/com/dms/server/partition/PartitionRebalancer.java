@@ -0,0 +1,191 @@
+package com.dms.server.partition;
+
+import com.dms.common.model.Message;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.service.ReplicationService;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves topic partitions when the ring changes. For every stored topic message it checks the
+ * partition's owners on the new ring:
+ * <ul>
+ *   <li>owners that did not own the partition before are sent the message straight away, rather
+ *       than waiting for anti-entropy to find the gap;</li>
+ *   <li>if this node is no longer an owner, the message is sent to the current owners and, once
+ *       all of them have applied it, dropped from this node's store.</li>
+ * </ul>
+ * Ring changes are coalesced for {@code partition.rebalance-delay-ms} so a burst of membership
+ * events moves data once. A periodic pass retries partitions whose handoff failed.
+ */
+@Component
+public class PartitionRebalancer {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionRebalancer.class);
+    private final PartitionManager partitions;
+    private final MessageRepository repo;
+    private final ReplicationService replication;
+    private final ZooKeeperConnector connector;
+    private final long delayMs;
+    private final long intervalMs;
+    private final long timeoutMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "partition-rebalance");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // ring the store was last reconciled against; only touched on the scheduler thread
+    private ConsistentHashRing reconciled;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failedHandoffs = new AtomicLong();
+    private volatile Map<String, Object> lastRun = new LinkedHashMap<>();
+
+    public PartitionRebalancer(PartitionManager partitions, MessageRepository repo, ReplicationService replication,
+                               ZooKeeperConnector connector,
+                               @Value("${partition.rebalance-delay-ms:2000}") long delayMs,
+                               @Value("${partition.reconcile-interval-ms:60000}") long intervalMs,
+                               @Value("${partition.handoff-timeout-ms:30000}") long timeoutMs) {
+        this.partitions = partitions;
+        this.repo = repo;
+        this.replication = replication;
+        this.connector = connector;
+        this.delayMs = Math.max(0, delayMs);
+        this.intervalMs = Math.max(1000, intervalMs);
+        this.timeoutMs = timeoutMs;
+    }
+
+    @PostConstruct
+    private void start() {
+        partitions.addRingListener((before, after) -> schedule());
+        // the first pass after startup hands off whatever the log recovered for partitions owned elsewhere
+        schedule();
+        scheduler.scheduleWithFixedDelay(() -> run(true), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        scheduler.schedule(() -> {
+            scheduled.set(false);
+            run(false);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One pass over the stored topic messages. A periodic pass only retries partitions this node
+     * no longer owns; owners that share a partition are kept in step by anti-entropy.
+     */
+    private void run(boolean periodic) {
+        try {
+            long start = System.currentTimeMillis();
+            String self = connector.getNodeId();
+            ConsistentHashRing after = partitions.ring();
+            ConsistentHashRing before = periodic ? null : reconciled;
+
+            // decide per message from the version stamps, then load only the bodies that move
+            Map<String, List<String>> targetsById = new HashMap<>();
+            Set<String> unowned = new HashSet<>();
+            Map<String, List<String>> ownersCache = new HashMap<>();
+            Map<String, List<String>> previousCache = new HashMap<>();
+            repo.forEachVersion((id, lamport, origin, receiver, topic, partition) -> {
+                if (topic == null) return;
+                String key = topic + "/" + partition;
+                List<String> now = ownersCache.computeIfAbsent(key, k -> partitions.owners(after, topic, partition));
+                boolean mine = now.contains(self);
+                List<String> prev = before == null ? null : previousCache.computeIfAbsent(key, k -> partitions.owners(before, topic, partition));
+                List<String> targets = new ArrayList<>(now.size());
+                for (String owner : now) {
+                    if (owner.equals(self)) continue;
+                    if (!mine || (prev != null && !prev.contains(owner))) targets.add(owner);
+                }
+                if (!targets.isEmpty()) targetsById.put(id, targets);
+                if (!mine) unowned.add(id);
+            });
+
+            Map<String, List<Message>> pushes = new HashMap<>();
+            for (Map.Entry<String, List<String>> e : targetsById.entrySet()) {
+                Message m = repo.findById(e.getKey());
+                if (m == null) continue;
+                for (String owner : e.getValue()) pushes.computeIfAbsent(owner, k -> new ArrayList<>()).add(m);
+            }
+            Map<String, CompletableFuture<Boolean>> acks = new HashMap<>();
+            for (Map.Entry<String, List<Message>> e : pushes.entrySet()) acks.put(e.getKey(), replication.handoff(e.getKey(), e.getValue()));
+            Set<String> failed = new HashSet<>();
+            for (Map.Entry<String, CompletableFuture<Boolean>> e : acks.entrySet()) {
+                boolean ok;
+                try {
+                    ok = e.getValue().get(timeoutMs, TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    ok = false;
+                }
+                if (!ok) failed.add(e.getKey());
+            }
+
+            int pushed = 0;
+            for (List<Message> ms : pushes.values()) pushed += ms.size();
+            int removed = 0;
+            for (String id : unowned) {
+                List<String> targets = targetsById.getOrDefault(id, new ArrayList<>());
+                boolean safe = !targets.isEmpty();
+                for (String owner : targets) safe &= !failed.contains(owner);
+                if (safe && repo.remove(id)) removed++;
+            }
+            if (!periodic) reconciled = after;
+            runs.incrementAndGet();
+            handedOff.addAndGet(pushed);
+            dropped.addAndGet(removed);
+            failedHandoffs.addAndGet(failed.size());
+
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("servers", new ArrayList<>(after.nodes()));
+            out.put("periodic", periodic);
+            out.put("handedOff", pushed);
+            out.put("dropped", removed);
+            out.put("failedPeers", new ArrayList<>(failed));
+            out.put("durationMs", System.currentTimeMillis() - start);
+            lastRun = out;
+            if (pushed > 0 || removed > 0 || !failed.isEmpty()) {
+                logger.info("Partition rebalance handed off {} messages, dropped {} no longer owned{}", pushed, removed,
+                        failed.isEmpty() ? "" : ", handoff to " + failed + " failed");
+            }
+        } catch (Exception e) {
+            logger.warn("Partition rebalance failed: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("runs", runs.get());
+        out.put("handedOff", handedOff.get());
+        out.put("dropped", dropped.get());
+        out.put("failedHandoffs", failedHandoffs.get());
+        out.put("lastRun", lastRun);
+        return out;
+    }
+}
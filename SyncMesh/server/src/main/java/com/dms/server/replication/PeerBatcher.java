@@ -0,0 +1,208 @@
+package com.dms.server.replication;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers messages bound for one peer and ships them as a single POST to
+ * {@code /api/messages/replica/batch} once the linger time expires or the buffered bytes reach
+ * the batch limit. Up to {@code maxInFlight} batches may be outstanding per peer, so a new batch
+ * fills while the previous one is on the wire; the in-flight limit and a cap on queued bytes are
+ * the per-peer backpressure. Each message gets its own ack future, completed from the list of ids
+ * the peer reports as applied.
+ *
+ * <p>Batches go out in the binary {@link MessageCodec} format when enabled. A peer that answers
+ * 415 is remembered and gets JSON from then on; peers without the batch endpoint at all (404/405)
+ * are served one JSON message per call.
+ */
+public class PeerBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PeerBatcher.class);
+    private static final TypeReference<List<String>> ID_LIST = new TypeReference<>() {};
+    private static final String BATCH_PATH = "/api/messages/replica/batch";
+    private static final String SINGLE_PATH = "/api/messages/replica";
+
+    private final PeerChannel channel;
+    private final ObjectMapper M;
+    private final ScheduledExecutorService timer;
+    private final long lingerMs;
+    private final long maxBytes;
+    private final long maxQueuedBytes;
+    private final Semaphore inFlight;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean batchUnsupported;
+    private volatile boolean binary;
+
+    public PeerBatcher(PeerChannel channel, ObjectMapper mapper, ScheduledExecutorService timer,
+                       long lingerMs, long maxBytes, long maxQueuedBytes, int maxInFlight, boolean binary) {
+        this.channel = channel;
+        this.M = mapper;
+        this.timer = timer;
+        this.lingerMs = lingerMs;
+        this.maxBytes = maxBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.binary = binary;
+    }
+
+    public String url() { return channel.url(); }
+
+    public PeerChannel channel() { return channel; }
+
+    /**
+     * Queues a message; the future completes with whether the peer applied it. When the peer has
+     * fallen so far behind that {@code maxQueuedBytes} are already waiting, the message is refused
+     * straight away instead of growing the queue without bound.
+     */
+    public CompletableFuture<Boolean> enqueue(Message m) {
+        Pending p = new Pending(m);
+        if (queuedBytes.get() + p.size > maxQueuedBytes) {
+            return CompletableFuture.failedFuture(new IllegalStateException("replication queue to " + url() + " is full"));
+        }
+        queue.add(p);
+        if (queuedBytes.addAndGet(p.size) >= maxBytes) {
+            trySend();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            timer.schedule(() -> {
+                flushScheduled.set(false);
+                trySend();
+            }, lingerMs, TimeUnit.MILLISECONDS);
+        }
+        return p.ack;
+    }
+
+    private void trySend() {
+        while (!queue.isEmpty() && inFlight.tryAcquire()) {
+            List<Pending> batch = drain();
+            if (batch.isEmpty()) {
+                inFlight.release();
+                return;
+            }
+            send(batch).whenComplete((v, err) -> {
+                inFlight.release();
+                // whatever queued up while this batch was on the wire goes next
+                if (!queue.isEmpty()) trySend();
+            });
+        }
+    }
+
+    private List<Pending> drain() {
+        List<Pending> batch = new ArrayList<>();
+        long bytes = 0;
+        Pending p;
+        while (bytes < maxBytes && (p = queue.poll()) != null) {
+            batch.add(p);
+            bytes += p.size;
+        }
+        queuedBytes.addAndGet(-bytes);
+        return batch;
+    }
+
+    private CompletableFuture<Void> send(List<Pending> batch) {
+        if (batchUnsupported) return sendIndividually(batch);
+        boolean useBinary = binary;
+        byte[] body;
+        try {
+            body = encode(batch, useBinary);
+        } catch (Exception e) {
+            fail(batch, e);
+            return CompletableFuture.completedFuture(null);
+        }
+        String type = useBinary ? MessageCodec.CONTENT_TYPE : "application/json";
+        return channel.post(BATCH_PATH, type, body).thenCompose(resp -> {
+            int status = resp.statusCode();
+            if (status / 100 == 2) {
+                try {
+                    Set<String> ok = new HashSet<>(M.readValue(resp.body(), ID_LIST));
+                    for (Pending p : batch) p.ack.complete(ok.contains(p.message.getId()));
+                } catch (Exception e) {
+                    fail(batch, e);
+                }
+            } else if (useBinary && status == 415) {
+                logger.info("Peer {} does not accept {}, falling back to JSON", url(), MessageCodec.CONTENT_TYPE);
+                binary = false;
+                return send(batch);
+            } else if (status == 404 || status == 405) {
+                logger.info("Peer {} has no batch replication endpoint, falling back to per-message calls", url());
+                batchUnsupported = true;
+                return sendIndividually(batch);
+            } else {
+                fail(batch, new IllegalStateException("peer " + url() + " answered " + status));
+            }
+            return CompletableFuture.completedFuture(null);
+        }).exceptionally(err -> {
+            fail(batch, err);
+            return null;
+        });
+    }
+
+    // one message per call, in order, for peers that predate the batch endpoint
+    private CompletableFuture<Void> sendIndividually(List<Pending> batch) {
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (Pending p : batch) {
+            chain = chain.thenCompose(v -> {
+                byte[] json;
+                try {
+                    json = M.writeValueAsBytes(p.message);
+                } catch (Exception e) {
+                    p.ack.completeExceptionally(e);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return channel.post(SINGLE_PATH, "application/json", json).handle((resp, err) -> {
+                    if (err != null) p.ack.completeExceptionally(err);
+                    else p.ack.complete(resp.statusCode() / 100 == 2);
+                    return null;
+                });
+            });
+        }
+        return chain;
+    }
+
+    private byte[] encode(List<Pending> batch, boolean useBinary) throws Exception {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Pending p : batch) messages.add(p.message);
+        return useBinary ? MessageCodec.encodeBatch(messages) : M.writeValueAsBytes(messages);
+    }
+
+    private void fail(List<Pending> batch, Throwable err) {
+        for (Pending p : batch) p.ack.completeExceptionally(err);
+    }
+
+    /** Fails everything still buffered and drops the channel, used when the peer leaves the membership. */
+    public void close() {
+        channel.close();
+        Pending p;
+        while ((p = queue.poll()) != null) {
+            queuedBytes.addAndGet(-p.size);
+            p.ack.complete(false);
+        }
+    }
+
+    private static final class Pending {
+        final Message message;
+        // rough encoded size, only used to decide when a batch is full
+        final int size;
+        final CompletableFuture<Boolean> ack = new CompletableFuture<>();
+        Pending(Message message) {
+            this.message = message;
+            this.size = 64 + (message.getPayload() == null ? 0 : message.getPayload().length());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.dms.server.replication;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Long-lived replication channel to one peer. Wraps a JDK {@link HttpClient} that prefers HTTP/2:
+ * {@link #connect()} issues a bodyless GET so the cleartext connection is upgraded (h2c) before
+ * any batch is sent, after which every request to the peer is multiplexed over that one
+ * connection. Peers that don't speak HTTP/2 get a pooled keep-alive HTTP/1.1 connection instead.
+ * Either way no request pays for a TCP handshake, and no thread blocks while a request is on the
+ * wire.
+ *
+ * <p>Channels are created and dropped by {@code ReplicationService} as the membership changes, so
+ * a peer that restarts on a new address gets a fresh connection.
+ */
+public class PeerChannel {
+    private final String url;
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private volatile boolean closed;
+
+    public PeerChannel(String url, Executor executor, long connectTimeoutMs, long requestTimeoutMs) {
+        this.url = url;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .executor(executor)
+                .build();
+    }
+
+    public String url() { return url; }
+
+    /** Opens (and upgrades) the connection ahead of the first write; completes with the protocol in use. */
+    public CompletableFuture<HttpClient.Version> connect() {
+        HttpRequest ping = HttpRequest.newBuilder(URI.create(url + "/api/messages/replica/ping"))
+                .timeout(requestTimeout)
+                .GET()
+                .build();
+        return client.sendAsync(ping, HttpResponse.BodyHandlers.discarding()).thenApply(HttpResponse::version);
+    }
+
+    public CompletableFuture<HttpResponse<byte[]>> post(String path, String contentType, byte[] body) {
+        if (closed) return CompletableFuture.failedFuture(new IllegalStateException("channel to " + url + " is closed"));
+        HttpRequest req = HttpRequest.newBuilder(URI.create(url + path))
+                .timeout(requestTimeout)
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    public CompletableFuture<HttpResponse<byte[]>> get(String path) {
+        if (closed) return CompletableFuture.failedFuture(new IllegalStateException("channel to " + url + " is closed"));
+        HttpRequest req = HttpRequest.newBuilder(URI.create(url + path))
+                .timeout(requestTimeout)
+                .GET()
+                .build();
+        return client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    public boolean isClosed() { return closed; }
+
+    // JDK 17's HttpClient has no close(); dropping the client lets its idle connections time out
+    public void close() { closed = true; }
+}
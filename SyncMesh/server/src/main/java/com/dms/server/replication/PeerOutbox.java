@@ -0,0 +1,504 @@
+package com.dms.server.replication;
+
+import com.dms.common.model.Message;
+import com.dms.server.storage.MessageLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Everything this node still owes one peer, in send order. Messages are held in a bounded ring
+ * until the peer acks them; a failed send puts the message back and pauses the peer with
+ * exponential backoff, so nothing is dropped because a peer was briefly unreachable.
+ *
+ * <p>The ring is only a window onto the local message log. The outbox tracks the log position
+ * below which the peer has acked everything routed to it, and persists it next to the log. When
+ * the peer is away, the ring overflows, or the node restarts, the ring is dropped and refilled by
+ * scanning the log from that position, so a peer is caught up from exactly where it stopped
+ * acking. With storage disabled the ring is all there is. Log scans run on the outbox's own
+ * thread, never on the thread that attached the peer or offered a message.
+ *
+ * <p>Each outbox records {@code dms.replication.latency} (enqueue to ack, per attempt) and
+ * {@code dms.replication.failures}, tagged with the peer.
+ */
+public class PeerOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(PeerOutbox.class);
+    private final String peerId;
+    private final MessageLog log;
+    // which logged messages belong to this peer when catching up from the log
+    private final Predicate<Message> routedHere;
+    // lowest log position a local write may have been appended at without being offered yet
+    private final LongSupplier pendingFloor;
+    private final ScheduledExecutorService timer;
+    // reads the log for catch-up; its thread exits when the peer is caught up
+    private final ThreadPoolExecutor reader;
+    private final Path stateFile;
+    private final int capacity;
+    private final int window;
+    private final long timeoutMs;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+    private final Timer latency;
+    private final Counter failures;
+    // smoothed enqueue-to-ack time of recent attempts, a failed attempt counting as the timeout; read
+    // by admission control, updated under the lock
+    private volatile long ackLatencyNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Entry> ring = new ArrayDeque<>();
+    private final ArrayDeque<Entry> toSend = new ArrayDeque<>();
+    private final List<Entry> retry = new ArrayList<>();
+    // log positions currently in the ring, so a scan that starts below them doesn't queue them twice
+    private final Set<Long> queued = new HashSet<>();
+    private PeerBatcher batcher;
+    private long generation;
+    private long seq;
+    private int outstanding;
+    private long backoffMs;
+    private long retryAt;
+    private boolean catchingUp = true;
+    private boolean filling;
+    // next log position the catch-up scan reads from
+    private long cursor;
+    // live offers below this were already picked up by the last catch-up scan
+    private long liveFloor;
+    // highest position offered live while catching up; the scan has to pass it before going live
+    private long missedLive = -1;
+    // everything routed here below this position has been acked
+    private long highWater;
+    private long persisted = -1;
+
+    private long ackedCount;
+    private long failedCount;
+    private long droppedCount;
+
+    public PeerOutbox(String peerId, MessageLog log, Predicate<Message> routedHere, LongSupplier pendingFloor,
+                      ScheduledExecutorService timer, int capacity, int window, long timeoutMs, long backoffBaseMs,
+                      long backoffMaxMs, MeterRegistry meters) {
+        this.peerId = peerId;
+        this.log = log;
+        this.routedHere = routedHere;
+        this.pendingFloor = pendingFloor;
+        this.timer = timer;
+        this.capacity = Math.max(1, capacity);
+        this.window = Math.max(1, window);
+        this.timeoutMs = timeoutMs;
+        this.backoffBaseMs = Math.max(1, backoffBaseMs);
+        this.backoffMaxMs = Math.max(this.backoffBaseMs, backoffMaxMs);
+        this.backoffMs = this.backoffBaseMs;
+        this.reader = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "outbox-reader-" + peerId);
+            t.setDaemon(true);
+            return t;
+        });
+        reader.allowCoreThreadTimeOut(true);
+        this.stateFile = log.isEnabled() ? log.directory().resolve("outbox").resolve(peerId + ".offset") : null;
+        this.cursor = this.highWater = loadResumePosition();
+        this.persisted = cursor;
+        this.latency = Timer.builder("dms.replication.latency").description("Time from handing a message to a peer's batcher to its ack")
+                .tag("peer", peerId).register(meters);
+        this.failures = Counter.builder("dms.replication.failures").description("Delivery attempts a peer did not ack")
+                .tag("peer", peerId).register(meters);
+    }
+
+    public String peerId() { return peerId; }
+
+    /** Starts (or resumes) delivery through the peer's batcher, catching up from the log first. */
+    public void attach(PeerBatcher b) {
+        lock.lock();
+        try {
+            batcher = b;
+            backoffMs = backoffBaseMs;
+            retryAt = 0;
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops delivery; with a log behind it, the ring is dropped and rebuilt from the log on return. */
+    public void detach() {
+        lock.lock();
+        try {
+            batcher = null;
+            if (log.isEnabled()) restartFromLog();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops whatever is queued and re-reads the log from the peer's acked position. */
+    public void catchUp() {
+        lock.lock();
+        try {
+            if (log.isEnabled()) restartFromLog();
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a message that has just been written to the log at {@code position} (or -1 if it was
+     * not logged). The future completes with the outcome of the first delivery attempt; failed
+     * attempts keep being retried in the background regardless.
+     */
+    public CompletableFuture<Boolean> offer(long position, Message m) {
+        lock.lock();
+        try {
+            if (catchingUp && position >= 0) {
+                readBackFrom(position);
+                return CompletableFuture.failedFuture(new IllegalStateException("peer " + peerId + " is catching up from the log"));
+            }
+            if (position >= 0 && position < liveFloor) {
+                return CompletableFuture.failedFuture(new IllegalStateException("already queued from the log"));
+            }
+            if (ring.size() >= capacity) {
+                if (log.isEnabled() && position >= 0) {
+                    // stop buffering and read back from the lowest position not yet queued; offers
+                    // for earlier positions may still be on their way, so it is not this one
+                    cursor = resumePosition();
+                    catchingUp = true;
+                    readBackFrom(position);
+                    return CompletableFuture.failedFuture(new IllegalStateException("outbox for " + peerId + " is full, catching up from the log"));
+                }
+                Entry oldest = ring.pollFirst();
+                queued.remove(oldest.position);
+                oldest.dropped = true;
+                oldest.firstAck.complete(false);
+                droppedCount++;
+            }
+            Entry e = add(position, m);
+            pump();
+            return e.firstAck;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a live offer the catch-up scan has to cover: moves the scan back if it already passed it
+    private void readBackFrom(long position) {
+        if (position < cursor && !queued.contains(position)) cursor = position;
+        missedLive = Math.max(missedLive, position);
+        pump();
+    }
+
+    private Entry add(long position, Message m) {
+        Entry e = new Entry(seq++, generation, position, m);
+        ring.addLast(e);
+        if (position >= 0) queued.add(position);
+        toSend.addLast(e);
+        return e;
+    }
+
+    private void restartFromLog() {
+        cursor = resumePosition();
+        generation++;
+        for (Entry e : ring) e.dropped = true;
+        ring.clear();
+        queued.clear();
+        toSend.clear();
+        retry.clear();
+        outstanding = 0;
+        catchingUp = true;
+    }
+
+    private void pump() {
+        Entry e;
+        // a send can fail inline and start a backoff, so re-check before every message
+        while (!paused() && outstanding < window && (e = toSend.pollFirst()) != null) {
+            if (e.dropped || e.acked) continue;
+            outstanding++;
+            e.inFlight = true;
+            Entry sent = e;
+            long sentAt = System.nanoTime();
+            batcher.enqueue(e.message).orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .whenComplete((ok, err) -> {
+                        boolean success = err == null && Boolean.TRUE.equals(ok);
+                        long took = success ? System.nanoTime() - sentAt : TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                        if (success) latency.record(took, TimeUnit.NANOSECONDS);
+                        else failures.increment();
+                        onResult(sent, success, took);
+                    });
+        }
+        // refill from the log once the ring has room again
+        if (paused() || !catchingUp || filling || ring.size() > capacity / 2) return;
+        if (!log.isEnabled()) {
+            catchingUp = false;
+            return;
+        }
+        filling = true;
+        try {
+            reader.execute(this::fill);
+        } catch (RejectedExecutionException closed) {
+            filling = false;
+        }
+    }
+
+    private boolean paused() {
+        return batcher == null || System.currentTimeMillis() < retryAt;
+    }
+
+    // reads the next stretch of the log without the lock, then queues it unless the outbox restarted
+    // or a late offer moved the cursor back in the meantime
+    private void fill() {
+        long from;
+        long gen;
+        int room;
+        lock.lock();
+        try {
+            from = cursor;
+            gen = generation;
+            room = capacity - ring.size();
+        } finally {
+            lock.unlock();
+        }
+        List<Long> positions = new ArrayList<>();
+        List<Message> found = new ArrayList<>();
+        long[] last = {-1};
+        boolean[] stopped = {false};
+        try {
+            log.scan(log.seekPosition(from), (position, m) -> {
+                if (position < from) return true;
+                last[0] = position;
+                if (routedHere.test(m)) {
+                    positions.add(position);
+                    found.add(m);
+                }
+                if (found.size() >= room) {
+                    stopped[0] = true;
+                    return false;
+                }
+                return true;
+            });
+        } catch (RuntimeException ex) {
+            logger.warn("Catch-up scan for {} failed, retrying in {}ms: {}", peerId, backoffBaseMs, ex.getMessage());
+            lock.lock();
+            try {
+                filling = false;
+            } finally {
+                lock.unlock();
+            }
+            timer.schedule(this::resumeFill, backoffBaseMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        lock.lock();
+        try {
+            filling = false;
+            if (gen == generation && from == cursor) {
+                int added = 0;
+                for (int i = 0; i < positions.size(); i++) {
+                    if (queued.contains(positions.get(i))) continue;
+                    add(positions.get(i), found.get(i));
+                    added++;
+                }
+                if (last[0] >= 0) cursor = last[0] + 1;
+                // reached the end of the log: newer messages arrive through offer(), unless one was
+                // offered while scanning and landed past where this scan stopped
+                if (!stopped[0] && missedLive < cursor) {
+                    catchingUp = false;
+                    liveFloor = cursor;
+                    if (added > 0) logger.info("Caught up {} with {} messages from log position {}", peerId, added, from);
+                }
+            }
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resumeFill() {
+        lock.lock();
+        try {
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onResult(Entry e, boolean success, long tookNanos) {
+        e.firstAck.complete(success);
+        lock.lock();
+        try {
+            ackLatencyNanos += (tookNanos - ackLatencyNanos) / 8;
+            if (e.generation != generation) return;
+            if (e.inFlight) {
+                e.inFlight = false;
+                outstanding--;
+            }
+            if (e.dropped) return;
+            if (success) {
+                e.acked = true;
+                ackedCount++;
+                backoffMs = backoffBaseMs;
+                while (!ring.isEmpty() && ring.peekFirst().acked) {
+                    Entry head = ring.pollFirst();
+                    queued.remove(head.position);
+                    if (head.position >= 0) highWater = Math.max(highWater, head.position + 1);
+                }
+            } else {
+                failedCount++;
+                retry.add(e);
+                long now = System.currentTimeMillis();
+                if (retryAt <= now) {
+                    retryAt = now + backoffMs;
+                    logger.warn("Delivery to {} failed, retrying {}+ messages in {}ms", peerId, retry.size(), backoffMs);
+                    long gen = generation;
+                    timer.schedule(() -> resume(gen), backoffMs, TimeUnit.MILLISECONDS);
+                    backoffMs = Math.min(backoffMs * 2, backoffMaxMs);
+                }
+            }
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // backoff expired: failed messages go out again ahead of anything newer
+    private void resume(long gen) {
+        lock.lock();
+        try {
+            if (gen != generation) return;
+            retry.sort(Comparator.comparingLong((Entry x) -> x.seq).reversed());
+            for (Entry e : retry) toSend.addFirst(e);
+            retry.clear();
+            retryAt = 0;
+            pump();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Smoothed time the peer takes to ack a delivery, in milliseconds. */
+    public long ackLatencyMs() {
+        return TimeUnit.NANOSECONDS.toMillis(ackLatencyNanos);
+    }
+
+    /**
+     * Messages held in memory for an attached peer that is keeping up live. A detached peer, or one
+     * catching up from the log, reads at its own pace and holds nothing beyond the ring, so it
+     * counts as zero.
+     */
+    public int liveBacklog() {
+        lock.lock();
+        try {
+            return batcher == null || catchingUp ? 0 : ring.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Log position from which a restart would have to resume to miss nothing for this peer. Never
+     * past a local write that is logged but not offered yet: acks for later positions can drain the
+     * ring before its offer arrives.
+     */
+    public long resumePosition() {
+        lock.lock();
+        try {
+            long r = catchingUp ? cursor : Math.max(highWater, liveFloor);
+            for (Entry e : ring) {
+                if (!e.acked && e.position >= 0) r = Math.min(r, e.position);
+            }
+            return Math.min(r, pendingFloor.getAsLong());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the acked position next to the log if it moved. */
+    public void persist() {
+        if (stateFile == null) return;
+        long r = resumePosition();
+        if (r == persisted) return;
+        try {
+            Files.createDirectories(stateFile.getParent());
+            Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+            Files.write(tmp, Long.toString(r).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            persisted = r;
+        } catch (IOException e) {
+            logger.warn("Failed to persist outbox position for {}: {}", peerId, e.getMessage());
+        }
+    }
+
+    /** Stops the catch-up reader; the acked position is kept by {@link #persist}. */
+    public void close() {
+        reader.shutdownNow();
+    }
+
+    private long loadResumePosition() {
+        if (stateFile == null || !Files.exists(stateFile)) return 0;
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Ignoring unreadable outbox position for {}: {}", peerId, e.getMessage());
+            return 0;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        lock.lock();
+        try {
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("peer", peerId);
+            out.put("attached", batcher != null);
+            out.put("catchingUp", catchingUp);
+            out.put("queued", ring.size());
+            out.put("inFlight", outstanding);
+            out.put("retrying", retry.size());
+            out.put("ackedPosition", resumePosition());
+            out.put("acked", ackedCount);
+            out.put("failed", failedCount);
+            out.put("dropped", droppedCount);
+            out.put("ackLatencyMs", ackLatencyMs());
+            out.put("backoffMs", retryAt > System.currentTimeMillis() ? retryAt - System.currentTimeMillis() : 0);
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        final long seq;
+        final long generation;
+        final long position;
+        final Message message;
+        final CompletableFuture<Boolean> firstAck = new CompletableFuture<>();
+        boolean acked;
+        boolean dropped;
+        boolean inFlight;
+
+        Entry(long seq, long generation, long position, Message message) {
+            this.seq = seq;
+            this.generation = generation;
+            this.position = position;
+            this.message = message;
+        }
+    }
+}
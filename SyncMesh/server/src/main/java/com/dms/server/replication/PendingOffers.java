@@ -0,0 +1,65 @@
+package com.dms.server.replication;
+
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local writes that are being appended to the log and have not been offered to the outboxes yet.
+ * Each one is held at the log end read before its append, which is at or below the position it
+ * lands at. Outboxes never report a resume position past the lowest of them: acks for later
+ * writes must not let a restart skip one whose offer is still on its way.
+ */
+public final class PendingOffers {
+    // log end at reservation -> writes reserved there
+    private final TreeMap<Long, Integer> floors = new TreeMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Reserves from {@code logEnd}, the log's end position read before the write's append. */
+    public Reservation reserve(long logEnd) {
+        lock.lock();
+        try {
+            floors.merge(logEnd, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+        return new Reservation(this, logEnd);
+    }
+
+    /** Lowest position a pending write can have been appended at, or {@code Long.MAX_VALUE} if none is pending. */
+    public long lowest() {
+        lock.lock();
+        try {
+            return floors.isEmpty() ? Long.MAX_VALUE : floors.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long logEnd) {
+        lock.lock();
+        try {
+            floors.computeIfPresent(logEnd, (k, n) -> n == 1 ? null : n - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Held from before a write's append until it was offered to every outbox it goes to. */
+    public static final class Reservation implements AutoCloseable {
+        private final PendingOffers owner;
+        private final long logEnd;
+        private boolean released;
+
+        private Reservation(PendingOffers owner, long logEnd) {
+            this.owner = owner;
+            this.logEnd = logEnd;
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            owner.release(logEnd);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.dms.server.repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Secondary index from one attribute of a message (its receiver, its sender) to the messages that
+ * carry each value. A value's postings are kept in skip lists ordered by offset and, when
+ * {@code ordered} is set, also by Lamport stamp and by timestamp, so a range in any of those
+ * orders is found in O(log n) and read page by page without touching other values' messages.
+ * Ties are broken by offset, which is unique, so a (value, offset) pair is a stable cursor.
+ */
+public final class InboxIndex {
+    public enum Order { OFFSET, LAMPORT, TIME }
+
+    static final class Posting {
+        final long offset;
+        final long lamport;
+        final long timeMs;
+        final String id;
+
+        Posting(long offset, long lamport, long timeMs, String id) {
+            this.offset = offset;
+            this.lamport = lamport;
+            this.timeMs = timeMs;
+            this.id = id;
+        }
+
+        long key(Order order) {
+            switch (order) {
+                case LAMPORT: return lamport;
+                case TIME: return timeMs;
+                default: return offset;
+            }
+        }
+    }
+
+    private static final Comparator<Posting> BY_OFFSET = Comparator.comparingLong(p -> p.offset);
+    private static final Comparator<Posting> BY_LAMPORT = Comparator.<Posting>comparingLong(p -> p.lamport).thenComparing(BY_OFFSET);
+    private static final Comparator<Posting> BY_TIME = Comparator.<Posting>comparingLong(p -> p.timeMs).thenComparing(BY_OFFSET);
+
+    private final boolean ordered;
+    private final ConcurrentHashMap<String, Postings> byValue = new ConcurrentHashMap<>();
+
+    InboxIndex(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    void add(String value, Posting p) {
+        Postings ps = byValue.computeIfAbsent(value, k -> new Postings(ordered));
+        if (ps.byOffset.add(p)) ps.count.incrementAndGet();
+        if (ordered) {
+            ps.byLamport.add(p);
+            ps.byTime.add(p);
+        }
+    }
+
+    void remove(String value, Posting p) {
+        Postings ps = byValue.get(value);
+        if (ps == null) return;
+        if (ps.byOffset.remove(p)) ps.count.decrementAndGet();
+        if (ordered) {
+            ps.byLamport.remove(p);
+            ps.byTime.remove(p);
+        }
+    }
+
+    /**
+     * Up to {@code limit} postings of {@code value} with {@code from <= key <= to} in the given
+     * order, starting after the posting at ({@code afterKey}, {@code afterOffset}) if one is given.
+     */
+    List<Posting> range(String value, Order order, long from, long to, Long afterKey, long afterOffset, int limit) {
+        List<Posting> out = new ArrayList<>();
+        Postings ps = byValue.get(value);
+        if (ps == null || from > to) return out;
+        NavigableSet<Posting> set = ps.view(order);
+        if (set == null) throw new IllegalArgumentException("index is only ordered by offset");
+        Posting low = afterKey != null ? probe(order, afterKey, afterOffset) : probe(order, from, Long.MIN_VALUE);
+        boolean inclusive = afterKey == null;
+        for (Posting p : set.tailSet(low, inclusive)) {
+            long k = p.key(order);
+            if (k < from) continue;
+            if (k > to || out.size() >= limit) break;
+            out.add(p);
+        }
+        return out;
+    }
+
+    int size(String value) {
+        Postings ps = byValue.get(value);
+        return ps == null ? 0 : ps.count.get();
+    }
+
+    private static Posting probe(Order order, long key, long offset) {
+        switch (order) {
+            case LAMPORT: return new Posting(offset, key, 0, null);
+            case TIME: return new Posting(offset, 0, key, null);
+            default: return new Posting(key, 0, 0, null);
+        }
+    }
+
+    private static final class Postings {
+        final ConcurrentSkipListSet<Posting> byOffset = new ConcurrentSkipListSet<>(BY_OFFSET);
+        final ConcurrentSkipListSet<Posting> byLamport;
+        final ConcurrentSkipListSet<Posting> byTime;
+        // skip list size() walks every node, so the count is kept alongside
+        final AtomicInteger count = new AtomicInteger();
+
+        Postings(boolean ordered) {
+            byLamport = ordered ? new ConcurrentSkipListSet<>(BY_LAMPORT) : null;
+            byTime = ordered ? new ConcurrentSkipListSet<>(BY_TIME) : null;
+        }
+
+        NavigableSet<Posting> view(Order order) {
+            switch (order) {
+                case LAMPORT: return byLamport;
+                case TIME: return byTime;
+                default: return byOffset;
+            }
+        }
+    }
+}
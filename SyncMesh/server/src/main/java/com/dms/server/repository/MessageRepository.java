@@ -1,32 +1,535 @@
 package com.dms.server.repository;
 
 import com.dms.common.model.Message;
+import com.dms.common.model.VectorClock;
+import com.dms.server.storage.MessageLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 @Repository
 public class MessageRepository {
-    private final List<Message> store = new ArrayList<>();
-    public synchronized void upsertByIdWithLamport(Message incoming) {
-        Optional<Integer> existingIdx = Optional.empty();
-        for (int i = 0; i < store.size(); i++) {
-            if (store.get(i).getId().equals(incoming.getId())) { existingIdx = Optional.of(i); break; }
+    private static final Logger logger = LoggerFactory.getLogger(MessageRepository.class);
+    // keyed by message id; ConcurrentHashMap locks per bin so writers to different ids don't contend
+    private final ConcurrentHashMap<String, Entry> store = new ConcurrentHashMap<>();
+    private final AtomicLong arrivals = new AtomicLong();
+    // offsets are taken inside compute but indexed after it, so readers only see offsets up to the
+    // highest one below which every arrival is indexed; later ones wait in indexedAhead
+    private volatile long visible;
+    private final TreeMap<Long, String> indexedAhead = new TreeMap<>();
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final AtomicLong modCount = new AtomicLong();
+    private final AtomicLong maxLamport = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+    private final MessageLog log;
+    private final int maxResident;
+    // entries whose message body is still on the heap, oldest first; bodies past the cap are dropped
+    // and re-read from the mapped log on demand
+    private final ConcurrentLinkedQueue<Entry> resident = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger residentCount = new AtomicInteger();
+    private final AtomicLong evicted = new AtomicLong();
+    // per origin, the highest broadcast counter among recovered messages
+    private final VectorClock recoveredFrontier = new VectorClock();
+    // secondary indexes, so reads for one receiver or sender touch only that receiver's or sender's
+    // messages; origins only need offset order, for consumers that also read what they sent
+    private final InboxIndex byReceiver = new InboxIndex(true);
+    private final InboxIndex bySender = new InboxIndex(true);
+    private final InboxIndex byOrigin = new InboxIndex(false);
+    private final List<ArrivalListener> arrivalListeners = new CopyOnWriteArrayList<>();
+
+    /** Told about every message id stored for the first time, with the offset it arrived at. */
+    public interface ArrivalListener {
+        void onArrival(long offset, String id, String receiver, String originNodeId);
+    }
+
+    @Autowired
+    public MessageRepository(MessageLog log, @Value("${storage.heap.max-resident:100000}") int maxResident) {
+        this.log = log;
+        this.maxResident = log.isEnabled() ? maxResident : 0;
+    }
+
+    public MessageRepository(MessageLog log) {
+        this(log, 0);
+    }
+
+    @PostConstruct
+    public void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        long records = log.recover((position, m) -> {
+            if (m.isWithdrawn()) {
+                Entry current = store.get(m.getId());
+                if (current != null && (sameStamp(m, current) || wins(m, current))) remove(m.getId());
+                return true;
+            }
+            applyUpsert(m, position, true);
+            if ("BROADCAST".equals(m.getReceiver()) && m.getOriginNodeId() != null) {
+                long counter = m.getVectorClock().get(m.getOriginNodeId());
+                if (counter > recoveredFrontier.get(m.getOriginNodeId())) recoveredFrontier.set(m.getOriginNodeId(), counter);
+            }
+            trimResident();
+            return true;
+        });
+        if (records > 0) {
+            logger.info("Recovered {} messages from {} log records in {}ms", store.size(), records, System.currentTimeMillis() - start);
+        }
+    }
+
+    // a version is logged (and, with storage.sync-writes, flushed) before readers can see it, so a
+    // failed append leaves nothing behind; a version that loses a race after logging is ignored on replay
+    public void upsertByIdWithLamport(Message incoming) {
+        if (!wouldAccept(incoming.getId(), incoming.getLamport(), incoming.getOriginNodeId())) return;
+        long position = log.append(incoming);
+        applyUpsert(incoming, position, false);
+        trimResident();
+    }
+
+    /** Applies a batch with one log append for every version that would win. */
+    public void upsertAll(List<Message> batch) {
+        List<Message> toLog = new ArrayList<>(batch.size());
+        for (Message m : batch) {
+            if (wouldAccept(m.getId(), m.getLamport(), m.getOriginNodeId())) toLog.add(m);
+        }
+        if (toLog.isEmpty()) return;
+        long[] positions = log.appendAll(toLog);
+        for (int i = 0; i < positions.length; i++) applyUpsert(toLog.get(i), positions[i], false);
+        trimResident();
+    }
+
+    // while replaying, a later record with the same stamp also replaces: it is this node's own
+    // rewrite of the version, e.g. one whose total order sequence was cleared by save()
+    private Entry applyUpsert(Message incoming, long position, boolean replaying) {
+        Entry[] applied = new Entry[1];
+        Entry[] previous = new Entry[1];
+        store.compute(incoming.getId(), (id, current) -> {
+            previous[0] = current;
+            if (current == null) {
+                applied[0] = new Entry(arrivals.incrementAndGet(), incoming);
+            } else if (wins(incoming, current) || (replaying && sameStamp(incoming, current))) {
+                applied[0] = new Entry(current.arrival, incoming);
+            } else {
+                return current;
+            }
+            applied[0].position = position;
+            return applied[0];
+        });
+        if (applied[0] == null) return null;
+        maxLamport.accumulateAndGet(incoming.getLamport(), Math::max);
+        modCount.incrementAndGet();
+        track(applied[0]);
+        indexArrival(previous[0], applied[0], incoming.getId());
+        return applied[0];
+    }
+
+    private void indexArrival(Entry previous, Entry e, String id) {
+        // a newer version keeps its offset but not its stamps, so its postings are replaced
+        if (previous != null) unindex(previous);
+        byReceiver.add(safeStr(e.receiver), e.posting);
+        bySender.add(safeStr(e.sender), e.posting);
+        byOrigin.add(safeStr(e.originNodeId), e.posting);
+        if (previous == null) publish(e.arrival, id);
+    }
+
+    // advances the visible offset over every indexed arrival and tells listeners in offset order
+    private void publish(long offset, String id) {
+        publishLock.lock();
+        try {
+            indexedAhead.put(offset, id);
+            Map.Entry<Long, String> next;
+            while ((next = indexedAhead.firstEntry()) != null && next.getKey() == visible + 1) {
+                indexedAhead.pollFirstEntry();
+                visible = next.getKey();
+                Entry e = store.get(next.getValue());
+                if (e != null && e.arrival == next.getKey()) notifyArrival(e, next.getValue());
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private void notifyArrival(Entry e, String id) {
+        for (ArrivalListener l : arrivalListeners) {
+            try {
+                l.onArrival(e.arrival, id, e.receiver, e.originNodeId);
+            } catch (Exception ex) {
+                logger.warn("Arrival listener failed: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void unindex(Entry e) {
+        byReceiver.remove(safeStr(e.receiver), e.posting);
+        bySender.remove(safeStr(e.sender), e.posting);
+        byOrigin.remove(safeStr(e.originNodeId), e.posting);
+    }
+
+    public void addArrivalListener(ArrivalListener listener) {
+        arrivalListeners.add(listener);
+    }
+
+    /**
+     * Offset of the most recent arrival readers can see: every offset up to it is indexed. Offsets
+     * start at 1 and follow the log, so they survive restarts.
+     */
+    public long latestOffset() { return visible; }
+
+    /**
+     * Up to {@code max} current messages from offset {@code fromOffset} on that are addressed to
+     * {@code receiver} or broadcast, plus, with {@code includeSent}, those that originated on it;
+     * keyed by offset. Only the matching index tails are read, never the whole store.
+     */
+    public SortedMap<Long, Message> findForReceiver(String receiver, boolean includeSent, long fromOffset, int max) {
+        // never past the visible offset, or a consumer could step over an arrival still being indexed
+        long toOffset = visible;
+        TreeMap<Long, InboxIndex.Posting> postings = new TreeMap<>();
+        collect(byReceiver, receiver, fromOffset, toOffset, max, postings);
+        if (!"BROADCAST".equals(receiver)) collect(byReceiver, "BROADCAST", fromOffset, toOffset, max, postings);
+        if (includeSent) collect(byOrigin, receiver, fromOffset, toOffset, max, postings);
+        SortedMap<Long, Message> out = new TreeMap<>();
+        for (InboxIndex.Posting p : postings.values()) {
+            if (out.size() >= max) break;
+            Message m = current(p);
+            if (m != null) out.put(p.offset, m);
         }
-        if (existingIdx.isEmpty()) {
-            store.add(incoming);
-            return;
+        return out;
+    }
+
+    private static void collect(InboxIndex index, String value, long fromOffset, long toOffset, int max,
+                                TreeMap<Long, InboxIndex.Posting> into) {
+        if (fromOffset > toOffset) return;
+        for (InboxIndex.Posting p : index.range(value, InboxIndex.Order.OFFSET, fromOffset, toOffset, null, 0, max)) {
+            into.put(p.offset, p);
         }
-        Message current = store.get(existingIdx.get());
-        int cmp = Long.compare(incoming.getLamport(), current.getLamport());
-        if (cmp > 0 || (cmp == 0 && safeStr(incoming.getOriginNodeId()).compareTo(safeStr(current.getOriginNodeId())) > 0)) {
-            store.set(existingIdx.get(), incoming);
+    }
+
+    /**
+     * Up to {@code limit} current messages addressed to {@code receiver} (or, with {@code bySender},
+     * sent by it) whose offset, Lamport stamp or timestamp in epoch millis lies in
+     * [{@code from}, {@code to}], in that order. {@code after} is a cursor returned by an earlier
+     * call; each message is keyed by its own cursor, so the last key continues the page.
+     * Broadcasts are indexed under the receiver {@code BROADCAST}.
+     */
+    public LinkedHashMap<String, Message> findIndexed(String value, boolean bySender, InboxIndex.Order order,
+                                                      long from, long to, String after, int limit) {
+        Long afterKey = null;
+        long afterOffset = 0;
+        if (after != null && !after.isEmpty()) {
+            int sep = after.indexOf(':');
+            if (sep < 0) throw new IllegalArgumentException("bad cursor: " + after);
+            afterKey = Long.parseLong(after.substring(0, sep));
+            afterOffset = Long.parseLong(after.substring(sep + 1));
+        }
+        InboxIndex index = bySender ? this.bySender : byReceiver;
+        LinkedHashMap<String, Message> out = new LinkedHashMap<>();
+        for (InboxIndex.Posting p : index.range(value, order, from, to, afterKey, afterOffset, limit)) {
+            Message m = current(p);
+            if (m != null) out.put(p.key(order) + ":" + p.offset, m);
         }
+        return out;
+    }
+
+    /** Number of current messages addressed to {@code value}, or sent by it with {@code bySender}. */
+    public int countIndexed(String value, boolean bySender) {
+        return (bySender ? this.bySender : byReceiver).size(value);
+    }
+
+    // the message a posting points at, unless a newer version has replaced it since
+    private Message current(InboxIndex.Posting p) {
+        Entry e = store.get(p.id);
+        return e == null || e.posting != p ? null : body(e);
+    }
+
+    private void track(Entry e) {
+        if (maxResident <= 0) return;
+        resident.add(e);
+        residentCount.incrementAndGet();
+    }
+
+    private boolean wins(Message incoming, Entry current) {
+        return wins(incoming.getLamport(), incoming.getOriginNodeId(), current);
+    }
+
+    private boolean sameStamp(Message incoming, Entry current) {
+        return incoming.getLamport() == current.lamport && safeStr(incoming.getOriginNodeId()).equals(safeStr(current.originNodeId));
+    }
+
+    // last-writer-wins: higher Lamport stamp, ties broken by originNodeId
+    private boolean wins(long lamport, String originNodeId, Entry current) {
+        int cmp = Long.compare(lamport, current.lamport);
+        return cmp > 0 || (cmp == 0 && safeStr(originNodeId).compareTo(safeStr(current.originNodeId)) > 0);
+    }
+
+    /** Whether a version with this stamp would replace what is stored for {@code id} (or fill a gap). */
+    public boolean wouldAccept(String id, long lamport, String originNodeId) {
+        Entry current = store.get(id);
+        return current == null || wins(lamport, originNodeId, current);
     }
 
     private String safeStr(String s) { return s == null ? "" : s; }
-    public synchronized void save(Message m) { store.add(m); }
-    public List<Message> findAll() { return new ArrayList<>(store); }
+
+    private void trimResident() {
+        if (maxResident <= 0) return;
+        while (residentCount.get() > maxResident) {
+            Entry oldest = resident.poll();
+            if (oldest == null) return;
+            residentCount.decrementAndGet();
+            // only bodies that are safely on disk can be dropped
+            if (oldest.position >= 0 && oldest.message != null) {
+                oldest.message = null;
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public void save(Message m) {
+        long position = log.append(m);
+        Entry[] saved = new Entry[1];
+        Entry[] previous = new Entry[1];
+        store.compute(m.getId(), (id, current) -> {
+            previous[0] = current;
+            saved[0] = new Entry(current == null ? arrivals.incrementAndGet() : current.arrival, m);
+            saved[0].position = position;
+            return saved[0];
+        });
+        maxLamport.accumulateAndGet(m.getLamport(), Math::max);
+        modCount.incrementAndGet();
+        track(saved[0]);
+        indexArrival(previous[0], saved[0], m.getId());
+        trimResident();
+    }
+
+    public Message findById(String id) {
+        Entry e = store.get(id);
+        return e == null ? null : body(e);
+    }
+
+    private Message body(Entry e) {
+        Message m = e.message;
+        return m != null ? m : log.read(e.position);
+    }
+
+    public boolean contains(String id) { return store.containsKey(id); }
+
+    public interface VersionVisitor {
+        void visit(String id, long lamport, String originNodeId, String receiver, String topic, int partition);
+    }
+
+    /** Visits the stamp of every current version without touching message bodies. */
+    public void forEachVersion(VersionVisitor visitor) {
+        store.forEach((id, e) -> visitor.visit(id, e.lamport, e.originNodeId, e.receiver, e.topic, e.partition));
+    }
+
+    /**
+     * Forgets a message this node no longer has to hold, e.g. a partition handed to other servers.
+     * Its log record stays until the segment is retired.
+     */
+    public boolean remove(String id) {
+        Entry e = store.remove(id);
+        if (e == null) return false;
+        unindex(e);
+        e.message = null;
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes back the current version of a message that readers must not see any more, e.g. a total
+     * order entry dropped before it committed. Unlike {@link #remove} this is logged, so recovery
+     * doesn't bring the message back; a later version stores it again.
+     */
+    public boolean withdraw(String id) {
+        Entry e = store.get(id);
+        if (e == null) return false;
+        Message marker = Message.blank();
+        marker.setId(id);
+        marker.setLamport(e.lamport);
+        marker.setOriginNodeId(e.originNodeId);
+        marker.setWithdrawn(true);
+        log.append(marker);
+        if (!store.remove(id, e)) return false;
+        unindex(e);
+        e.message = null;
+        modCount.incrementAndGet();
+        return true;
+    }
+
+    /** Changes whenever any message is added or replaced, so derived views can be cached against it. */
+    public long version() { return modCount.get(); }
+
+    /** Log position of the current version of a message, or -1 if unknown or not logged. */
+    public long positionOf(String id) {
+        Entry e = store.get(id);
+        return e == null ? -1 : e.position;
+    }
+
+    public int size() { return store.size(); }
+
+    /** Per origin, the highest broadcast counter in the recovered log, where causal delivery resumes. */
+    public VectorClock recoveredFrontier() { return recoveredFrontier; }
+
+    /** Highest Lamport stamp stored, so a restarted node resumes its clock past everything it recovered. */
+    public long maxLamport() { return maxLamport.get(); }
+
+    /**
+     * Returns an immutable, arrival-ordered view of the store. The view is rebuilt lazily
+     * only when a write happened since the last call, so repeated polls are free. Once bodies
+     * have been evicted to the log the view is not cached, to keep the heap bounded.
+     */
+    public List<Message> findAll() {
+        Snapshot s = snapshot;
+        long version = modCount.get();
+        if (s.version == version) return s.messages;
+        List<Entry> entries = new ArrayList<>(store.values());
+        entries.sort(Comparator.comparingLong(e -> e.arrival));
+        List<Message> out = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            Message m = body(e);
+            if (m != null) out.add(m);
+        }
+        List<Message> view = Collections.unmodifiableList(out);
+        if (evicted.get() == 0) snapshot = new Snapshot(version, view);
+        return view;
+    }
+
+    /** Current versions of messages with {@code lamport >= minLamport}, in log order, at most {@code limit}. */
+    public List<Message> findSinceLamport(long minLamport, int limit) {
+        if (!log.isEnabled()) return filterAll(m -> m.getLamport() >= minLamport, limit);
+        List<Message> out = new ArrayList<>();
+        Set<String> emitted = new HashSet<>();
+        log.scan(log.seekLamport(minLamport), (position, m) -> {
+            if (m.getLamport() >= minLamport && isCurrent(position, m) && emitted.add(m.getId())) out.add(m);
+            return out.size() < limit;
+        });
+        return out;
+    }
+
+    /** Current versions of messages with {@code from <= timestamp < to}, in log order, at most {@code limit}. */
+    public List<Message> findBetween(Instant from, Instant to, int limit) {
+        long fromMs = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long toMs = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        if (!log.isEnabled()) return filterAll(m -> inRange(m, fromMs, toMs), limit);
+        List<Message> out = new ArrayList<>();
+        Set<String> emitted = new HashSet<>();
+        log.scan(fromMs == Long.MIN_VALUE ? 0 : log.seekTimestamp(fromMs), (position, m) -> {
+            if (inRange(m, fromMs, toMs) && isCurrent(position, m) && emitted.add(m.getId())) out.add(m);
+            return out.size() < limit;
+        });
+        return out;
+    }
+
+    /** The {@code n} most recently written messages, oldest first. */
+    public List<Message> findLatest(int n) {
+        if (n <= 0) return Collections.emptyList();
+        if (!log.isEnabled()) {
+            List<Message> all = findAll();
+            return all.subList(Math.max(0, all.size() - n), all.size());
+        }
+        long total = log.recordCount();
+        long want = n;
+        while (true) {
+            long from = Math.max(0, total - want);
+            ArrayDeque<Message> window = new ArrayDeque<>(n);
+            Set<String> emitted = new HashSet<>();
+            log.scan(log.seekOrdinal(from), (position, m) -> {
+                if (isCurrent(position, m) && emitted.add(m.getId())) {
+                    if (window.size() == n) window.pollFirst();
+                    window.addLast(m);
+                }
+                return true;
+            });
+            // superseded versions in the tail can leave the window short; widen and retry
+            if (window.size() >= n || from == 0) return new ArrayList<>(window);
+            want *= 2;
+        }
+    }
+
+    private boolean isCurrent(long position, Message m) {
+        Entry e = store.get(m.getId());
+        return e != null && (e.position == position || (e.position < 0 && e.lamport == m.getLamport()));
+    }
+
+    private boolean inRange(Message m, long fromMs, long toMs) {
+        if (m.getTimestamp() == null) return false;
+        long ts = m.getTimestamp().toEpochMilli();
+        return ts >= fromMs && ts < toMs;
+    }
+
+    /** Current messages of the given partitions of {@code topic}, in arrival order, at most {@code limit}. */
+    public List<Message> findByTopic(String topic, Set<Integer> partitions, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry e : store.values()) {
+            if (topic.equals(e.topic) && partitions.contains(e.partition)) entries.add(e);
+        }
+        entries.sort(Comparator.comparingLong(e -> e.arrival));
+        List<Message> out = new ArrayList<>(Math.min(limit, entries.size()));
+        for (Entry e : entries) {
+            if (out.size() >= limit) break;
+            Message m = body(e);
+            if (m != null) out.add(m);
+        }
+        return out;
+    }
+
+    private List<Message> filterAll(Predicate<Message> p, int limit) {
+        List<Message> out = new ArrayList<>();
+        for (Message m : findAll()) {
+            if (out.size() >= limit) break;
+            if (p.test(m)) out.add(m);
+        }
+        return out;
+    }
+
+    private static final class Entry {
+        final long arrival;
+        final long lamport;
+        final String originNodeId;
+        final String receiver;
+        final String sender;
+        final String topic;
+        final int partition;
+        final InboxIndex.Posting posting;
+        volatile Message message;
+        volatile long position = -1;
+        Entry(long arrival, Message message) {
+            this.arrival = arrival;
+            this.message = message;
+            this.lamport = message.getLamport();
+            this.originNodeId = message.getOriginNodeId();
+            this.receiver = message.getReceiver();
+            this.sender = message.getSender();
+            this.topic = message.getTopic();
+            this.partition = message.getPartition();
+            this.posting = new InboxIndex.Posting(arrival, lamport,
+                    message.getTimestamp() == null ? 0 : message.getTimestamp().toEpochMilli(), message.getId());
+        }
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final List<Message> messages;
+        Snapshot(long version, List<Message> messages) { this.version = version; this.messages = messages; }
+    }
 }
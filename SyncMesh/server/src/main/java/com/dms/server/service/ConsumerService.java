@@ -0,0 +1,259 @@
+package com.dms.server.service;
+
+import com.dms.common.model.Message;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.storage.MessageLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pull API for consumers. Every message a node stores gets the next offset of that node; a poll
+ * returns the messages addressed to one receiver (its unicasts and all broadcasts) from an offset
+ * on, read from the repository's per-receiver index, so its cost depends on what is new rather
+ * than on the size of the store.
+ *
+ * <p>A poll that finds nothing waits up to {@code waitMs} (capped at {@code consumer.max-wait-ms})
+ * without holding a request thread, and is answered as soon as a matching message arrives.
+ * Named consumers can commit the next offset they want to read; those commits are kept per
+ * consumer and receiver next to the log and survive restarts. Offsets are local to a node.
+ */
+@Service
+public class ConsumerService {
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerService.class);
+    private final MessageRepository repo;
+    private final long maxWaitMs;
+    private final int maxBatch;
+    private final int maxWaiting;
+    private final Path offsetsFile;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "consumer-poll");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // parked polls, by the receiver they read
+    private final Map<String, Set<Waiter>> waiting = new ConcurrentHashMap<>();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    // "consumer@receiver" -> next offset to read
+    private final Map<String, Long> committed = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+    private final AtomicLong wokenByArrival = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public ConsumerService(MessageRepository repo, MessageLog log,
+                           @Value("${consumer.max-wait-ms:30000}") long maxWaitMs,
+                           @Value("${consumer.max-batch:1000}") int maxBatch,
+                           @Value("${consumer.max-waiting:10000}") int maxWaiting) {
+        this.repo = repo;
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.offsetsFile = log.isEnabled() ? log.directory().resolve("consumer-offsets.properties") : null;
+    }
+
+    @PostConstruct
+    private void start() {
+        loadOffsets();
+        repo.addArrivalListener(this::onArrival);
+        scheduler.scheduleWithFixedDelay(this::persist, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        persist();
+    }
+
+    /**
+     * Messages for {@code receiver} from {@code fromOffset} on, or from the consumer's committed
+     * offset if none is given (the start of the log for a new consumer). Completes straight away
+     * if there are any, otherwise once one arrives or {@code waitMs} has passed.
+     */
+    public CompletableFuture<Map<String, Object>> poll(String receiver, String consumer, Long fromOffset, int max,
+                                                       long waitMs, boolean includeSent) {
+        polls.incrementAndGet();
+        long from = fromOffset != null ? Math.max(1, fromOffset) : committed(consumer, receiver);
+        Waiter w = new Waiter(receiver, consumer, from, Math.max(1, Math.min(max, maxBatch)), includeSent);
+        Map<String, Object> now = w.read();
+        long wait = Math.min(Math.max(0, waitMs), maxWaitMs);
+        if (now != null || wait == 0 || waitingCount.get() >= maxWaiting) return CompletableFuture.completedFuture(w.result(now));
+
+        parked.incrementAndGet();
+        waitingCount.incrementAndGet();
+        waiting.computeIfAbsent(receiver, k -> ConcurrentHashMap.newKeySet()).add(w);
+        w.timeout = scheduler.schedule(() -> {
+            if (w.finish(null)) timedOut.incrementAndGet();
+        }, wait, TimeUnit.MILLISECONDS);
+        // a message that landed between the first read and parking would not wake us
+        Map<String, Object> late = w.read();
+        if (late != null) w.finish(late);
+        return w.future;
+    }
+
+    // runs on the storing thread: only hands matching waiters to the poll thread
+    private void onArrival(long offset, String id, String receiver, String originNodeId) {
+        if (waitingCount.get() == 0) return;
+        List<Waiter> due = new ArrayList<>();
+        if ("BROADCAST".equals(receiver)) {
+            for (Set<Waiter> ws : waiting.values()) due.addAll(ws);
+        } else {
+            Set<Waiter> ws = receiver == null ? null : waiting.get(receiver);
+            if (ws != null) due.addAll(ws);
+            Set<Waiter> senders = originNodeId == null ? null : waiting.get(originNodeId);
+            if (senders != null) {
+                for (Waiter w : senders) {
+                    if (w.includeSent) due.add(w);
+                }
+            }
+        }
+        for (Waiter w : due) {
+            if (offset < w.from) continue;
+            scheduler.execute(() -> {
+                Map<String, Object> found = w.read();
+                if (found != null && w.finish(found)) wokenByArrival.incrementAndGet();
+            });
+        }
+    }
+
+    /** Records the next offset {@code consumer} wants to read for {@code receiver}. */
+    public Map<String, Object> commit(String consumer, String receiver, long offset) {
+        committed.put(key(consumer, receiver), Math.max(1, offset));
+        dirty.set(true);
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("consumer", consumer);
+        out.put("receiver", receiver);
+        out.put("offset", committed(consumer, receiver));
+        return out;
+    }
+
+    public long committed(String consumer, String receiver) {
+        if (consumer == null || consumer.isEmpty()) return 1;
+        return committed.getOrDefault(key(consumer, receiver), 1L);
+    }
+
+    private static String key(String consumer, String receiver) {
+        return consumer + "@" + receiver;
+    }
+
+    private void loadOffsets() {
+        if (offsetsFile == null || !Files.exists(offsetsFile)) return;
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(offsetsFile)) {
+            p.load(in);
+            for (String k : p.stringPropertyNames()) committed.put(k, Long.parseLong(p.getProperty(k).trim()));
+            logger.info("Loaded {} consumer offsets", committed.size());
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Failed to load consumer offsets: {}", e.getMessage());
+        }
+    }
+
+    private void persist() {
+        if (offsetsFile == null || !dirty.getAndSet(false)) return;
+        Properties p = new Properties();
+        committed.forEach((k, v) -> p.setProperty(k, Long.toString(v)));
+        try {
+            Files.createDirectories(offsetsFile.getParent());
+            Path tmp = offsetsFile.resolveSibling(offsetsFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                p.store(out, null);
+            }
+            Files.move(tmp, offsetsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            logger.warn("Failed to persist consumer offsets: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("latestOffset", repo.latestOffset());
+        out.put("polls", polls.get());
+        out.put("parked", parked.get());
+        out.put("waiting", waitingCount.get());
+        out.put("wokenByArrival", wokenByArrival.get());
+        out.put("timedOut", timedOut.get());
+        out.put("committedOffsets", new LinkedHashMap<>(committed));
+        return out;
+    }
+
+    private final class Waiter {
+        final String receiver;
+        final String consumer;
+        final long from;
+        final int max;
+        final boolean includeSent;
+        final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(String receiver, String consumer, long from, int max, boolean includeSent) {
+            this.receiver = receiver;
+            this.consumer = consumer;
+            this.from = from;
+            this.max = max;
+            this.includeSent = includeSent;
+        }
+
+        // the batch as a response body, or null if there is nothing new yet
+        Map<String, Object> read() {
+            SortedMap<Long, Message> found = repo.findForReceiver(receiver, includeSent, from, max);
+            if (found.isEmpty()) return null;
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("messages", new ArrayList<>(found.values()));
+            out.put("nextOffset", found.lastKey() + 1);
+            return out;
+        }
+
+        Map<String, Object> result(Map<String, Object> found) {
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("receiver", receiver);
+            if (consumer != null) out.put("consumer", consumer);
+            out.put("fromOffset", from);
+            out.put("nextOffset", found == null ? from : found.get("nextOffset"));
+            out.put("latestOffset", repo.latestOffset());
+            out.put("messages", found == null ? new ArrayList<>() : found.get("messages"));
+            return out;
+        }
+
+        boolean finish(Map<String, Object> found) {
+            if (!done.compareAndSet(false, true)) return false;
+            Set<Waiter> ws = waiting.get(receiver);
+            if (ws != null) ws.remove(this);
+            waitingCount.decrementAndGet();
+            ScheduledFuture<?> t = timeout;
+            if (t != null) t.cancel(false);
+            future.complete(result(found));
+            return true;
+        }
+    }
+}
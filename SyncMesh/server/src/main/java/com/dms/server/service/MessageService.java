@@ -1,44 +1,128 @@
 package com.dms.server.service;
 
 import com.dms.common.model.Message;
+import com.dms.server.causal.CausalBuffer;
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.order.TotalOrderService;
+import com.dms.server.partition.PartitionManager;
+import com.dms.server.replication.PendingOffers;
+import com.dms.server.repository.InboxIndex;
 import com.dms.server.repository.MessageRepository;
 import com.dms.server.zookeeper.ZooKeeperConnector;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class MessageService {
+    private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
     private final MessageRepository repo;
     private final ReplicationService repl;
-    private final Set<String> seen = new HashSet<>();
+    private final DedupIndex seen;
+    private final CausalBuffer causal;
+    private final PartitionManager partitions;
+    private final TotalOrderService order;
     private final AtomicLong lamportClock = new AtomicLong(0);
     private final ZooKeeperConnector connector;
+    private final int maxBatchSize;
+    private final Timer sendTimer;
+    private final Timer sendBatchTimer;
+    private final Timer acceptTimer;
+    private final Timer acceptBatchTimer;
+    private final Counter sendDuplicates;
+    private final Counter acceptDuplicates;
 
-    public MessageService(MessageRepository repo, ReplicationService repl, ZooKeeperConnector connector) {
-        this.repo = repo; this.repl = repl; this.connector = connector;
+    public MessageService(MessageRepository repo, ReplicationService repl, ZooKeeperConnector connector, DedupIndex seen,
+                          CausalBuffer causal, PartitionManager partitions, TotalOrderService order,
+                          @Value("${send.batch.max-size:1000}") int maxBatchSize, MeterRegistry meters) {
+        this.repo = repo; this.repl = repl; this.connector = connector; this.seen = seen; this.causal = causal;
+        this.partitions = partitions; this.order = order; this.maxBatchSize = Math.max(1, maxBatchSize);
+        lamportClock.set(repo.maxLamport());
+        this.sendTimer = Timer.builder("dms.send").description("Client send handling, including the hand-off to replication")
+                .tag("mode", "single").register(meters);
+        this.sendBatchTimer = Timer.builder("dms.send").tag("mode", "batch").register(meters);
+        this.acceptTimer = Timer.builder("dms.accept").description("Handling of a replicated message or batch")
+                .tag("mode", "single").register(meters);
+        this.acceptBatchTimer = Timer.builder("dms.accept").tag("mode", "batch").register(meters);
+        this.sendDuplicates = Counter.builder("dms.duplicates").tag("path", "send").register(meters);
+        this.acceptDuplicates = Counter.builder("dms.duplicates").tag("path", "replica").register(meters);
     }
 
-    public Message handleMessage(Message m) {
+    /**
+     * Stores a message sent by a client and replicates it. Topic messages are stored only by the
+     * owners of their partition; a non-owner forwards them to one. In total-order mode every other
+     * message is sequenced by the leader, so a follower forwards it there.
+     */
+    public Message handleMessage(Message m) throws Exception {
+        return handle(m, false);
+    }
+
+    /**
+     * Stores a client message a peer forwarded here over its internal endpoint. It is not forwarded
+     * again, even if this node's view of the ring or the leader differs from the peer's.
+     */
+    public Message handleForwarded(Message m) throws Exception {
+        return handle(m, true);
+    }
+
+    private Message handle(Message m, boolean forwarded) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return store(m, forwarded);
+        } finally {
+            sendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Message store(Message m, boolean forwarded) throws Exception {
+        if (m.getTopic() != null && !m.getTopic().isEmpty()) {
+            if (m.getReceiver() == null || m.getReceiver().isEmpty()) m.setReceiver("TOPIC");
+            if (m.getPartition() < 0 || m.getPartition() >= partitions.partitionCount()) m.setPartition(partitions.partitionOf(m));
+            List<String> owners = partitions.owners(m.getTopic(), m.getPartition());
+            if (!forwarded && !owners.contains(connector.getNodeId())) return repl.forward(m, owners);
+        } else {
+            m.setTopic(null);
+            if (order.isEnabled() && !order.isLeader()) {
+                String leader = connector.getLeaderId();
+                if (forwarded || leader == null || leader.equals(connector.getNodeId())) {
+                    throw new IllegalStateException("no total order leader available (leader is " + leader + ")");
+                }
+                return repl.forward(m, Collections.singletonList(leader));
+            }
+        }
         long observed = m.getLamport();
         long next = lamportClock.updateAndGet(curr -> Math.max(curr, observed) + 1);
         m.setLamport(next);
         if (m.getOriginNodeId() == null || m.getOriginNodeId().isEmpty()) {
             m.setOriginNodeId(connector.getNodeId());
         }
-        // vector clock merge and increment
-        String me = connector.getNodeId();
-        m.getVectorClock().put(me, m.getVectorClock().getOrDefault(me, 0L) + 1);
         // Basic validation: receiver must be known unless broadcast
         if (m.getReceiver() == null || m.getReceiver().isEmpty()) {
             throw new IllegalArgumentException("receiver must be provided (node id or BROADCAST)");
         }
-        if (!"BROADCAST".equals(m.getReceiver())) {
+        if (!"BROADCAST".equals(m.getReceiver()) && m.getTopic() == null) {
             try {
-                String serversPath = connector.getServersPath();
-                if (connector.getZooKeeper().exists(serversPath + "/" + m.getReceiver(), false) == null) {
+                if (connector.getMember(m.getReceiver()) == null) {
                     throw new IllegalArgumentException("receiver node not found: " + m.getReceiver());
                 }
             } catch (IllegalArgumentException iae) {
@@ -47,42 +131,276 @@ public class MessageService {
                 throw new RuntimeException("failed to validate receiver in ZooKeeper: " + e.getMessage());
             }
         }
-        if (seen.contains(m.getId())) {
-            System.out.println("Duplicate message ignored: " + m.getId());
+        if (!seen.markSeen(m.getId())) {
+            sendDuplicates.increment();
+            logger.debug("Duplicate message ignored: {}", m.getId());
             return m;
         }
-        seen.add(m.getId());
-        repo.upsertByIdWithLamport(m);
-        System.out.println("DEBUG: Stored message " + m.getId() + " with originNodeId: " + m.getOriginNodeId() + ", sender: " + m.getSender() + ", receiver: " + m.getReceiver());
-        
-        // Handle broadcast vs unicast messages
-        if ("BROADCAST".equals(m.getReceiver())) {
-            repl.broadcast(m);
-            System.out.println("Stored and broadcasted message: " + m.getId());
-        } else {
-            // receiver is a nodeId like server-8082; replicate only to that node
-            repl.replicateToSingle(m, m.getReceiver());
-            System.out.println("Stored and unicast replicated message: " + m.getId() + " to " + m.getReceiver());
+        if (m.getTopic() == null && order.isEnabled()) {
+            try {
+                // followers store sequenced messages in log order, so they need no causal stamp
+                order.append(m);
+            } catch (Exception e) {
+                // not stored, so a retry must not be answered as a duplicate
+                seen.forget(m.getId());
+                throw e;
+            }
+            logger.debug("Sequenced message {} at offset {}", m.getId(), m.getSequence());
+            return m;
+        }
+        // held until the outboxes have the message, so none of them persists a position past it
+        try (PendingOffers.Reservation offer = repl.reserveOffer()) {
+            try {
+                // stamped with everything this node has delivered, so replicas deliver it after its causes
+                m.setVectorClock(causal.stampLocal("BROADCAST".equals(m.getReceiver())));
+                repo.upsertByIdWithLamport(m);
+            } catch (RuntimeException e) {
+                seen.forget(m.getId());
+                throw e;
+            }
+            logger.debug("Stored message {} with originNodeId: {}, sender: {}, receiver: {}", m.getId(), m.getOriginNodeId(), m.getSender(), m.getReceiver());
+
+            // Handle topic vs broadcast vs unicast messages
+            if (m.getTopic() != null) {
+                repl.replicateToOwners(m, partitions.owners(m.getTopic(), m.getPartition()));
+                logger.debug("Stored message {} in {}/{}", m.getId(), m.getTopic(), m.getPartition());
+            } else if ("BROADCAST".equals(m.getReceiver())) {
+                repl.broadcast(m);
+                logger.debug("Stored and broadcasted message: {}", m.getId());
+            } else {
+                // receiver is a nodeId like server-8082; replicate only to that node
+                repl.replicateToSingle(m, m.getReceiver());
+                logger.debug("Stored and unicast replicated message: {} to {}", m.getId(), m.getReceiver());
+            }
         }
         return m;
     }
 
+    /**
+     * Stores and replicates a batch sent by a client, sharing the per-message work across it: each
+     * distinct receiver is checked once, the Lamport stamps are reserved in one step, the batch is
+     * causally stamped under one lock and stored with one log append, and replication goes through
+     * the per-peer outboxes, which batch it again. Topic messages and total-order mode are routed
+     * per message, so they take the single-message path. Returns one result per message, in order.
+     */
+    public List<Map<String, Object>> handleBatch(List<Message> batch) {
+        if (batch.size() > maxBatchSize) {
+            throw new IllegalArgumentException("batch of " + batch.size() + " exceeds send.batch.max-size=" + maxBatchSize);
+        }
+        long start = System.nanoTime();
+        try {
+            return storeBatch(batch);
+        } finally {
+            sendBatchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private List<Map<String, Object>> storeBatch(List<Message> batch) {
+        List<Map<String, Object>> results = new ArrayList<>(batch.size());
+        List<Message> plain = new ArrayList<>(batch.size());
+        List<Map<String, Object>> plainResults = new ArrayList<>(batch.size());
+        Map<String, String> receiverErrors = new HashMap<>();
+        for (Message m : batch) {
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("id", m.getId());
+            results.add(r);
+            if ((m.getTopic() != null && !m.getTopic().isEmpty()) || order.isEnabled()) {
+                try {
+                    result(r, handleMessage(m), "stored");
+                } catch (IllegalArgumentException iae) {
+                    failed(r, "rejected", iae.getMessage());
+                } catch (Exception e) {
+                    failed(r, "failed", e.getMessage());
+                }
+                continue;
+            }
+            m.setTopic(null);
+            String error = receiverError(m.getReceiver(), receiverErrors);
+            if (error != null) {
+                failed(r, error.startsWith("failed") ? "failed" : "rejected", error);
+                continue;
+            }
+            plain.add(m);
+            plainResults.add(r);
+        }
+        if (plain.isEmpty()) return results;
+
+        long observed = 0;
+        for (Message m : plain) observed = Math.max(observed, m.getLamport());
+        long maxObserved = observed;
+        long last = lamportClock.updateAndGet(curr -> Math.max(curr, maxObserved) + plain.size());
+        long next = last - plain.size() + 1;
+        List<Message> fresh = new ArrayList<>(plain.size());
+        for (Message m : plain) {
+            m.setLamport(next++);
+            if (m.getOriginNodeId() == null || m.getOriginNodeId().isEmpty()) m.setOriginNodeId(connector.getNodeId());
+            if (seen.markSeen(m.getId())) fresh.add(m);
+        }
+        if (!fresh.isEmpty()) {
+            try (PendingOffers.Reservation offer = repl.reserveOffer()) {
+                try {
+                    causal.stampLocal(fresh);
+                    repo.upsertAll(fresh);
+                } catch (RuntimeException e) {
+                    for (Message m : fresh) seen.forget(m.getId());
+                    throw e;
+                }
+                repl.replicateAll(fresh);
+            }
+        }
+        Set<Message> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+        stored.addAll(fresh);
+        for (int i = 0; i < plain.size(); i++) {
+            Message m = plain.get(i);
+            result(plainResults.get(i), m, stored.contains(m) ? "stored" : "duplicate");
+        }
+        sendDuplicates.increment(plain.size() - fresh.size());
+        logger.debug("Stored batch of {} messages ({} duplicates, {} routed singly or rejected)",
+                fresh.size(), plain.size() - fresh.size(), batch.size() - plain.size());
+        return results;
+    }
+
+    // null if messages may be sent to this receiver; checked once per distinct receiver of a batch
+    private String receiverError(String receiver, Map<String, String> checked) {
+        if (receiver == null || receiver.isEmpty()) return "receiver must be provided (node id or BROADCAST)";
+        if ("BROADCAST".equals(receiver)) return null;
+        String error = checked.get(receiver);
+        if (error == null) {
+            try {
+                error = connector.getMember(receiver) == null ? "receiver node not found: " + receiver : "";
+            } catch (Exception e) {
+                error = "failed to validate receiver in ZooKeeper: " + e.getMessage();
+            }
+            checked.put(receiver, error);
+        }
+        return error.isEmpty() ? null : error;
+    }
+
+    private static void result(Map<String, Object> r, Message m, String status) {
+        r.put("id", m.getId());
+        r.put("status", status);
+        r.put("lamport", m.getLamport());
+        r.put("originNodeId", m.getOriginNodeId());
+        if (m.getSequence() > 0) r.put("sequence", m.getSequence());
+    }
+
+    private static void failed(Map<String, Object> r, String status, String error) {
+        r.put("status", status);
+        r.put("error", error != null ? error : "Internal error");
+    }
+
     // endpoint used by replicas to accept replicated messages
     public Message acceptReplica(Message m) {
+        long start = System.nanoTime();
         long observed = m.getLamport();
         lamportClock.updateAndGet(curr -> Math.max(curr, observed) + 1);
-        // merge vector clocks
-        String me = connector.getNodeId();
-        long mine = m.getVectorClock().getOrDefault(me, 0L) + 1;
-        m.getVectorClock().put(me, mine);
-        if (!seen.contains(m.getId())) {
-            repo.upsertByIdWithLamport(m);
-            seen.add(m.getId());
-            System.out.println("DEBUG: Received replicated message: " + m.getId() + " from " + m.getSender() + " to " + m.getReceiver() + " with originNodeId: " + m.getOriginNodeId());
+        if (seen.markSeen(m.getId())) {
+            // stored once its causal dependencies are
+            causal.submit(Collections.singletonList(m));
+            logger.debug("Received replicated message: {} from {} to {} with originNodeId: {}", m.getId(), m.getSender(), m.getReceiver(), m.getOriginNodeId());
         } else {
-            repo.upsertByIdWithLamport(m);
-            System.out.println("DEBUG: Duplicate replicated message considered for conflict resolution: " + m.getId() + " with originNodeId: " + m.getOriginNodeId());
+            causal.update(Collections.singletonList(m));
+            acceptDuplicates.increment();
+            logger.debug("Duplicate replicated message considered for conflict resolution: {} with originNodeId: {}", m.getId(), m.getOriginNodeId());
         }
+        acceptTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         return m;
     }
+
+    // batch variant used by /api/messages/replica/batch: one clock update and one log append for the batch
+    public List<String> acceptReplicaBatch(List<Message> batch) {
+        long start = System.nanoTime();
+        long observed = 0;
+        for (Message m : batch) observed = Math.max(observed, m.getLamport());
+        long maxObserved = observed;
+        lamportClock.updateAndGet(curr -> Math.max(curr, maxObserved) + 1);
+        List<String> acked = new ArrayList<>(batch.size());
+        List<Message> fresh = new ArrayList<>(batch.size());
+        List<Message> versions = new ArrayList<>();
+        for (Message m : batch) {
+            if (seen.markSeen(m.getId())) fresh.add(m);
+            else versions.add(m);
+            acked.add(m.getId());
+        }
+        if (!versions.isEmpty()) causal.update(versions);
+        causal.submit(fresh);
+        acceptDuplicates.increment(versions.size());
+        acceptBatchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        logger.debug("Received replicated batch of {} messages", batch.size());
+        return acked;
+    }
+
+    // endpoint used by followers to apply the total order leader's append stream
+    public Map<String, Object> acceptOrdered(String leader, long epoch, long commit, long from, long prevEpoch, List<Message> entries) {
+        long observed = 0;
+        for (Message m : entries) observed = Math.max(observed, m.getLamport());
+        long maxObserved = observed;
+        lamportClock.updateAndGet(curr -> Math.max(curr, maxObserved));
+        return order.apply(leader, epoch, commit, from, prevEpoch, entries);
+    }
+
+    /**
+     * Messages of the given partitions of a topic (all of them if {@code parts} is empty), oldest
+     * Lamport stamp first. Partitions this node owns are read locally; the rest are read from
+     * their primary owner unless {@code localOnly} is set.
+     */
+    public List<Message> readTopic(String topic, List<Integer> parts, int limit, boolean localOnly) throws Exception {
+        List<Integer> wanted = new ArrayList<>(parts);
+        if (wanted.isEmpty()) {
+            for (int p = 0; p < partitions.partitionCount(); p++) wanted.add(p);
+        }
+        List<Message> out = new ArrayList<>();
+        if (localOnly) {
+            out.addAll(repo.findByTopic(topic, new HashSet<>(wanted), limit));
+        } else {
+            String self = connector.getNodeId();
+            for (Map.Entry<String, List<Integer>> e : partitions.readPlan(topic, wanted).entrySet()) {
+                if (e.getKey().equals(self)) out.addAll(repo.findByTopic(topic, new HashSet<>(e.getValue()), limit));
+                else out.addAll(repl.readRemote(e.getKey(), topic, e.getValue(), limit));
+            }
+        }
+        out.sort(Comparator.comparingLong(Message::getLamport));
+        return out.size() > limit ? new ArrayList<>(out.subList(0, limit)) : out;
+    }
+
+    /**
+     * One page of a receiver's inbox, or a sender's outbox when {@code bySender} is set, read from
+     * the repository's secondary indexes. {@code order} is offset, lamport or time; {@code from} and
+     * {@code to} bound the order's key, as ISO instants or epoch millis for time. Pass the returned
+     * {@code nextCursor} as {@code after} to read the next page.
+     */
+    public Map<String, Object> readInbox(String value, boolean bySender, String order, String from, String to,
+                                         String after, int limit) {
+        InboxIndex.Order o;
+        try {
+            o = InboxIndex.Order.valueOf(order.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("order must be offset, lamport or time");
+        }
+        long lo = from == null ? Long.MIN_VALUE : bound(o, from);
+        long hi = to == null ? Long.MAX_VALUE : bound(o, to);
+        LinkedHashMap<String, Message> page = repo.findIndexed(value, bySender, o, lo, hi, after, Math.max(1, Math.min(limit, 1000)));
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put(bySender ? "sender" : "receiver", value);
+        out.put("order", o.name().toLowerCase(Locale.ROOT));
+        out.put("total", repo.countIndexed(value, bySender));
+        out.put("messages", new ArrayList<>(page.values()));
+        String next = null;
+        for (String cursor : page.keySet()) next = cursor;
+        out.put("nextCursor", next != null ? next : after);
+        return out;
+    }
+
+    private static long bound(InboxIndex.Order order, String v) {
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            if (order != InboxIndex.Order.TIME) throw new IllegalArgumentException("not a number: " + v);
+            try {
+                return Instant.parse(v).toEpochMilli();
+            } catch (DateTimeParseException dte) {
+                throw new IllegalArgumentException("not an instant: " + v);
+            }
+        }
+    }
 }
@@ -2,240 +2,478 @@ package com.dms.server.service;
 
 import com.dms.common.model.Message;
 import com.dms.common.model.NodeInfo;
+import com.dms.server.execution.VirtualThreads;
+import com.dms.server.partition.PartitionManager;
+import com.dms.server.replication.PeerBatcher;
+import com.dms.server.replication.PeerChannel;
+import com.dms.server.replication.PeerOutbox;
+import com.dms.server.replication.PendingOffers;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.storage.MessageLog;
 import com.dms.server.zookeeper.ZooKeeperConnector;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import org.apache.zookeeper.ZooKeeper;
-import org.apache.zookeeper.Watcher;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class ReplicationService {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationService.class);
+    private static final TypeReference<List<Message>> MESSAGE_LIST = new TypeReference<>() {};
     private final List<String> replicas = new CopyOnWriteArrayList<>();
+    // nodeId -> URL for the peers in replicas, so a departure can be mapped back to its channel
+    private final Map<String, String> peers = new ConcurrentHashMap<>();
     private final ZooKeeperConnector connector;
-    private final RestTemplate http = new RestTemplate();
     private final ObjectMapper M = new ObjectMapper().registerModule(new JavaTimeModule());
     private volatile boolean partitionMode = false;
-    private final List<Message> sentLog = new CopyOnWriteArrayList<>();
-    private static final int MAX_LOG_SIZE = 500;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final MessageLog log;
+    private final MessageRepository repo;
+    private final PartitionManager partitions;
+    // one outbox per peer node id; survives the peer leaving so it can resume from its acked position
+    private final Map<String, PeerOutbox> outboxes = new ConcurrentHashMap<>();
+    // local writes between their log append and their offers; caps every outbox's resume position
+    private final PendingOffers pendingOffers = new PendingOffers();
+    private final int outboxCapacity;
+    private final int outboxWindow;
+    private final long retryBaseMs;
+    private final long retryMaxMs;
+    private static final int WARM_UP_ATTEMPTS = 5;
+    // completion stages of the peer channels run here, never on the request thread
+    private final ExecutorService fanout;
+    private final long peerTimeoutMs;
+    private final long connectTimeoutMs;
+    // one batcher (and its long-lived channel) per peer URL; messages for the same peer share batched POSTs
+    private final Map<String, PeerBatcher> batchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-linger");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long batchLingerMs;
+    private final long batchMaxBytes;
+    private final int batchMaxInFlight;
+    private final long batchMaxQueuedBytes;
+    private final boolean binaryWire;
+    private final MeterRegistry meters;
+    private final Counter quorumMisses;
 
-    public ReplicationService(ZooKeeperConnector connector) {
+    public ReplicationService(ZooKeeperConnector connector, MessageLog log, MessageRepository repo, PartitionManager partitions,
+                              @Value("${replication.connect-timeout-ms:1000}") int connectTimeoutMs,
+                              @Value("${replication.peer-timeout-ms:3000}") long peerTimeoutMs,
+                              @Value("${replication.fanout.threads:32}") int fanoutThreads,
+                              @Value("${replication.fanout.queue:10000}") int fanoutQueue,
+                              @Value("${replication.batch.linger-ms:2}") long batchLingerMs,
+                              @Value("${replication.batch.max-bytes:262144}") long batchMaxBytes,
+                              @Value("${replication.batch.max-in-flight:4}") int batchMaxInFlight,
+                              @Value("${replication.batch.max-queued-bytes:67108864}") long batchMaxQueuedBytes,
+                              @Value("${replication.wire-format:binary}") String wireFormat,
+                              @Value("${replication.outbox.capacity:10000}") int outboxCapacity,
+                              @Value("${replication.outbox.window:1024}") int outboxWindow,
+                              @Value("${replication.retry.base-ms:100}") long retryBaseMs,
+                              @Value("${replication.retry.max-ms:30000}") long retryMaxMs,
+                              @Value("${threads.virtual.enabled:false}") boolean virtualThreads,
+                              MeterRegistry meters) {
         this.connector = connector;
-        
-        // Configure RestTemplate with timeouts
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(5000); // 5 seconds
-        factory.setReadTimeout(10000);   // 10 seconds
-        http.setRequestFactory(factory);
+        this.log = log;
+        this.repo = repo;
+        this.partitions = partitions;
+        this.outboxCapacity = outboxCapacity;
+        this.outboxWindow = outboxWindow;
+        this.retryBaseMs = retryBaseMs;
+        this.retryMaxMs = retryMaxMs;
+        this.peerTimeoutMs = peerTimeoutMs;
+        this.batchLingerMs = batchLingerMs;
+        this.batchMaxBytes = batchMaxBytes;
+        this.batchMaxInFlight = batchMaxInFlight;
+        this.batchMaxQueuedBytes = batchMaxQueuedBytes;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.binaryWire = "binary".equalsIgnoreCase(wireFormat);
+        this.meters = meters;
+        this.quorumMisses = Counter.builder("dms.replication.quorum.misses")
+                .description("Replicated writes that returned without a majority of acks").register(meters);
+
+        if (virtualThreads && VirtualThreads.available()) {
+            // one virtual thread per completion stage; replication.fanout.threads/queue don't apply
+            this.fanout = VirtualThreads.newPerTaskExecutor("replication-fanout-");
+        } else {
+            if (virtualThreads) logger.warn("threads.virtual.enabled is set but {} has no virtual threads, replication keeps its thread pool", Runtime.version());
+            AtomicInteger threadIds = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(fanoutQueue), r -> {
+                        Thread t = new Thread(r, "replication-fanout-" + threadIds.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.fanout = pool;
+        }
     }
 
     @PostConstruct
     private void initMembershipWatch() {
-        try {
-            System.out.println("Initializing membership watch...");
-            refreshReplicas();
-            ZooKeeper zk = connector.getZooKeeper();
-            String serversPath = connector.getServersPath();
-            zk.getChildren(serversPath, (Watcher) event -> {
-                System.out.println("ZooKeeper membership change detected: " + event.getType());
-                try { 
-                    refreshReplicas(); 
-                } catch (Exception e) {
-                    System.out.println("Error refreshing replicas after membership change: " + e.getMessage());
-                }
-            });
-            System.out.println("Membership watch initialized successfully");
-            
-            // Also schedule periodic refresh every 10 seconds as backup
-            scheduler.scheduleAtFixedRate(() -> {
-                try {
-                    refreshReplicas();
-                } catch (Exception e) {
-                    System.out.println("Periodic replica refresh failed: " + e.getMessage());
-                }
-            }, 10, 10, TimeUnit.SECONDS);
-            
-        } catch (Exception e) {
-            System.out.println("Failed to initialize membership watch: " + e.getMessage());
-            e.printStackTrace();
-        }
+        lingerTimer.scheduleWithFixedDelay(() -> outboxes.values().forEach(PeerOutbox::persist), 1, 1, TimeUnit.SECONDS);
+        logger.info("Initializing membership watch...");
+        // the connector replays the current members as joined, then pushes each change as it happens
+        connector.addMembershipListener(this::onMembershipChange);
+        logger.info("Membership watch initialized successfully");
     }
 
-    private void refreshReplicas() throws Exception {
-        ZooKeeper zk = connector.getZooKeeper();
-        String serversPath = connector.getServersPath();
-        List<String> children = zk.getChildren(serversPath, false);
-        List<String> current = new ArrayList<>();
+    private void onMembershipChange(Map<String, NodeInfo> joined, Set<String> left) {
         String selfId = connector.getNodeId();
-        
-        System.out.println("Found " + children.size() + " servers in ZooKeeper: " + children);
-        System.out.println("Current server ID: " + selfId);
-        
-        for (String c : children) {
-            if (c.equals(selfId)) {
-                System.out.println("Skipping self: " + c);
-                continue;
-            }
-            byte[] data = zk.getData(serversPath + "/" + c, false, null);
-            NodeInfo ni = M.readValue(data, NodeInfo.class);
+        for (String id : left) {
+            PeerOutbox outbox = outboxes.get(id);
+            if (outbox != null) outbox.detach();
+            String url = peers.remove(id);
+            if (url == null) continue;
+            replicas.remove(url);
+            PeerBatcher gone = batchers.remove(url);
+            if (gone != null) gone.close();
+            logger.info("Removed replica: {} -> {}", id, url);
+        }
+        for (Map.Entry<String, NodeInfo> e : joined.entrySet()) {
+            if (e.getKey().equals(selfId)) continue;
+            NodeInfo ni = e.getValue();
             String url = "http://" + ni.getHost() + ":" + ni.getPort();
-            current.add(url);
-            System.out.println("Added replica: " + c + " -> " + url);
+            peers.put(e.getKey(), url);
+            if (!replicas.contains(url)) replicas.add(url);
+            // opens the channel; the outbox catches the peer up from its last acked log position on its own thread
+            outbox(e.getKey()).attach(batcher(url));
+            logger.info("Added replica: {} -> {}", e.getKey(), url);
         }
-        
-        List<String> old = new ArrayList<>(replicas);
-        replicas.clear();
-        replicas.addAll(current);
-        System.out.println("Replica membership updated: " + replicas);
-        
-        // replay to new nodes
-        List<String> added = new ArrayList<>(current);
-        added.removeAll(old);
-        if (!added.isEmpty()) { 
-            System.out.println("New nodes detected, replaying messages to: " + added);
-            replayTo(added); 
+        logger.info("Replica membership updated: {}", replicas);
+    }
+
+    private PeerOutbox outbox(String nodeId) {
+        return outboxes.computeIfAbsent(nodeId, id -> {
+            String selfId = connector.getNodeId();
+            // on catch-up a peer gets what this node originated for it: broadcasts, its unicasts and
+            // messages in topic partitions it owns; sequenced messages travel on the total order stream
+            return new PeerOutbox(id, log, m -> selfId.equals(m.getOriginNodeId()) && m.getSequence() == 0
+                    && (m.getTopic() != null ? partitions.owns(id, m.getTopic(), m.getPartition())
+                        : "BROADCAST".equals(m.getReceiver()) || id.equals(m.getReceiver())),
+                    pendingOffers::lowest, lingerTimer, outboxCapacity, outboxWindow, peerTimeoutMs, retryBaseMs, retryMaxMs, meters);
+        });
+    }
+
+    /**
+     * Taken by a local write before it is appended to the log and closed once it was handed to
+     * {@link #broadcast}, {@link #replicateToSingle}, {@link #replicateAll} or {@link #replicateToOwners}
+     * (or failed), so no outbox persists a resume position past it in the meantime.
+     */
+    public PendingOffers.Reservation reserveOffer() {
+        return pendingOffers.reserve(log.endPosition());
+    }
+
+    /** Node ids of the peers currently attached. */
+    public List<String> peerIds() { return new ArrayList<>(peers.keySet()); }
+
+    /** The long-lived channel to a current peer, or {@code null} if it isn't one. */
+    public PeerChannel channelTo(String nodeId) {
+        String url = peers.get(nodeId);
+        return url == null ? null : batcher(url).channel();
+    }
+
+    /** Re-reads each peer's backlog from its last acked position in the log. */
+    public void catchUpAll() {
+        for (String id : peers.keySet()) outbox(id).catchUp();
+    }
+
+    /** Slowest smoothed ack time among the attached peers, in milliseconds; 0 without peers. */
+    public long replicationLatencyMs() {
+        long worst = 0;
+        for (String id : peers.keySet()) {
+            PeerOutbox o = outboxes.get(id);
+            if (o != null) worst = Math.max(worst, o.ackLatencyMs());
         }
+        return worst;
+    }
+
+    /** Unacked messages in the most backed-up live outbox, see {@link PeerOutbox#liveBacklog()}. */
+    public int replicationBacklog() {
+        int worst = 0;
+        for (PeerOutbox o : outboxes.values()) worst = Math.max(worst, o.liveBacklog());
+        return worst;
+    }
+
+    public List<Map<String, Object>> outboxStats() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (PeerOutbox o : outboxes.values()) out.add(o.stats());
+        return out;
     }
 
     public void setPartitionMode(boolean enabled) { this.partitionMode = enabled; }
     public boolean isPartitionMode() { return partitionMode; }
     
     public void manualRefreshReplicas() {
-        try {
-            refreshReplicas();
-        } catch (Exception e) {
-            System.out.println("Failed to manually refresh replicas: " + e.getMessage());
-        }
+        connector.refreshMembership();
     }
 
     @PreDestroy
     public void cleanup() {
-        scheduler.shutdownNow();
+        lingerTimer.shutdownNow();
+        outboxes.values().forEach(PeerOutbox::persist);
+        outboxes.values().forEach(PeerOutbox::close);
+        batchers.values().forEach(PeerBatcher::close);
+        fanout.shutdownNow();
     }
 
-    private void recordSent(Message m) {
-        sentLog.add(m);
-        if (sentLog.size() > MAX_LOG_SIZE) {
-            sentLog.remove(0);
-        }
+    // hands the message to the peer's outbox; completes with the first attempt, retries continue in the background
+    private CompletableFuture<Boolean> deliver(String nodeId, Message m) {
+        return outbox(nodeId).offer(repo.positionOf(m.getId()), m);
     }
 
-    public void replayTo(List<String> targets) {
-        for (Message m : sentLog) {
-            try {
-                String json = M.writeValueAsString(m);
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                HttpEntity<String> ent = new HttpEntity<>(json, headers);
-                for (String r : targets) {
-                    try { http.postForObject(r + "/api/messages/replica", ent, String.class); } catch (Exception ignored) {}
-                }
-            } catch (Exception ignored) {}
-        }
+    private PeerBatcher batcher(String url) {
+        return batchers.computeIfAbsent(url, u -> {
+            PeerChannel channel = new PeerChannel(u, fanout, connectTimeoutMs, peerTimeoutMs);
+            warmUp(channel, 0);
+            return new PeerBatcher(channel, M, lingerTimer, batchLingerMs, batchMaxBytes, batchMaxQueuedBytes, batchMaxInFlight, binaryWire);
+        });
+    }
+
+    // peers register in ZooKeeper slightly before their HTTP port is listening, so retry the warm-up a few times
+    private void warmUp(PeerChannel channel, int attempt) {
+        channel.connect().whenComplete((version, err) -> {
+            if (err == null) {
+                logger.info("Replication channel to {} open ({})", channel.url(), version);
+            } else if (attempt < WARM_UP_ATTEMPTS && !channel.isClosed()) {
+                lingerTimer.schedule(() -> warmUp(channel, attempt + 1), 200L << attempt, TimeUnit.MILLISECONDS);
+            } else if (!channel.isClosed()) {
+                logger.warn("Replication channel to {} not warmed up: {}", channel.url(), describe(err));
+            }
+        });
+    }
+
+    private String describe(Throwable t) {
+        Throwable cause = t instanceof java.util.concurrent.CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof TimeoutException) return "timed out after " + peerTimeoutMs + "ms";
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
     }
 
+    /**
+     * Sends to all replicas concurrently and returns as soon as a majority (counting this node)
+     * has acked, or once every replica has answered or the per-peer deadline has passed.
+     * Stragglers keep going in the background.
+     */
     public void replicate(Message m) {
         try {
-            List<String> current = new ArrayList<>(replicas);
-            System.out.println("Replicating message " + m.getId() + " to " + current);
-            String json = M.writeValueAsString(m);
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            HttpEntity<String> ent = new HttpEntity<>(json, headers);
-            int acks = 1; // self write
+            List<String> current = new ArrayList<>(peers.keySet());
+            logger.debug("Replicating message {} to {}", m.getId(), current);
+            AtomicInteger acks = new AtomicInteger(1); // self write
+            AtomicInteger answered = new AtomicInteger();
             int need = (current.size() + 1) / 2 + 1; // majority quorum
+            CompletableFuture<Void> quorum = new CompletableFuture<>();
+            if (acks.get() >= need || current.isEmpty()) quorum.complete(null);
             for (String r : current) {
-                try {
-                    ResponseEntity<String> resp = http.postForEntity(r + "/api/messages/replica", ent, String.class);
-                    if (resp.getStatusCode().is2xxSuccessful()) {
-                        acks++;
-                        System.out.println("Ack from replica " + r + " for message " + m.getId());
+                deliver(r, m).whenComplete((ok, err) -> {
+                    if (err == null && Boolean.TRUE.equals(ok)) {
+                        logger.debug("Ack from replica {} for message {}", r, m.getId());
+                        if (acks.incrementAndGet() >= need) quorum.complete(null);
+                    } else {
+                        logger.debug("Message {} not yet replicated to {} ({}), outbox will retry", m.getId(), r, err != null ? describe(err) : "not applied");
                     }
-                } catch (Exception e) {
-                    System.out.println("Failed to replicate message " + m.getId() + " to " + r + ": " + e.getMessage());
-                }
+                    if (answered.incrementAndGet() == current.size()) quorum.complete(null);
+                });
+            }
+            try {
+                quorum.get(peerTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                // fall through to the quorum check with whatever acked in time
             }
-            recordSent(m);
-            if (!partitionMode && acks < need) {
-                System.out.println("Warning: quorum not reached for message " + m.getId() + ". acks=" + acks + "/" + need);
+            if (!partitionMode && acks.get() < need) {
+                quorumMisses.increment();
+                logger.warn("Quorum not reached for message {}. acks={}/{}", m.getId(), acks.get(), need);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            System.out.println("Error during replication: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Error during replication of {}", m.getId(), e);
         }
     }
 
+    /** Fans out to every replica concurrently without waiting for the responses. */
     public void broadcast(Message m) {
         try {
-            List<String> current = new ArrayList<>(replicas);
-            System.out.println("=== BROADCAST DEBUG ===");
-            System.out.println("Broadcasting message " + m.getId() + " to " + current.size() + " replicas: " + current);
-            
+            List<String> current = new ArrayList<>(peers.keySet());
+            logger.debug("Broadcasting message {} to {} replicas: {}", m.getId(), current.size(), current);
+
             if (current.isEmpty()) {
-                System.out.println("WARNING: No replicas found! Broadcast will not reach other servers.");
-                System.out.println("Make sure other servers are running and registered in ZooKeeper.");
+                logger.debug("No replicas found, broadcast {} will not reach other servers. Make sure other servers are running and registered in ZooKeeper.", m.getId());
             }
-            
-            String json = M.writeValueAsString(m);
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            HttpEntity<String> ent = new HttpEntity<>(json, headers);
-            
+
             // Send to all other servers
             for (String r : current) {
-                try { 
-                    System.out.println("Sending broadcast to: " + r);
-                    http.postForObject(r + "/api/messages/replica", ent, String.class);
-                    System.out.println("Successfully broadcasted message " + m.getId() + " to " + r);
-                } catch (Exception e) { 
-                    System.out.println("Failed to broadcast message " + m.getId() + " to " + r + ": " + e.getMessage());
-                }
+                deliver(r, m).whenComplete((ok, err) -> {
+                    if (err == null && Boolean.TRUE.equals(ok)) {
+                        logger.debug("Successfully broadcasted message {} to {}", m.getId(), r);
+                    } else {
+                        logger.debug("Broadcast of {} not yet delivered to {} ({}), outbox will retry", m.getId(), r, err != null ? describe(err) : "not applied");
+                    }
+                });
             }
-            
+
             // For broadcast messages, also store locally so sender can see it as "SENT"
             // This is handled by the MessageService.handleMessage() method which already stores the message
-            
-            recordSent(m);
-            System.out.println("=== END BROADCAST DEBUG ===");
         } catch (Exception e) {
-            System.out.println("Error during broadcast: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Error during broadcast of {}", m.getId(), e);
         }
     }
 
     public void replicateToSingle(Message m, String targetNodeId) {
+        // a unicast addressed to this node is already stored here; an outbox for ourselves would never attach
+        if (targetNodeId.equals(connector.getNodeId())) return;
         try {
-            // map from nodeId to URL by reading servers znodes
-            ZooKeeper zk = connector.getZooKeeper();
-            String serversPath = connector.getServersPath();
-            byte[] data = zk.getData(serversPath + "/" + targetNodeId, false, null);
-            NodeInfo ni = M.readValue(data, NodeInfo.class);
+            // map from nodeId to URL via the connector's membership cache
+            NodeInfo ni = connector.getMember(targetNodeId);
+            if (ni == null) {
+                logger.warn("Failed unicast replication to {}: not a registered node", targetNodeId);
+                return;
+            }
             String url = "http://" + ni.getHost() + ":" + ni.getPort();
-            String json = M.writeValueAsString(m);
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            HttpEntity<String> ent = new HttpEntity<>(json, headers);
-            http.postForObject(url + "/api/messages/replica", ent, String.class);
-            recordSent(m);
-            System.out.println("Unicast replicated message " + m.getId() + " to " + targetNodeId + " at " + url);
+            deliver(targetNodeId, m).whenComplete((ok, err) -> {
+                if (err == null && Boolean.TRUE.equals(ok)) {
+                    logger.debug("Unicast replicated message {} to {} at {}", m.getId(), targetNodeId, url);
+                } else {
+                    logger.debug("Unicast of {} not yet delivered to {} ({}), outbox will retry", m.getId(), targetNodeId, err != null ? describe(err) : "not applied");
+                }
+            });
         } catch (Exception e) {
-            System.out.println("Failed unicast replication to " + targetNodeId + ": " + e.getMessage());
+            logger.warn("Failed unicast replication to {}: {}", targetNodeId, e.getMessage());
         }
     }
+
+    /**
+     * Hands a batch of stored client messages to the outboxes: broadcasts to every replica,
+     * unicasts to their receiver, which the caller has already checked is registered. The outboxes coalesce them into replica batches per peer.
+     */
+    public void replicateAll(List<Message> stored) {
+        List<String> current = new ArrayList<>(peers.keySet());
+        String selfId = connector.getNodeId();
+        int queued = 0;
+        for (Message m : stored) {
+            List<String> targets = "BROADCAST".equals(m.getReceiver()) ? current : Collections.singletonList(m.getReceiver());
+            for (String target : targets) {
+                // a message addressed to this node is already where it belongs
+                if (target.equals(selfId)) continue;
+                queued++;
+                deliver(target, m).whenComplete((ok, err) -> {
+                    if (err != null || !Boolean.TRUE.equals(ok)) {
+                        logger.debug("Message {} not yet delivered to {} ({}), outbox will retry", m.getId(), target, err != null ? describe(err) : "not applied");
+                    }
+                });
+            }
+        }
+        logger.debug("Queued {} deliveries for a batch of {} messages", queued, stored.size());
+    }
+
+    /** Copies a topic message to the other owners of its partition through their outboxes. */
+    public void replicateToOwners(Message m, List<String> owners) {
+        String selfId = connector.getNodeId();
+        for (String owner : owners) {
+            if (owner.equals(selfId)) continue;
+            deliver(owner, m).whenComplete((ok, err) -> {
+                if (err != null || !Boolean.TRUE.equals(ok)) {
+                    logger.debug("Topic message {} not yet replicated to owner {} ({}), outbox will retry", m.getId(), owner, err != null ? describe(err) : "not applied");
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands a message that arrived at a non-owner to the first owner of its partition (or, in
+     * total-order mode, to the leader) that takes it and returns that node's answer.
+     */
+    public Message forward(Message m, List<String> owners) throws Exception {
+        byte[] body = M.writeValueAsBytes(m);
+        String path = "/api/messages/replica/forward?node=" + URLEncoder.encode(connector.getNodeId(), StandardCharsets.UTF_8);
+        String lastError = m.getTopic() != null ? "no owner of partition " + m.getPartition() + " is reachable"
+                : "none of " + owners + " is reachable";
+        for (String owner : owners) {
+            PeerChannel channel = channelTo(owner);
+            if (channel == null) continue;
+            try {
+                HttpResponse<byte[]> resp = channel.post(path, "application/json", body)
+                        .get(peerTimeoutMs, TimeUnit.MILLISECONDS);
+                if (resp.statusCode() / 100 == 2) return M.readValue(resp.body(), Message.class);
+                String error = new String(resp.body(), StandardCharsets.UTF_8);
+                if (resp.statusCode() == 400) throw new IllegalArgumentException(error);
+                lastError = owner + " answered " + resp.statusCode() + ": " + error;
+            } catch (ExecutionException | TimeoutException e) {
+                lastError = owner + ": " + describe(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+        throw new IllegalStateException(lastError);
+    }
+
+    /** Whether {@code nodeId} is a current peer registered at {@code remoteAddr}'s host. */
+    public boolean isPeerAddress(String nodeId, String remoteAddr) {
+        if (nodeId == null || nodeId.equals(connector.getNodeId()) || !peers.containsKey(nodeId)) return false;
+        NodeInfo ni = connector.getMembers().get(nodeId);
+        if (ni == null) return false;
+        try {
+            InetAddress from = InetAddress.getByName(remoteAddr);
+            for (InetAddress a : InetAddress.getAllByName(ni.getHost())) {
+                if (a.equals(from)) return true;
+            }
+            // a peer registered as localhost may connect over any loopback address
+            return from.isLoopbackAddress() && InetAddress.getByName(ni.getHost()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /** Reads topic partitions that live on another server. */
+    public List<Message> readRemote(String nodeId, String topic, List<Integer> parts, int limit) throws Exception {
+        PeerChannel channel = channelTo(nodeId);
+        if (channel == null) throw new IllegalStateException("not a current peer: " + nodeId);
+        StringBuilder path = new StringBuilder("/api/topics/").append(URLEncoder.encode(topic, StandardCharsets.UTF_8))
+                .append("/messages?local=true&limit=").append(limit).append("&partition=");
+        for (int i = 0; i < parts.size(); i++) path.append(i == 0 ? "" : ",").append(parts.get(i));
+        HttpResponse<byte[]> resp = channel.get(path.toString()).get(peerTimeoutMs, TimeUnit.MILLISECONDS);
+        if (resp.statusCode() / 100 != 2) throw new IllegalStateException(nodeId + " answered " + resp.statusCode());
+        return M.readValue(resp.body(), MESSAGE_LIST);
+    }
+
+    /**
+     * Pushes messages straight to a peer's batcher, bypassing the outbox, for partition handoff.
+     * Completes with whether the peer applied all of them.
+     */
+    public CompletableFuture<Boolean> handoff(String nodeId, List<Message> messages) {
+        String url = peers.get(nodeId);
+        if (url == null) return CompletableFuture.completedFuture(false);
+        PeerBatcher b = batcher(url);
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>(messages.size());
+        for (Message m : messages) acks.add(b.enqueue(m).orTimeout(peerTimeoutMs, TimeUnit.MILLISECONDS).exceptionally(err -> false));
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[0]))
+                .thenApply(v -> acks.stream().allMatch(f -> Boolean.TRUE.equals(f.join())));
+    }
 }
@@ -0,0 +1,212 @@
+package com.dms.server.storage;
+
+import com.dms.common.codec.MessageCodec;
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeSlots;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable write-ahead log of every message version the repository accepts. Disabled with
+ * {@code storage.enabled=false}, in which case the node keeps the old memory-only behaviour.
+ * History reads decode records straight out of the memory-mapped segments, using the sparse
+ * index to skip to the first segment region that can contain a match.
+ */
+@Component
+public class MessageLog {
+    private static final Logger logger = LoggerFactory.getLogger(MessageLog.class);
+    static final byte FORMAT_JSON = 1;
+    static final byte FORMAT_BINARY = 2;
+
+    public interface MessageVisitor {
+        boolean visit(long position, Message m);
+    }
+
+    private final ObjectMapper M = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final boolean enabled;
+    private final boolean syncWrites;
+    private final long syncTimeoutMs;
+    private final SegmentLog log;
+    private final SparseIndex index;
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    public MessageLog(@Value("${storage.enabled:true}") boolean enabled,
+                      @Value("${storage.dir:data/${node.id:server-${server.port:8080}}}") String dir,
+                      @Value("${storage.segment.max-bytes:67108864}") long maxSegmentBytes,
+                      @Value("${storage.segment.max-age-ms:3600000}") long maxSegmentAgeMs,
+                      @Value("${storage.flush.interval-ms:10}") long flushIntervalMs,
+                      @Value("${storage.sync-writes:false}") boolean syncWrites,
+                      @Value("${storage.sync-timeout-ms:1000}") long syncTimeoutMs,
+                      @Value("${storage.index.interval-bytes:4096}") long indexIntervalBytes) throws IOException {
+        this.enabled = enabled;
+        this.syncWrites = syncWrites;
+        this.syncTimeoutMs = syncTimeoutMs;
+        this.log = enabled ? new SegmentLog(Paths.get(dir), maxSegmentBytes, maxSegmentAgeMs, flushIntervalMs) : null;
+        this.index = new SparseIndex(indexIntervalBytes);
+    }
+
+    public static MessageLog inMemory() {
+        try {
+            return new MessageLog(false, "", 0, 0, 0, false, 0, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /** Replays every stored message version in append order, then opens the log for writing. */
+    public long recover(MessageVisitor sink) throws IOException {
+        if (!enabled) return 0;
+        log.recover((position, format, payload) -> {
+            Message m = decode(format, payload);
+            if (m != null) {
+                index.add(position, m.getLamport(), epochMillis(m));
+                sink.visit(position, m);
+            }
+        });
+        return index.recordCount();
+    }
+
+    /**
+     * Appends a message version and returns its log position, or -1 when storage is disabled. With
+     * {@code storage.sync-writes} it throws if the group fsync does not cover the write within
+     * {@code storage.sync-timeout-ms}, so the caller fails the send instead of reporting it durable.
+     */
+    public long append(Message m) {
+        if (!enabled) return -1;
+        try {
+            byte[] payload = MessageCodec.encode(m);
+            long position;
+            appendLock.lock();
+            try {
+                position = log.append(FORMAT_BINARY, payload);
+                index.add(position, m.getLamport(), epochMillis(m));
+            } finally {
+                appendLock.unlock();
+            }
+            if (syncWrites) awaitDurable(position + 1, "message " + m.getId());
+            return position;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to append message " + m.getId() + " to log: " + e.getMessage(), e);
+        }
+    }
+
+    /** Appends several versions under one lock and a single wait for the group fsync. */
+    public long[] appendAll(List<Message> messages) {
+        long[] positions = new long[messages.size()];
+        if (!enabled || messages.isEmpty()) {
+            Arrays.fill(positions, -1);
+            return positions;
+        }
+        try {
+            List<byte[]> payloads = new ArrayList<>(messages.size());
+            for (Message m : messages) payloads.add(MessageCodec.encode(m));
+            appendLock.lock();
+            try {
+                positions = log.appendAll(FORMAT_BINARY, payloads);
+                for (int i = 0; i < positions.length; i++) {
+                    Message m = messages.get(i);
+                    index.add(positions[i], m.getLamport(), epochMillis(m));
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            if (syncWrites) awaitDurable(positions[positions.length - 1] + 1, messages.size() + " messages");
+            return positions;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to append " + messages.size() + " messages to log: " + e.getMessage(), e);
+        }
+    }
+
+    public Message read(long position) {
+        if (!enabled || position < 0) return null;
+        try {
+            byte[] format = new byte[1];
+            ByteBuffer payload = log.read(position, format);
+            return payload == null ? null : decode(format[0], payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read log position " + position + ": " + e.getMessage(), e);
+        }
+    }
+
+    // with storage.sync-writes a write only counts once it is on disk, so a missed flush fails it
+    private void awaitDurable(long position, String what) {
+        try {
+            if (!log.awaitDurable(position, syncTimeoutMs)) {
+                throw new IllegalStateException(what + " written but not flushed to disk within " + syncTimeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for " + what + " to reach disk", e);
+        }
+    }
+
+    /** Visits decoded messages from {@code fromPosition} onwards until the visitor returns {@code false}. */
+    public void scan(long fromPosition, MessageVisitor visitor) {
+        if (!enabled) return;
+        try {
+            log.scan(fromPosition, (position, format, payload) -> {
+                Message m = decode(format, payload);
+                return m == null || visitor.visit(position, m);
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to scan log: " + e.getMessage(), e);
+        }
+    }
+
+    public long seekLamport(long min) { return index.seekLamport(min); }
+    public long seekTimestamp(long minMs) { return index.seekTimestamp(minMs); }
+    public long seekOrdinal(long ordinal) { return index.seekOrdinal(ordinal); }
+    public long seekPosition(long position) { return index.seekPosition(position); }
+    public long recordCount() { return index.recordCount(); }
+    /** Position the next append lands at or after; 0 when storage is disabled. */
+    public long endPosition() { return enabled ? log.endPosition() : 0; }
+
+    private long epochMillis(Message m) {
+        return m.getTimestamp() == null ? 0 : m.getTimestamp().toEpochMilli();
+    }
+
+    Message decode(byte format, ByteBuffer payload) {
+        try {
+            if (format == FORMAT_BINARY) {
+                // this node wrote the record, so its clock ids were members; see NodeSlots
+                List<Message> decoded = MessageCodec.decodeBatch(payload, true);
+                return decoded.isEmpty() ? null : decoded.get(0);
+            }
+            if (format == FORMAT_JSON) {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                JsonNode tree = M.readTree(bytes);
+                tree.path("vectorClock").fieldNames().forEachRemaining(NodeSlots::register);
+                return M.treeToValue(tree, Message.class);
+            }
+            logger.warn("Skipping log record with unknown format {}", format);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Skipping unreadable log record: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    public Path directory() { return enabled ? log.directory() : null; }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (log != null) log.close();
+    }
+}
@@ -0,0 +1,360 @@
+package com.dms.server.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log split into segment files named after the logical position of their first
+ * record. Each record is framed as {@code [length:int][crc32c:int][format:byte][payload]}, where
+ * the checksum covers the format byte and payload. Writes go straight to the page cache and a
+ * background flusher fsyncs them in groups; callers that need durability wait for the flush
+ * covering their record instead of forcing the file themselves.
+ *
+ * <p>Reads never go through the write channel: segments are memory-mapped read-only and records
+ * are handed out as slices of the mapping, so history queries touch only the pages they need.
+ * Every record read is checked against its checksum; a mismatch ends the scan of that segment
+ * the same way recovery does, so a damaged segment kept by recovery is never served past its
+ * last good record.
+ */
+public class SegmentLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+    public static final int HEADER_BYTES = 9;
+    private static final String SUFFIX = ".log";
+
+    public interface RecordHandler {
+        void onRecord(long position, byte format, ByteBuffer payload);
+    }
+
+    /** Like {@link RecordHandler} but can stop a scan early by returning {@code false}. */
+    public interface RecordVisitor {
+        boolean visit(long position, byte format, ByteBuffer payload);
+    }
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final long maxSegmentAgeMs;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "segment-log-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileChannel active;
+    private long activeBase;
+    private long activeCreatedAt;
+    private long writePosition;
+    private volatile long durablePosition;
+    private volatile long activeLimit;
+    private final ConcurrentSkipListSet<Long> segments = new ConcurrentSkipListSet<>();
+    // read-only mappings keyed by segment base; the active segment is remapped as it grows
+    private final ConcurrentHashMap<Long, Mapping> mappings = new ConcurrentHashMap<>();
+
+    public SegmentLog(Path dir, long maxSegmentBytes, long maxSegmentAgeMs, long flushIntervalMs) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeMs = maxSegmentAgeMs;
+        Files.createDirectories(dir);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Scans every segment in order, handing each valid record to the handler, and opens the last
+     * segment for appending. A torn or corrupt tail on the last segment is truncated away; the
+     * remainder of an earlier damaged segment is skipped.
+     */
+    public void recover(RecordHandler handler) throws IOException {
+        lock.lock();
+        try {
+            List<Long> bases = segmentBases();
+            segments.addAll(bases);
+            long end = 0;
+            for (int i = 0; i < bases.size(); i++) {
+                long base = bases.get(i);
+                Path file = segmentPath(base);
+                long valid = scan(file, base, handler);
+                boolean last = i == bases.size() - 1;
+                if (valid < Files.size(file)) {
+                    logger.warn("Segment {} has a damaged tail at byte {}, {}", file.getFileName(), valid, last ? "truncating" : "skipping remainder");
+                    if (last) {
+                        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) { ch.truncate(valid); }
+                    }
+                }
+                end = base + valid;
+            }
+            if (bases.isEmpty()) {
+                openSegment(0);
+            } else {
+                long lastBase = bases.get(bases.size() - 1);
+                active = FileChannel.open(segmentPath(lastBase), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                activeBase = lastBase;
+                activeCreatedAt = System.currentTimeMillis();
+            }
+            writePosition = end;
+            durablePosition = end;
+            activeLimit = end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long scan(Path file, long base, RecordHandler handler) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return 0;
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            int offset = 0;
+            while (buf.remaining() >= HEADER_BYTES) {
+                int len = buf.getInt(offset);
+                int expected = buf.getInt(offset + 4);
+                if (len < 0 || (long) offset + HEADER_BYTES + len > size) break;
+                ByteBuffer body = buf.slice(offset + 8, len + 1);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != expected) break;
+                handler.onRecord(base + offset, body.get(0), body.slice(1, len));
+                offset += HEADER_BYTES + len;
+                buf.position(offset);
+            }
+            return offset;
+        }
+    }
+
+    /** Appends one record and returns its logical position. The record is durable once {@link #awaitDurable} returns. */
+    public long append(byte format, byte[] payload) throws IOException {
+        ByteBuffer record = frame(format, payload);
+        lock.lock();
+        try {
+            maybeRoll(record.remaining());
+            long position = writePosition;
+            while (record.hasRemaining()) active.write(record);
+            writePosition += HEADER_BYTES + payload.length;
+            activeLimit = writePosition;
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends several records under one lock acquisition and returns their positions. */
+    public long[] appendAll(byte format, List<byte[]> payloads) throws IOException {
+        long[] positions = new long[payloads.size()];
+        lock.lock();
+        try {
+            for (int i = 0; i < positions.length; i++) {
+                byte[] payload = payloads.get(i);
+                ByteBuffer record = frame(format, payload);
+                maybeRoll(record.remaining());
+                positions[i] = writePosition;
+                while (record.hasRemaining()) active.write(record);
+                writePosition += HEADER_BYTES + payload.length;
+            }
+            activeLimit = writePosition;
+            return positions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a group fsync covers everything written before {@code position}. Returns
+     * {@code false} if {@code timeoutMs} passed first, in which case the write may not survive a crash.
+     */
+    public boolean awaitDurable(long position, long timeoutMs) throws InterruptedException {
+        if (durablePosition >= position) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (durablePosition < position) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                flushed.awaitNanos(left);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long endPosition() {
+        lock.lock();
+        try { return writePosition; } finally { lock.unlock(); }
+    }
+
+    public Path directory() { return dir; }
+
+    /** Reads the record at {@code position}, or returns {@code null} if there is no valid record there. */
+    public ByteBuffer read(long position, byte[] formatOut) throws IOException {
+        ByteBuffer[] found = new ByteBuffer[1];
+        scan(position, (pos, format, payload) -> {
+            // a damaged record makes the scan skip ahead; that is a different record
+            if (pos == position) {
+                formatOut[0] = format;
+                found[0] = payload;
+            }
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * Visits records from {@code fromPosition} (which must be a record boundary) up to the current
+     * end of the log, crossing segment boundaries, until the visitor returns {@code false}.
+     */
+    public void scan(long fromPosition, RecordVisitor visitor) throws IOException {
+        long position = Math.max(0, fromPosition);
+        long limit = activeLimit;
+        CRC32C crc = new CRC32C();
+        while (position < limit) {
+            Long base = segments.floor(position);
+            if (base == null) return;
+            ByteBuffer buf = mapping(base, limit);
+            int offset = (int) (position - base);
+            while (offset + HEADER_BYTES <= buf.limit() && base + offset < limit) {
+                int len = buf.getInt(offset);
+                if (len < 0 || offset + HEADER_BYTES + len > buf.limit()) break;
+                crc.reset();
+                crc.update(buf.slice(offset + 8, len + 1));
+                if ((int) crc.getValue() != buf.getInt(offset + 4)) break;
+                if (!visitor.visit(base + offset, buf.get(offset + 8), buf.slice(offset + HEADER_BYTES, len))) return;
+                offset += HEADER_BYTES + len;
+            }
+            Long next = segments.higher(base);
+            if (next == null) return;
+            position = next;
+        }
+    }
+
+    private ByteBuffer mapping(long base, long limit) throws IOException {
+        Mapping cached = mappings.get(base);
+        if (cached != null && (cached.sealed || base + cached.buffer.limit() >= limit)) return cached.buffer;
+        boolean sealed = segments.higher(base) != null;
+        try (FileChannel ch = FileChannel.open(segmentPath(base), StandardOpenOption.READ)) {
+            long size = sealed ? ch.size() : Math.min(ch.size(), limit - base);
+            Mapping mapped = new Mapping(ch.map(FileChannel.MapMode.READ_ONLY, 0, size), sealed);
+            mappings.put(base, mapped);
+            return mapped.buffer;
+        }
+    }
+
+    private static final class Mapping {
+        final MappedByteBuffer buffer;
+        final boolean sealed;
+        Mapping(MappedByteBuffer buffer, boolean sealed) { this.buffer = buffer; this.sealed = sealed; }
+    }
+
+    private ByteBuffer frame(byte format, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        CRC32C crc = new CRC32C();
+        crc.update(format);
+        crc.update(payload);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(format).put(payload).flip();
+        return record;
+    }
+
+    private void maybeRoll(int nextRecordBytes) throws IOException {
+        long size = writePosition - activeBase;
+        boolean full = size > 0 && size + nextRecordBytes > maxSegmentBytes;
+        boolean old = size > 0 && maxSegmentAgeMs > 0 && System.currentTimeMillis() - activeCreatedAt > maxSegmentAgeMs;
+        if (full || old) {
+            active.force(false);
+            active.close();
+            openSegment(writePosition);
+        }
+    }
+
+    private void openSegment(long base) throws IOException {
+        active = FileChannel.open(segmentPath(base), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeBase = base;
+        activeCreatedAt = System.currentTimeMillis();
+        segments.add(base);
+    }
+
+    private void flushQuietly() {
+        try { flush(); } catch (Exception e) {
+            logger.warn("Segment log flush failed: {}", e.getMessage());
+        }
+    }
+
+    public void flush() throws IOException {
+        FileChannel ch;
+        long target;
+        lock.lock();
+        try {
+            if (active == null || durablePosition >= writePosition) return;
+            ch = active;
+            target = writePosition;
+        } finally {
+            lock.unlock();
+        }
+        // fsync outside the lock so appenders keep going while the disk catches up;
+        // a concurrent roll forces the old segment itself before closing it
+        try { ch.force(false); } catch (java.nio.channels.ClosedChannelException ignored) {}
+        lock.lock();
+        try {
+            if (target > durablePosition) durablePosition = target;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<Long> segmentBases() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SUFFIX))
+                    .forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - SUFFIX.length()))));
+        }
+        bases.sort(Long::compareTo);
+        return bases;
+    }
+
+    Path segmentPath(long base) {
+        return dir.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // let a flush in progress finish: interrupting its force() would close the channel under us
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (active != null) {
+                active.force(false);
+                active.close();
+                active = null;
+                durablePosition = writePosition;
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
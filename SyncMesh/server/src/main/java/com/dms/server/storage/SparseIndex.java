@@ -0,0 +1,108 @@
+package com.dms.server.storage;
+
+import java.util.Arrays;
+
+/**
+ * Sparse position index over the message log. Every {@code intervalBytes} of log an entry records
+ * the record position, how many records precede it, and the running maximum Lamport stamp and
+ * timestamp of everything before it. Running maxima are monotone even though individual records
+ * arrive out of order, so "first place a record with lamport >= X can appear" is a binary search.
+ *
+ * <p>Single writer (callers hold the log's append lock), lock-free readers.
+ */
+public class SparseIndex {
+    private final long intervalBytes;
+    private volatile Entries entries = new Entries(64);
+    private long lastIndexed = -1;
+    private volatile long records;
+    private long maxLamport = Long.MIN_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    public SparseIndex(long intervalBytes) {
+        this.intervalBytes = Math.max(1, intervalBytes);
+    }
+
+    void add(long position, long lamport, long timestampMs) {
+        if (lastIndexed < 0 || position - lastIndexed >= intervalBytes) {
+            Entries e = entries;
+            if (e.size == e.positions.length) {
+                e = e.grow();
+                entries = e;
+            }
+            int i = e.size;
+            e.positions[i] = position;
+            e.ordinals[i] = records;
+            e.maxLamports[i] = maxLamport;
+            e.maxTimestamps[i] = maxTimestamp;
+            e.size = i + 1;
+            lastIndexed = position;
+        }
+        records++;
+        if (lamport > maxLamport) maxLamport = lamport;
+        if (timestampMs > maxTimestamp) maxTimestamp = timestampMs;
+    }
+
+    public long recordCount() { return records; }
+
+    /** Position from which every record with {@code lamport >= min} is guaranteed to be found. */
+    public long seekLamport(long min) {
+        Entries e = entries;
+        return e.positions[Math.max(0, lastBelow(e, e.maxLamports, min))];
+    }
+
+    /** Position from which every record with {@code timestamp >= minMs} is guaranteed to be found. */
+    public long seekTimestamp(long minMs) {
+        Entries e = entries;
+        return e.positions[Math.max(0, lastBelow(e, e.maxTimestamps, minMs))];
+    }
+
+    /** Position of the indexed record closest to, but not after, the {@code ordinal}-th record. */
+    public long seekOrdinal(long ordinal) {
+        Entries e = entries;
+        if (e.size == 0) return 0;
+        int idx = Arrays.binarySearch(e.ordinals, 0, e.size, ordinal);
+        if (idx < 0) idx = Math.max(0, -idx - 2);
+        return e.positions[idx];
+    }
+
+    /** Greatest indexed record position at or before {@code position}, so a scan can start on a record boundary. */
+    public long seekPosition(long position) {
+        Entries e = entries;
+        if (e.size == 0) return 0;
+        int idx = Arrays.binarySearch(e.positions, 0, e.size, position);
+        if (idx < 0) idx = Math.max(0, -idx - 2);
+        return e.positions[idx];
+    }
+
+    // last entry whose running max (of the records before it) is still below the bound
+    private int lastBelow(Entries e, long[] maxima, long bound) {
+        int lo = 0, hi = e.size - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxima[mid] < bound) { found = mid; lo = mid + 1; } else hi = mid - 1;
+        }
+        return found;
+    }
+
+    private static final class Entries {
+        final long[] positions, ordinals, maxLamports, maxTimestamps;
+        volatile int size;
+
+        Entries(int capacity) {
+            positions = new long[capacity];
+            ordinals = new long[capacity];
+            maxLamports = new long[capacity];
+            maxTimestamps = new long[capacity];
+        }
+
+        Entries grow() {
+            Entries bigger = new Entries(positions.length * 2);
+            System.arraycopy(positions, 0, bigger.positions, 0, size);
+            System.arraycopy(ordinals, 0, bigger.ordinals, 0, size);
+            System.arraycopy(maxLamports, 0, bigger.maxLamports, 0, size);
+            System.arraycopy(maxTimestamps, 0, bigger.maxTimestamps, 0, size);
+            bigger.size = size;
+            return bigger;
+        }
+    }
+}
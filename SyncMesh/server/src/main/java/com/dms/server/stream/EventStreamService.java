@@ -0,0 +1,338 @@
+package com.dms.server.stream;
+
+import com.dms.common.model.Message;
+import com.dms.common.model.NodeInfo;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.zookeeper.ZooKeeperConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-Sent Events stream of what changes on this node: new messages, membership changes,
+ * leader changes and heartbeats. Each event is produced once, from the repository's arrival
+ * listener and the ZooKeeper watches the connector already holds, and fanned out to every
+ * subscriber, so adding viewers adds no ZooKeeper reads or repository copies.
+ *
+ * <p>Every subscriber has a bounded queue ({@code stream.queue-capacity}) drained by a small shared
+ * sender pool; producers never block on a client. When a queue overflows it is emptied and the
+ * subscriber is sent a {@code resync} event telling it to reload; a subscriber that overflows
+ * {@code stream.max-overflows} times in a row without catching up is disconnected. Message events
+ * carry their offset as the event id, so a reconnecting {@code EventSource} resumes from
+ * {@code Last-Event-ID}.
+ */
+@Service
+public class EventStreamService {
+    private static final Logger logger = LoggerFactory.getLogger(EventStreamService.class);
+    private final MessageRepository repo;
+    private final ZooKeeperConnector connector;
+    private final int queueCapacity;
+    private final int maxOverflows;
+    private final long timeoutMs;
+    private final long keepAliveMs;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService senders;
+    private final ScheduledExecutorService keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stream-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong disconnectedSlow = new AtomicLong();
+
+    public EventStreamService(MessageRepository repo, ZooKeeperConnector connector,
+                              @Value("${stream.queue-capacity:1024}") int queueCapacity,
+                              @Value("${stream.max-overflows:3}") int maxOverflows,
+                              @Value("${stream.sender-threads:4}") int senderThreads,
+                              @Value("${stream.timeout-ms:1800000}") long timeoutMs,
+                              @Value("${stream.keepalive-ms:15000}") long keepAliveMs) {
+        this.repo = repo;
+        this.connector = connector;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.maxOverflows = Math.max(1, maxOverflows);
+        this.timeoutMs = timeoutMs;
+        this.keepAliveMs = Math.max(1000, keepAliveMs);
+        AtomicInteger threadIds = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(senderThreads, senderThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "stream-sender-" + threadIds.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ((ThreadPoolExecutor) senders).allowCoreThreadTimeOut(true);
+    }
+
+    @PostConstruct
+    private void start() {
+        repo.addArrivalListener(this::onArrival);
+        connector.addMembershipListener(this::onMembership);
+        connector.addLeaderListener((previous, leader) -> {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("previous", previous);
+            data.put("leader", leader);
+            publish(new Event("leader", null, data));
+        });
+        connector.addHeartbeatListener((node, at) -> {
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("node", node);
+            data.put("at", at == null ? null : at.toString());
+            publish(new Event("heartbeat", null, data));
+        });
+        keepAlive.scheduleWithFixedDelay(() -> {
+            for (Subscriber s : subscribers) s.offer(Event.PING);
+        }, keepAliveMs, keepAliveMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        keepAlive.shutdownNow();
+        for (Subscriber s : subscribers) s.emitter.complete();
+        senders.shutdownNow();
+    }
+
+    /**
+     * Opens a stream. {@code types} limits the event types (all by default); {@code receiver}
+     * limits message events to those addressed to it, plus its own with {@code includeSent}.
+     * With a {@code lastEventId} the matching messages stored since that offset are replayed first.
+     */
+    public SseEmitter subscribe(Set<String> types, String receiver, boolean includeSent, Long lastEventId) {
+        Subscriber s = new Subscriber(new SseEmitter(timeoutMs), types, receiver, includeSent);
+        boolean replay = lastEventId != null && receiver != null && s.wants("message");
+        // live events are held back from here until the replay is queued, so none overtakes it
+        if (replay) s.replaying = true;
+        s.emitter.onCompletion(() -> subscribers.remove(s));
+        s.emitter.onTimeout(() -> subscribers.remove(s));
+        s.emitter.onError(err -> subscribers.remove(s));
+        subscribers.add(s);
+
+        Map<String, Object> hello = new LinkedHashMap<>();
+        hello.put("node", connector.getNodeId());
+        hello.put("leader", connector.getLeaderId());
+        hello.put("members", new ArrayList<>(connector.getMembers().keySet()));
+        hello.put("latestOffset", repo.latestOffset());
+        s.enqueue(new Event("hello", null, hello));
+        if (replay) {
+            // replays at most a queue's worth; a client further behind gets a resync instead
+            long replayed = lastEventId;
+            for (Map.Entry<Long, Message> e : repo.findForReceiver(receiver, includeSent, lastEventId + 1, queueCapacity).entrySet()) {
+                s.enqueue(new Event("message", e.getKey(), e.getValue()));
+                replayed = e.getKey();
+            }
+            s.endReplay(replayed);
+        }
+        return s.emitter;
+    }
+
+    // runs on the storing thread; only enqueues
+    private void onArrival(long offset, String id, String receiver, String originNodeId) {
+        if (subscribers.isEmpty()) return;
+        Event event = null;
+        for (Subscriber s : subscribers) {
+            if (!s.wants("message") || !s.addressedTo(receiver, originNodeId)) continue;
+            if (event == null) {
+                Message m = repo.findById(id);
+                if (m == null) return;
+                event = new Event("message", offset, m);
+                published.incrementAndGet();
+            }
+            s.offer(event);
+        }
+    }
+
+    private void onMembership(Map<String, NodeInfo> joined, Set<String> left) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("joined", new ArrayList<>(joined.values()));
+        data.put("left", new ArrayList<>(left));
+        publish(new Event("membership", null, data));
+    }
+
+    private void publish(Event e) {
+        if (subscribers.isEmpty()) return;
+        published.incrementAndGet();
+        for (Subscriber s : subscribers) {
+            if (s.wants(e.name)) s.offer(e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("subscribers", subscribers.size());
+        out.put("queueCapacity", queueCapacity);
+        int deepest = 0;
+        for (Subscriber s : subscribers) deepest = Math.max(deepest, s.queue.size());
+        out.put("deepestQueue", deepest);
+        out.put("published", published.get());
+        out.put("sent", sent.get());
+        out.put("dropped", dropped.get());
+        out.put("resyncs", resyncs.get());
+        out.put("disconnectedSlow", disconnectedSlow.get());
+        return out;
+    }
+
+    private static final class Event {
+        static final Event PING = new Event(null, null, null);
+        final String name;
+        final Long id;
+        final Object data;
+
+        Event(String name, Long id, Object data) {
+            this.name = name;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final class Subscriber {
+        final SseEmitter emitter;
+        final Set<String> types;
+        final String receiver;
+        final boolean includeSent;
+        final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicLong lost = new AtomicLong();
+        final AtomicInteger overflows = new AtomicInteger();
+        // events that arrived while a Last-Event-ID replay was being queued
+        final List<Event> held = new ArrayList<>();
+        final ReentrantLock replayLock = new ReentrantLock();
+        volatile boolean replaying;
+        volatile boolean closed;
+
+        Subscriber(SseEmitter emitter, Set<String> types, String receiver, boolean includeSent) {
+            this.emitter = emitter;
+            this.types = types == null || types.isEmpty() ? Collections.emptySet() : new HashSet<>(types);
+            this.receiver = receiver;
+            this.includeSent = includeSent;
+        }
+
+        boolean wants(String type) {
+            return types.isEmpty() || types.contains(type);
+        }
+
+        boolean addressedTo(String to, String origin) {
+            if (receiver == null) return true;
+            return receiver.equals(to) || "BROADCAST".equals(to) || (includeSent && receiver.equals(origin));
+        }
+
+        void offer(Event e) {
+            if (replaying) {
+                replayLock.lock();
+                try {
+                    if (replaying) {
+                        if (held.size() < queueCapacity) {
+                            held.add(e);
+                        } else {
+                            // the replay would overflow the queue as well; the client gets a resync
+                            lost.incrementAndGet();
+                            dropped.incrementAndGet();
+                        }
+                        return;
+                    }
+                } finally {
+                    replayLock.unlock();
+                }
+            }
+            enqueue(e);
+        }
+
+        // queues the held events, minus messages the replay already covered, then goes live
+        void endReplay(long replayedUpTo) {
+            replayLock.lock();
+            try {
+                for (Event e : held) {
+                    if (e.id == null || e.id > replayedUpTo) enqueue(e);
+                }
+                held.clear();
+                replaying = false;
+            } finally {
+                replayLock.unlock();
+            }
+        }
+
+        void enqueue(Event e) {
+            if (closed) return;
+            if (!queue.offer(e)) {
+                // this client can't keep up: drop its backlog and tell it to reload once it drains
+                int n = queue.size();
+                queue.clear();
+                lost.addAndGet(n + 1);
+                dropped.addAndGet(n + 1);
+                if (overflows.incrementAndGet() > maxOverflows) {
+                    closed = true;
+                    disconnectedSlow.incrementAndGet();
+                    subscribers.remove(this);
+                    senders.execute(emitter::complete);
+                    logger.info("Disconnected slow stream subscriber after {} overflows", maxOverflows);
+                    return;
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) senders.execute(this::drain);
+        }
+
+        // one sender at a time per subscriber, so its events stay in order
+        private void drain() {
+            try {
+                while (!closed) {
+                    long missed = lost.getAndSet(0);
+                    if (missed > 0) {
+                        resyncs.incrementAndGet();
+                        Map<String, Object> data = new LinkedHashMap<>();
+                        data.put("reason", "overflow");
+                        data.put("dropped", missed);
+                        send(new Event("resync", null, data));
+                        continue;
+                    }
+                    Event e = queue.poll();
+                    if (e == null) break;
+                    send(e);
+                    sent.incrementAndGet();
+                }
+                if (queue.isEmpty()) overflows.set(0);
+            } catch (Exception ex) {
+                closed = true;
+                subscribers.remove(this);
+                emitter.completeWithError(ex);
+            } finally {
+                scheduled.set(false);
+            }
+            if (!closed && (!queue.isEmpty() || lost.get() > 0) && scheduled.compareAndSet(false, true)) senders.execute(this::drain);
+        }
+
+        private void send(Event e) throws Exception {
+            if (e == Event.PING) {
+                emitter.send(SseEmitter.event().comment("ping"));
+                return;
+            }
+            SseEmitter.SseEventBuilder b = SseEmitter.event().name(e.name).data(e.data);
+            if (e.id != null) b.id(Long.toString(e.id));
+            emitter.send(b);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.dms.server.zookeeper;
+
+import com.dms.common.model.NodeInfo;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receives membership changes from {@link ZooKeeperConnector} as diffs. A node whose address
+ * changed shows up in both {@code left} and {@code joined}.
+ */
+public interface MembershipListener {
+    void membershipChanged(Map<String, NodeInfo> joined, Set<String> left);
+}
@@ -2,14 +2,23 @@ package com.dms.server.zookeeper;
 
 import com.dms.common.constants.Config;
 import com.dms.common.model.NodeInfo;
+import com.dms.common.model.NodeSlots;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -18,17 +27,37 @@ import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 @Component
 public class ZooKeeperConnector {
+    private static final Logger logger = LoggerFactory.getLogger(ZooKeeperConnector.class);
+    private static final long ASYNC_TIMEOUT_MS = 10_000;
     private ZooKeeper zk;
     private final ObjectMapper M = new ObjectMapper().registerModule(new JavaTimeModule());
     private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
 
+    @Value("${zookeeper.connect:" + Config.ZK_CONNECT + "}")
+    private String zkConnect;
+
     @Value("${node.id:}")
     private String nodeId;
 
@@ -38,15 +67,43 @@ public class ZooKeeperConnector {
     @Value("${server.host:localhost}")
     private String host;
 
+    @Autowired
+    private MeterRegistry meters;
+    // dms.zookeeper.calls per operation, and dms.leader.changes
+    private final Map<String, Timer> callTimers = new ConcurrentHashMap<>();
+    private Counter leaderChanges;
+
     private String serversPath;
     private String heartbeatsPath;
     private String electionPath;
     private String myElectionZnode;
     private volatile String leaderId;
 
+    // view of /servers kept current by a persistent watch: nodeId -> NodeInfo, so the send path never waits on ZooKeeper
+    private final Map<String, NodeInfo> members = new ConcurrentHashMap<>();
+    // zxid of the last change applied per member id, including removals
+    private final Map<String, Long> memberZxids = new ConcurrentHashMap<>();
+    private final AtomicLong memberHits = new AtomicLong();
+    private final AtomicLong memberMisses = new AtomicLong();
+    private final AtomicLong memberFallbackHits = new AtomicLong();
+    private final AtomicLong membershipReloads = new AtomicLong();
+    private final AtomicLong membershipEvents = new AtomicLong();
+    // serializes cache updates so listeners see diffs in the order they were applied
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    private final List<MembershipListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<String, String>> leaderListeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<String, Instant>> heartbeatListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean heartbeatWatch = new AtomicBoolean();
+    // election znode name -> candidate node id; znode names sort by their sequence suffix
+    private final ConcurrentSkipListMap<String, String> candidates = new ConcurrentSkipListMap<>();
+    private volatile long membershipSyncedAt;
+    // set while the ZooKeeper connection is down, i.e. while watches can't be delivered
+    private volatile long disconnectedSince;
+
     @PostConstruct
     public void connect() throws IOException, KeeperException, InterruptedException {
-        zk = new ZooKeeper(Config.ZK_CONNECT, 3000, event -> {});
+        leaderChanges = Counter.builder("dms.leader.changes").description("Times the elected leader changed").register(meters);
+        zk = new ZooKeeper(zkConnect, 3000, this::onConnectionEvent);
         // ensure root path
         if (zk.exists(Config.ROOT, false) == null) {
             try { zk.create(Config.ROOT, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT); } catch (KeeperException.NodeExistsException e) {}
@@ -68,6 +125,8 @@ public class ZooKeeperConnector {
         if (nodeId == null || nodeId.isEmpty()) {
             nodeId = "server-" + port;
         }
+        // this node stamps clocks before its own membership event comes back
+        NodeSlots.register(nodeId);
         
         // create ephemeral znode for this server
         NodeInfo info = new NodeInfo(nodeId, host, port);
@@ -77,7 +136,10 @@ public class ZooKeeperConnector {
             zk.delete(path, -1);
         }
         zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-        System.out.println("Registered server: " + nodeId + " at " + host + ":" + port);
+        logger.info("Registered server: {} at {}:{}", nodeId, host, port);
+        // watch first, then read, so nothing that happens in between is missed
+        zk.addWatch(serversPath, this::onServersEvent, AddWatchMode.PERSISTENT_RECURSIVE);
+        loadMembership();
 
         // create heartbeat node and schedule updates
         String hbPath = heartbeatsPath + "/" + nodeId;
@@ -90,22 +152,95 @@ public class ZooKeeperConnector {
         heartbeatExecutor.scheduleAtFixedRate(() -> {
             try {
                 byte[] ts = Instant.now().toString().getBytes(StandardCharsets.UTF_8);
-                zk.setData(hbPath, ts, -1);
+                timed("setData", () -> zk.setData(hbPath, ts, -1));
             } catch (Exception ignored) {}
         }, 0, 2, TimeUnit.SECONDS);
 
         // participate in leader election
         String seqPath = electionPath + "/node-";
         myElectionZnode = zk.create(seqPath, nodeId.getBytes(StandardCharsets.UTF_8), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-        System.out.println("Created election node: " + myElectionZnode);
+        logger.info("Created election node: {}", myElectionZnode);
         
-        // Set up election watcher and determine initial leader
-        setupElectionWatcher();
+        // Watch the election path persistently and determine the initial leader
+        zk.addWatch(electionPath, this::onElectionEvent, AddWatchMode.PERSISTENT_RECURSIVE);
         updateLeader();
     }
 
     public ZooKeeper getZooKeeper() { return zk; }
 
+    private interface ZkCall<T> {
+        T call() throws KeeperException, InterruptedException;
+    }
+
+    // times a ZooKeeper round trip under dms.zookeeper.calls, tagged with the operation
+    private <T> T timed(String op, ZkCall<T> call) throws KeeperException, InterruptedException {
+        Timer timer = callTimers.computeIfAbsent(op, o -> Timer.builder("dms.zookeeper.calls")
+                .description("ZooKeeper round trips made after startup").tag("op", o).register(meters));
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Reads a znode through the asynchronous API. The blocking {@code getData} waits on a monitor
+     * inside the client, which pins a virtual thread to its carrier for the whole round trip; waiting
+     * on a future instead lets request threads unmount while ZooKeeper answers.
+     */
+    public byte[] readData(String path, Stat stat) throws KeeperException, InterruptedException {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        zk.getData(path, false, (rc, p, ctx, data, s) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+                return;
+            }
+            if (stat != null && s != null) copyStat(s, stat);
+            result.complete(data);
+        }, null);
+        return await(result);
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        to.setCzxid(from.getCzxid());
+        to.setMzxid(from.getMzxid());
+        to.setPzxid(from.getPzxid());
+        to.setCtime(from.getCtime());
+        to.setMtime(from.getMtime());
+        to.setVersion(from.getVersion());
+        to.setCversion(from.getCversion());
+        to.setAversion(from.getAversion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+    }
+
+    /** Lists a znode's children through the asynchronous API, see {@link #readData}. */
+    public List<String> readChildren(String path) throws KeeperException, InterruptedException {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        zk.getChildren(path, false, (rc, p, ctx, children) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+                return;
+            }
+            result.complete(children);
+        }, null);
+        return await(result);
+    }
+
+    private <T> T await(CompletableFuture<T> result) throws KeeperException, InterruptedException {
+        try {
+            // the client fails outstanding calls itself once the session is lost; this only bounds a stuck reply
+            return result.get(ASYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) throw (KeeperException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new KeeperException.OperationTimeoutException();
+        }
+    }
+
     public String getNodeId() { return nodeId; }
 
     public String getServersPath() { return serversPath; }
@@ -113,67 +248,348 @@ public class ZooKeeperConnector {
     public String getHeartbeatsPath() { return heartbeatsPath; }
     public String getElectionPath() { return electionPath; }
     public String getLeaderId() { return leaderId; }
+    /**
+     * Sequence number of the current leader's election znode. Each new leader was created after
+     * the one it replaces, so this only grows and can fence off a deposed leader.
+     */
+    public long getLeaderEpoch() {
+        Map.Entry<String, String> first = candidates.firstEntry();
+        return first == null ? -1 : sequenceOf(first.getKey());
+    }
+
+    /**
+     * This node's leader epoch: the sequence number of its own election znode if that was the
+     * lowest one in the last successful read of the candidates, else -1. Unlike {@link #isLeader()}
+     * it never falls back to this node when ZooKeeper can't be read, and it is -1 while the session
+     * is not connected, since another node may take over meanwhile.
+     */
+    public long getOwnLeaderEpoch() {
+        String mine = myElectionZnode;
+        if (mine == null || disconnectedSince != 0 || zk.getState() != ZooKeeper.States.CONNECTED) return -1;
+        Map.Entry<String, String> first = candidates.firstEntry();
+        if (first == null || !mine.endsWith("/" + first.getKey())) return -1;
+        return sequenceOf(first.getKey());
+    }
+
+    private static long sequenceOf(String znode) {
+        int i = znode.length();
+        while (i > 0 && Character.isDigit(znode.charAt(i - 1))) i--;
+        return i == znode.length() ? -1 : Long.parseLong(znode.substring(i));
+    }
+
     public boolean isLeader() { return nodeId != null && nodeId.equals(leaderId); }
     
+    /**
+     * Resolves a member from the cached view. A miss re-reads the znode in case the cache is behind
+     * the latest watch event; returns {@code null} when the node really isn't registered.
+     */
+    public NodeInfo getMember(String id) throws KeeperException, InterruptedException, IOException {
+        NodeInfo cached = members.get(id);
+        if (cached != null) {
+            memberHits.incrementAndGet();
+            return cached;
+        }
+        memberMisses.incrementAndGet();
+        try {
+            Stat stat = new Stat();
+            byte[] data = timed("getData", () -> readData(serversPath + "/" + id, stat));
+            NodeInfo ni = M.readValue(data, NodeInfo.class);
+            memberFallbackHits.incrementAndGet();
+            applyMember(id, ni, stat.getMzxid());
+            return ni;
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    public Map<String, NodeInfo> getMembers() { return new LinkedHashMap<>(members); }
+
+    /**
+     * Registers a listener for membership diffs. It is invoked with the current members as "joined"
+     * straight away, then with each change as it is applied, always from one thread at a time.
+     */
+    public void addMembershipListener(MembershipListener listener) {
+        membershipLock.lock();
+        try {
+            listeners.add(listener);
+            if (!members.isEmpty()) listener.membershipChanged(new LinkedHashMap<>(members), Collections.emptySet());
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /** Called with (previous leader, new leader) whenever the elected leader changes. */
+    public void addLeaderListener(BiConsumer<String, String> listener) {
+        leaderListeners.add(listener);
+    }
+
+    /**
+     * Called with (node id, time seen) for every heartbeat written to {@code /dms-system/heartbeats},
+     * and with a null time when a node's heartbeat znode goes away. The watch is only set up once
+     * someone listens.
+     */
+    public void addHeartbeatListener(BiConsumer<String, Instant> listener) {
+        heartbeatListeners.add(listener);
+        if (heartbeatsPath == null || !heartbeatWatch.compareAndSet(false, true)) return;
+        try {
+            zk.addWatch(heartbeatsPath, this::onHeartbeatEvent, AddWatchMode.PERSISTENT_RECURSIVE);
+        } catch (Exception e) {
+            heartbeatWatch.set(false);
+            logger.warn("Failed to watch heartbeats: {}", e.getMessage());
+        }
+    }
+
+    private void onHeartbeatEvent(WatchedEvent event) {
+        String path = event.getPath();
+        if (path == null || !path.startsWith(heartbeatsPath + "/")) return;
+        String id = path.substring(heartbeatsPath.length() + 1);
+        Instant at;
+        switch (event.getType()) {
+            case NodeCreated:
+            case NodeDataChanged:
+                at = Instant.now();
+                break;
+            case NodeDeleted:
+                at = null;
+                break;
+            default:
+                return;
+        }
+        for (BiConsumer<String, Instant> l : heartbeatListeners) {
+            try {
+                l.accept(id, at);
+            } catch (Exception e) {
+                logger.warn("Heartbeat listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /** Re-reads /servers and applies whatever differs from the cached view. */
+    public void refreshMembership() {
+        loadMembership();
+    }
+
+    public Map<String, Object> membershipStats() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        out.put("members", members.size());
+        out.put("hits", memberHits.get());
+        out.put("misses", memberMisses.get());
+        // misses that ZooKeeper could answer: the cache was stale for that lookup
+        out.put("staleMisses", memberFallbackHits.get());
+        out.put("events", membershipEvents.get());
+        out.put("reloads", membershipReloads.get());
+        out.put("syncedAgoMs", membershipSyncedAt == 0 ? -1 : now - membershipSyncedAt);
+        out.put("disconnectedMs", disconnectedSince == 0 ? 0 : now - disconnectedSince);
+        return out;
+    }
+
+    private void onConnectionEvent(WatchedEvent event) {
+        if (event.getType() != Watcher.Event.EventType.None) return;
+        switch (event.getState()) {
+            case Disconnected:
+                if (disconnectedSince == 0) disconnectedSince = System.currentTimeMillis();
+                break;
+            case SyncConnected:
+                if (disconnectedSince != 0) {
+                    disconnectedSince = 0;
+                    // persistent watches survive the reconnect, but events from while we were away may be lost
+                    if (serversPath != null) loadMembership();
+                    if (electionPath != null) updateLeader();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // one persistent recursive watch covers every create/delete/data change under /servers
+    private void onServersEvent(WatchedEvent event) {
+        String path = event.getPath();
+        if (path == null || !path.startsWith(serversPath + "/")) return;
+        String id = path.substring(serversPath.length() + 1);
+        if (id.contains("/")) return;
+        membershipEvents.incrementAndGet();
+        switch (event.getType()) {
+            case NodeCreated:
+            case NodeDataChanged:
+                try {
+                    Stat stat = new Stat();
+                    byte[] data = timed("getData", () -> zk.getData(path, false, stat));
+                    applyMember(id, M.readValue(data, NodeInfo.class), stat.getMzxid());
+                } catch (KeeperException.NoNodeException gone) {
+                    removeMember(id, event.getZxid());
+                } catch (Exception e) {
+                    logger.warn("Error reading member {}: {}", id, e.getMessage());
+                }
+                break;
+            case NodeDeleted:
+                removeMember(id, event.getZxid());
+                break;
+            default:
+                break;
+        }
+        membershipSyncedAt = System.currentTimeMillis();
+    }
+
+    // full read, used at startup, after reconnects and on manual refresh; only the diff is applied
+    private void loadMembership() {
+        try {
+            Stat parent = new Stat();
+            List<String> children = timed("getChildren", () -> zk.getChildren(serversPath, false, parent));
+            membershipLock.lock();
+            try {
+                // anything missing from the listing as of its pzxid is gone, unless an event since then says otherwise
+                for (String id : new ArrayList<>(members.keySet())) {
+                    if (!children.contains(id)) removeMember(id, parent.getPzxid());
+                }
+            } finally {
+                membershipLock.unlock();
+            }
+            for (String c : children) {
+                if (members.containsKey(c)) continue;
+                try {
+                    Stat stat = new Stat();
+                    byte[] data = timed("getData", () -> zk.getData(serversPath + "/" + c, false, stat));
+                    applyMember(c, M.readValue(data, NodeInfo.class), stat.getMzxid());
+                } catch (KeeperException.NoNodeException gone) {
+                    // left between getChildren and getData
+                }
+            }
+            membershipReloads.incrementAndGet();
+            membershipSyncedAt = System.currentTimeMillis();
+        } catch (Exception e) {
+            logger.warn("Error loading membership: {}", e.getMessage());
+        }
+    }
+
+    // full reads race with watch events, so every change carries the zxid it was read at and older
+    // news than what was last applied for that id is ignored
+    private boolean isStale(String id, long zxid) {
+        Long applied = memberZxids.get(id);
+        return zxid != WatchedEvent.NO_ZXID && applied != null && zxid < applied;
+    }
+
+    private void applyMember(String id, NodeInfo ni, long zxid) {
+        membershipLock.lock();
+        try {
+            if (isStale(id, zxid)) return;
+            memberZxids.put(id, zxid);
+            // members get vector clock slots as they join, ahead of any other node ids seen
+            NodeSlots.register(id);
+            NodeInfo previous = members.put(id, ni);
+            if (previous != null && sameAddress(previous, ni)) return;
+            logger.info("Member {}: {} at {}:{}", previous == null ? "joined" : "moved", id, ni.getHost(), ni.getPort());
+            Set<String> left = previous == null ? Collections.emptySet() : Collections.singleton(id);
+            for (MembershipListener l : listeners) l.membershipChanged(Collections.singletonMap(id, ni), left);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    private void removeMember(String id, long zxid) {
+        membershipLock.lock();
+        try {
+            if (isStale(id, zxid)) return;
+            // kept as a tombstone so a stale read can't bring the member back
+            if (zxid != WatchedEvent.NO_ZXID) memberZxids.put(id, zxid);
+            if (members.remove(id) == null) return;
+            logger.info("Member left: {}", id);
+            for (MembershipListener l : listeners) l.membershipChanged(Collections.emptyMap(), Collections.singleton(id));
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    private static boolean sameAddress(NodeInfo a, NodeInfo b) {
+        return a.getPort() == b.getPort() && String.valueOf(a.getHost()).equals(String.valueOf(b.getHost()));
+    }
+
     public void triggerLeaderElection() {
-        System.out.println("Manually triggering leader election...");
+        logger.info("Manually triggering leader election...");
         updateLeader();
     }
 
-    private void setupElectionWatcher() {
+    // election znodes are applied one event at a time; the lowest sequence number is the leader
+    private void onElectionEvent(WatchedEvent event) {
+        String path = event.getPath();
+        if (path == null || !path.startsWith(electionPath + "/")) return;
+        String znode = path.substring(electionPath.length() + 1);
         try {
-            // Watch for changes in the election path
-            zk.getChildren(electionPath, new Watcher() {
-                @Override
-                public void process(WatchedEvent event) {
-                    System.out.println("Election path change detected: " + event.getType());
-                    if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
-                        try {
-                            updateLeader();
-                            // Re-setup the watcher for future changes
-                            setupElectionWatcher();
-                        } catch (Exception e) {
-                            System.out.println("Error handling election change: " + e.getMessage());
-                        }
-                    }
-                }
-            });
+            if (event.getType() == Watcher.Event.EventType.NodeCreated) {
+                candidates.put(znode, new String(timed("getData", () -> zk.getData(path, false, null)), StandardCharsets.UTF_8));
+            } else if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                candidates.remove(znode);
+            } else {
+                return;
+            }
+        } catch (KeeperException.NoNodeException gone) {
+            candidates.remove(znode);
         } catch (Exception e) {
-            System.out.println("Error setting up election watcher: " + e.getMessage());
+            logger.warn("Error handling election change: {}", e.getMessage());
+            return;
         }
+        electLowest();
     }
 
+    // full re-read of the candidates, used at startup, after reconnects and when triggered manually
     private void updateLeader() {
         try {
-            List<String> children = zk.getChildren(electionPath, false);
-            if (children.isEmpty()) { 
-                leaderId = nodeId; 
-                System.out.println("No other nodes in election, I am the leader: " + nodeId);
-                return; 
-            }
-            
-            children.sort(String::compareTo);
-            String smallest = children.get(0);
-            byte[] data = zk.getData(electionPath + "/" + smallest, false, null);
-            String newLeaderId = new String(data, StandardCharsets.UTF_8);
-            
-            String previousLeader = leaderId;
-            leaderId = newLeaderId;
-            
-            if (!newLeaderId.equals(previousLeader)) {
-                System.out.println("Leader changed from " + previousLeader + " to " + newLeaderId);
-                if (isLeader()) {
-                    System.out.println("I am now the leader: " + nodeId);
-                } else {
-                    System.out.println("New leader is: " + newLeaderId + " (I am: " + nodeId + ")");
+            List<String> children = timed("getChildren", () -> zk.getChildren(electionPath, false));
+            // sequence numbers only grow, so a candidate named after the newest listed one was
+            // created after this read and must not be dropped
+            String newest = children.stream().max(String::compareTo).orElse("");
+            candidates.keySet().removeIf(c -> !children.contains(c) && c.compareTo(newest) <= 0);
+            for (String c : children) {
+                if (candidates.containsKey(c)) continue;
+                try {
+                    candidates.put(c, new String(timed("getData", () -> zk.getData(electionPath + "/" + c, false, null)), StandardCharsets.UTF_8));
+                } catch (KeeperException.NoNodeException gone) {
+                    // withdrew between getChildren and getData
                 }
             }
+            electLowest();
         } catch (Exception e) {
-            System.out.println("Error updating leader: " + e.getMessage());
+            logger.warn("Error updating leader: {}", e.getMessage());
             leaderId = nodeId;
         }
     }
 
+    private void electLowest() {
+        Map.Entry<String, String> first = candidates.firstEntry();
+        if (first == null) {
+            String previousLeader = leaderId;
+            leaderId = nodeId;
+            logger.info("No other nodes in election, I am the leader: {}", nodeId);
+            if (!nodeId.equals(previousLeader)) notifyLeader(previousLeader, nodeId);
+            return;
+        }
+        String newLeaderId = first.getValue();
+        String previousLeader = leaderId;
+        leaderId = newLeaderId;
+
+        if (!newLeaderId.equals(previousLeader)) {
+            logger.info("Leader changed from {} to {}", previousLeader, newLeaderId);
+            if (isLeader()) {
+                logger.info("I am now the leader: {}", nodeId);
+            } else {
+                logger.info("New leader is: {} (I am: {})", newLeaderId, nodeId);
+            }
+            notifyLeader(previousLeader, newLeaderId);
+        }
+    }
+
+    private void notifyLeader(String previous, String current) {
+        leaderChanges.increment();
+        for (BiConsumer<String, String> l : leaderListeners) {
+            try {
+                l.accept(previous, current);
+            } catch (Exception e) {
+                logger.warn("Leader listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
     @PreDestroy
     public void close() throws InterruptedException {
         heartbeatExecutor.shutdownNow();
@@ -89,71 +89,44 @@ const DMS = (() => {
     }
   }
 
+  // messages shown so far (by id, in arrival order) and the offset the next poll starts from;
+  // both reset when the id of this server changes
+  const MAX_SHOWN = 500;
+  const POLL_BATCH = 500;
+  let shownMessages = new Map();
+  let nextOffset = 1;
+  let pollingFor = null;
+  let pollLoopRunning = false;
+
+  // reads only what arrived since the last poll; waitMs > 0 parks the request until something does
+  async function fetchNewMessages(waitMs) {
+    if (pollingFor !== currentServerId) {
+      pollingFor = currentServerId;
+      shownMessages = new Map();
+      nextOffset = 1;
+    }
+    const receiver = pollingFor;
+    const res = await fetch(`/api/messages/poll?receiver=${encodeURIComponent(receiver)}&includeSent=true&fromOffset=${nextOffset}&max=${POLL_BATCH}&waitMs=${waitMs}`);
+    const batch = await res.json();
+    if (receiver !== pollingFor) return [];
+    nextOffset = Math.max(nextOffset, batch.nextOffset || nextOffset);
+    for (const m of batch.messages || []) {
+      shownMessages.delete(m.id);
+      shownMessages.set(m.id, m);
+    }
+    while (shownMessages.size > MAX_SHOWN) shownMessages.delete(shownMessages.keys().next().value);
+    return batch.messages || [];
+  }
+
   async function refreshMessages() {
     try {
       refreshMessagesBtn && (refreshMessagesBtn.disabled = true);
-      const res = await fetch('/admin/messages');
-      const msgs = await res.json();
-      messagesEl.innerHTML = '';
-      if (!msgs || msgs.length === 0) {
-        messagesEl.innerHTML = '<div class="item">No messages yet</div>';
-        return;
-      }
-      for (const m of msgs) {
-        const ts = m.timestamp || '';
-        const senderId = m.sender || 'unknown';
-        const receiverId = m.receiver || 'all';
-        
-        // Debug logging
-        console.log('Message:', m.id, 'originNodeId:', m.originNodeId, 'currentServerId:', currentServerId, 'receiverId:', receiverId, 'senderId:', senderId);
-        
-        // Determine message direction from current server's perspective
-        // Check if this message was sent by the current server (by checking originNodeId)
-        const isSent = m.originNodeId === currentServerId;
-        // Check if this message was received by the current server
-        // For BROADCAST: all servers receive it
-        // For unicast: receiver should match current server ID
-        const isReceived = receiverId === 'BROADCAST' || receiverId === currentServerId;
-        
-        console.log('Message filtering - isSent:', isSent, 'isReceived:', isReceived, 'willShow:', (isSent || isReceived));
-        
-        // Only show messages that are sent by this server, received by this server, or broadcast messages
-        if (!isSent && !isReceived) {
-          console.log('Filtering out message:', m.id, 'isSent:', isSent, 'isReceived:', isReceived);
-          continue;
-        }
-        
-        console.log('Showing message:', m.id, 'isSent:', isSent, 'isReceived:', isReceived);
-        
-        const div = document.createElement('div');
-        div.className = 'item';
-        
-        let directionText = '';
-        let messageClass = '';
-        
-        if (isSent && isReceived) {
-          directionText = '📤📥 SENT & RECEIVED';
-          messageClass = 'sent-received';
-        } else if (isSent) {
-          directionText = '📤 SENT';
-          messageClass = 'sent';
-        } else if (isReceived) {
-          directionText = '📥 RECEIVED';
-          messageClass = 'received';
-        }
-        
-        // Handle broadcast messages
-        const displayReceiver = receiverId === 'BROADCAST' ? '📢 ALL SERVERS' : receiverId;
-        
-        div.className = `item ${messageClass}`;
-        div.innerHTML = `<div><strong>${directionText}</strong></div>
-                         <div><strong>From:</strong> ${senderId} → <strong>To:</strong> ${displayReceiver}</div>
-                         <div><strong>Origin Node:</strong> ${m.originNodeId || 'unknown'}</div>
-                         <div><strong>Lamport Clock:</strong> ${m.lamport || 'N/A'}</div>
-                         <div>${escapeHtml(m.payload || '')}</div>
-                         <small style="color:#9ca3af">${ts}</small>`;
-        messagesEl.appendChild(div);
-      }
+      let batch;
+      do {
+        batch = await fetchNewMessages(0);
+      } while (batch.length >= POLL_BATCH);
+      renderMessages();
+      startLive();
     } catch (e) {
       messagesEl.innerHTML = `<div class="item">Error loading messages</div>`;
     } finally {
@@ -161,22 +134,152 @@ const DMS = (() => {
     }
   }
 
+  // live updates: one EventSource carries new messages and membership, leader and heartbeat
+  // changes; long-polling is the fallback when the stream can't be used
+  let stream = null;
+  let streamFor = null;
+  let heartbeats = new Map();
+  let showingHeartbeats = false;
+
+  function startLive() {
+    if (!window.EventSource) {
+      pollMessages();
+      return;
+    }
+    if (stream && streamFor === currentServerId) return;
+    if (stream) stream.close();
+    streamFor = currentServerId;
+    stream = new EventSource(`/api/stream?receiver=${encodeURIComponent(streamFor)}&includeSent=true&fromOffset=${nextOffset}`);
+    stream.addEventListener('message', e => {
+      if (streamFor !== pollingFor) return;
+      const m = JSON.parse(e.data);
+      shownMessages.delete(m.id);
+      shownMessages.set(m.id, m);
+      while (shownMessages.size > MAX_SHOWN) shownMessages.delete(shownMessages.keys().next().value);
+      if (e.lastEventId) nextOffset = Math.max(nextOffset, Number(e.lastEventId) + 1);
+      renderMessages();
+    });
+    stream.addEventListener('membership', () => refreshNodes());
+    stream.addEventListener('leader', e => {
+      const change = JSON.parse(e.data);
+      const div = document.createElement('div');
+      div.className = 'item';
+      div.textContent = `👑 Leader changed: ${change.previous || 'none'} → ${change.leader}`;
+      healthEl.appendChild(div);
+    });
+    stream.addEventListener('heartbeat', e => {
+      const beat = JSON.parse(e.data);
+      if (beat.at) heartbeats.set(beat.node, beat.at);
+      else heartbeats.delete(beat.node);
+      if (showingHeartbeats) renderHeartbeats();
+    });
+    // the server dropped events because this page fell behind: reload from scratch
+    stream.addEventListener('resync', () => refreshNodes());
+    stream.onerror = () => {
+      // EventSource reconnects by itself unless the server refused the stream
+      if (stream.readyState === EventSource.CLOSED) {
+        stream = null;
+        pollMessages();
+      }
+    };
+  }
+
+  function clearHealth() {
+    healthEl.innerHTML = '';
+    showingHeartbeats = false;
+  }
+
+  // long-polls in the background and renders new messages as they arrive
+  async function pollMessages() {
+    if (pollLoopRunning) return;
+    pollLoopRunning = true;
+    while (true) {
+      try {
+        const batch = await fetchNewMessages(25000);
+        if (batch.length > 0) renderMessages();
+      } catch (e) {
+        await new Promise(resolve => setTimeout(resolve, 2000));
+      }
+    }
+  }
+
+  function renderMessages() {
+    const msgs = Array.from(shownMessages.values());
+    messagesEl.innerHTML = '';
+    if (msgs.length === 0) {
+      messagesEl.innerHTML = '<div class="item">No messages yet</div>';
+      return;
+    }
+    for (const m of msgs) {
+      const ts = m.timestamp || '';
+      const senderId = m.sender || 'unknown';
+      const receiverId = m.receiver || 'all';
+      
+      // Debug logging
+      console.log('Message:', m.id, 'originNodeId:', m.originNodeId, 'currentServerId:', currentServerId, 'receiverId:', receiverId, 'senderId:', senderId);
+      
+      // Determine message direction from current server's perspective
+      // Check if this message was sent by the current server (by checking originNodeId)
+      const isSent = m.originNodeId === currentServerId;
+      // Check if this message was received by the current server
+      // For BROADCAST: all servers receive it
+      // For unicast: receiver should match current server ID
+      const isReceived = receiverId === 'BROADCAST' || receiverId === currentServerId;
+      
+      console.log('Message filtering - isSent:', isSent, 'isReceived:', isReceived, 'willShow:', (isSent || isReceived));
+      
+      // Only show messages that are sent by this server, received by this server, or broadcast messages
+      if (!isSent && !isReceived) {
+        console.log('Filtering out message:', m.id, 'isSent:', isSent, 'isReceived:', isReceived);
+        continue;
+      }
+      
+      console.log('Showing message:', m.id, 'isSent:', isSent, 'isReceived:', isReceived);
+      
+      const div = document.createElement('div');
+      div.className = 'item';
+      
+      let directionText = '';
+      let messageClass = '';
+      
+      if (isSent && isReceived) {
+        directionText = '📤📥 SENT & RECEIVED';
+        messageClass = 'sent-received';
+      } else if (isSent) {
+        directionText = '📤 SENT';
+        messageClass = 'sent';
+      } else if (isReceived) {
+        directionText = '📥 RECEIVED';
+        messageClass = 'received';
+      }
+      
+      // Handle broadcast messages
+      const displayReceiver = receiverId === 'BROADCAST' ? '📢 ALL SERVERS' : receiverId;
+      
+      div.className = `item ${messageClass}`;
+      div.innerHTML = `<div><strong>${directionText}</strong></div>
+                       <div><strong>From:</strong> ${senderId} → <strong>To:</strong> ${displayReceiver}</div>
+                       <div><strong>Origin Node:</strong> ${m.originNodeId || 'unknown'}</div>
+                       <div><strong>Lamport Clock:</strong> ${m.lamport || 'N/A'}</div>
+                       <div>${escapeHtml(m.payload || '')}</div>
+                       <small style="color:#9ca3af">${ts}</small>`;
+      messagesEl.appendChild(div);
+    }
+  }
+
   async function refreshHeartbeats() {
     try {
       refreshHeartbeatsBtn && (refreshHeartbeatsBtn.disabled = true);
       const res = await fetch('/admin/heartbeats');
       const beats = await res.json();
-      healthEl.innerHTML = '';
-      if (!beats || beats.length === 0) {
-        healthEl.innerHTML = '<div class="item">No heartbeats</div>';
-        return;
-      }
-      for (const b of beats) {
-        const div = document.createElement('div');
-        div.className = 'item';
-        div.textContent = `❤️ ${b}`;
-        healthEl.appendChild(div);
+      heartbeats = new Map();
+      for (const b of beats || []) {
+        const i = b.indexOf(':');
+        heartbeats.set(b.substring(0, i), b.substring(i + 1));
       }
+      // kept current by heartbeat events from the stream from here on
+      showingHeartbeats = true;
+      renderHeartbeats();
     } catch (e) {
       healthEl.innerHTML = '<div class="item">Error loading heartbeats</div>';
     } finally {
@@ -184,6 +287,20 @@ const DMS = (() => {
     }
   }
 
+  function renderHeartbeats() {
+    healthEl.innerHTML = '';
+    if (heartbeats.size === 0) {
+      healthEl.innerHTML = '<div class="item">No heartbeats</div>';
+      return;
+    }
+    for (const node of Array.from(heartbeats.keys()).sort()) {
+      const div = document.createElement('div');
+      div.className = 'item';
+      div.textContent = `❤️ ${node}:${heartbeats.get(node)}`;
+      healthEl.appendChild(div);
+    }
+  }
+
   async function refreshLeader() {
     try {
       refreshLeaderBtn && (refreshLeaderBtn.disabled = true);
@@ -338,11 +455,11 @@ const DMS = (() => {
 
   refreshNodesBtn && refreshNodesBtn.addEventListener('click', refreshNodes);
   refreshMessagesBtn && refreshMessagesBtn.addEventListener('click', refreshMessages);
-  refreshHeartbeatsBtn && refreshHeartbeatsBtn.addEventListener('click', () => { healthEl.innerHTML=''; refreshHeartbeats(); });
-  refreshLeaderBtn && refreshLeaderBtn.addEventListener('click', () => { healthEl.innerHTML=''; refreshLeader(); });
-  refreshReplicasBtn && refreshReplicasBtn.addEventListener('click', () => { healthEl.innerHTML=''; refreshReplicas(); });
-  refreshReplicasManualBtn && refreshReplicasManualBtn.addEventListener('click', () => { healthEl.innerHTML=''; manualRefreshReplicas(); });
-  triggerElectionBtn && triggerElectionBtn.addEventListener('click', () => { healthEl.innerHTML=''; triggerElection(); });
+  refreshHeartbeatsBtn && refreshHeartbeatsBtn.addEventListener('click', () => { clearHealth(); refreshHeartbeats(); });
+  refreshLeaderBtn && refreshLeaderBtn.addEventListener('click', () => { clearHealth(); refreshLeader(); });
+  refreshReplicasBtn && refreshReplicasBtn.addEventListener('click', () => { clearHealth(); refreshReplicas(); });
+  refreshReplicasManualBtn && refreshReplicasManualBtn.addEventListener('click', () => { clearHealth(); manualRefreshReplicas(); });
+  triggerElectionBtn && triggerElectionBtn.addEventListener('click', () => { clearHealth(); triggerElection(); });
   enablePartitionBtn && enablePartitionBtn.addEventListener('click', () => setPartitionMode(true));
   disablePartitionBtn && disablePartitionBtn.addEventListener('click', () => setPartitionMode(false));
   sendForm && sendForm.addEventListener('submit', onSend);
@@ -0,0 +1,145 @@
+package com.dms.server.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The exact window's generations and stripes, and the Bloom filter behind it whose hits are
+ * confirmed against an authority: here a set of "stored" ids that records every lookup.
+ */
+class DedupIndexTest {
+    // 16 stripes x 2 generations x 16 ids
+    private static final int MAX_ENTRIES = 512;
+    private static final long HOUR_MS = 3_600_000;
+
+    private final Set<String> stored = new HashSet<>();
+    private final List<String> consulted = new ArrayList<>();
+
+    @Test
+    void repeatedIdsInTheWindowAreDuplicatesWithoutAskingTheAuthority() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000_000);
+        String uuid = UUID.randomUUID().toString();
+
+        assertTrue(index.markSeen(uuid));
+        assertTrue(index.markSeen("not-a-uuid"));
+        assertFalse(index.markSeen(uuid));
+        assertFalse(index.markSeen("not-a-uuid"));
+        assertTrue(index.markSeen(null));
+
+        assertEquals(2, index.duplicates());
+        assertEquals(2, index.size());
+        assertTrue(consulted.isEmpty());
+    }
+
+    @Test
+    void oldestGenerationIsDroppedOnceTheWindowIsFull() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000_000);
+        for (int i = 0; i < 10 * MAX_ENTRIES; i++) assertTrue(index.markSeen("id-" + i));
+
+        assertEquals((long) MAX_ENTRIES, index.stats().get("capacity"));
+        assertTrue(index.size() <= MAX_ENTRIES, index.size() + " ids held");
+        assertEquals(10 * MAX_ENTRIES - index.size(), index.evictions());
+        // the newest ids are still in the exact window
+        assertFalse(index.markSeen("id-" + (10 * MAX_ENTRIES - 1)));
+        assertTrue(consulted.isEmpty());
+    }
+
+    @Test
+    void generationsAlsoAgeOut() throws InterruptedException {
+        DedupIndex index = index(MAX_ENTRIES, 20, 1_000_000);
+        index.markSeen("early");
+        Thread.sleep(50);
+        // every stripe rotates on its next use, so touch them all, twice over the two generations
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 200; i++) index.markSeen("late-" + round + "-" + i);
+            Thread.sleep(15);
+        }
+
+        assertTrue(index.evictions() > 0);
+        stored.add("early");
+        assertFalse(index.markSeen("early"));
+        assertEquals(List.of("early"), consulted);
+    }
+
+    @Test
+    void bloomHitConfirmedByTheAuthorityIsADuplicate() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000_000);
+        index.markSeen("evicted");
+        stored.add("evicted");
+        evictEverything(index);
+
+        assertFalse(index.markSeen("evicted"));
+        assertEquals(List.of("evicted"), consulted);
+        assertEquals(1L, index.stats().get("bloomHits"));
+        assertEquals(0, index.falsePositives());
+        // confirmed ids go back into the exact window
+        assertFalse(index.markSeen("evicted"));
+        assertEquals(1, consulted.size());
+    }
+
+    @Test
+    void bloomHitTheAuthorityRejectsIsAFalsePositive() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000_000);
+        index.markSeen("never-stored");
+        evictEverything(index);
+
+        assertTrue(index.markSeen("never-stored"));
+        assertEquals(List.of("never-stored"), consulted);
+        assertEquals(1, index.falsePositives());
+        assertFalse(index.markSeen("never-stored"));
+    }
+
+    @Test
+    void forgottenIdIsProcessedAgainAndNeighboursStayFound() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000_000);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) ids.add(UUID.randomUUID().toString());
+        for (String id : ids) index.markSeen(id);
+
+        index.forget(ids.get(7));
+        index.forget("never-seen");
+
+        // still in the Bloom filter, but the authority doesn't hold it
+        assertTrue(index.markSeen(ids.get(7)));
+        assertEquals(List.of(ids.get(7)), consulted);
+        for (String id : ids) assertFalse(index.markSeen(id), id);
+        assertEquals(1, consulted.size());
+    }
+
+    @Test
+    void bloomFilterRotatesAndForgetsAfterTwoLifetimes() {
+        DedupIndex index = index(MAX_ENTRIES, HOUR_MS, 1_000);
+        index.markSeen("ancient");
+        stored.add("ancient");
+        for (int i = 0; i < 2_500; i++) index.markSeen("id-" + i);
+
+        assertTrue((long) index.stats().get("bloomRotations") >= 2);
+        // a small filter answers "maybe" for some of the filler ids
+        consulted.clear();
+        // out of both the window and the filter, so the authority is not asked
+        assertTrue(index.markSeen("ancient"));
+        assertTrue(consulted.isEmpty());
+    }
+
+    private DedupIndex index(int maxEntries, long windowMs, long bloomEntries) {
+        return new DedupIndex(id -> {
+            consulted.add(id);
+            return stored.contains(id);
+        }, maxEntries, windowMs, 2, bloomEntries, 0.001);
+    }
+
+    // pushes enough fresh ids through every stripe to rotate out both generations
+    private void evictEverything(DedupIndex index) {
+        for (int i = 0; i < 10 * MAX_ENTRIES; i++) index.markSeen("filler-" + i);
+        consulted.clear();
+    }
+}
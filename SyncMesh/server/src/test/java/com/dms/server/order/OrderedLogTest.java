@@ -0,0 +1,73 @@
+package com.dms.server.order;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Offsets, epochs, truncation and the commit offset of {@link OrderedLog}. */
+class OrderedLogTest {
+
+    @Test
+    void offsetsStartAtOneAndRecordTheirEpoch() {
+        OrderedLog log = new OrderedLog();
+        assertEquals(0, log.last());
+        assertEquals(-1, log.epochAt(0));
+
+        assertEquals(1, log.append("a", 3));
+        assertEquals(2, log.append("b", 3));
+        assertEquals(3, log.append("c", 5));
+
+        assertEquals("a", log.idAt(1));
+        assertEquals("c", log.idAt(3));
+        assertNull(log.idAt(0));
+        assertNull(log.idAt(4));
+        assertEquals(3, log.epochAt(2));
+        assertEquals(5, log.epochAt(3));
+        assertEquals(-1, log.epochAt(4));
+        assertEquals(Arrays.asList("b", "c"), log.range(2, 10));
+    }
+
+    @Test
+    void commitOnlyMovesForwardAndNeverPastTheLastEntry() {
+        OrderedLog log = logOf(4);
+
+        assertTrue(log.advanceCommit(2));
+        assertFalse(log.advanceCommit(1));
+        assertFalse(log.advanceCommit(2));
+        assertEquals(2, log.commit());
+
+        assertTrue(log.advanceCommit(9));
+        assertEquals(4, log.commit());
+    }
+
+    @Test
+    void truncationReturnsTheDroppedIdsAndKeepsCommittedEntries() {
+        OrderedLog log = logOf(5);
+        log.advanceCommit(2);
+
+        assertEquals(Arrays.asList("e5", "e4"), log.truncateAfter(3));
+        assertEquals(3, log.last());
+        assertEquals(-1, log.epochAt(4));
+
+        // asked to drop everything after offset 1, it stops at the commit offset
+        assertEquals(Collections.singletonList("e3"), log.truncateAfter(1));
+        assertEquals(2, log.last());
+        assertEquals("e2", log.idAt(2));
+        assertTrue(log.truncateAfter(0).isEmpty());
+
+        assertEquals(3, log.append("x3", 9));
+        assertEquals(9, log.epochAt(3));
+    }
+
+    private static OrderedLog logOf(int entries) {
+        OrderedLog log = new OrderedLog();
+        for (int i = 1; i <= entries; i++) log.append("e" + i, 1);
+        return log;
+    }
+}
@@ -0,0 +1,197 @@
+package com.dms.server.order;
+
+import com.dms.common.model.Message;
+import com.dms.server.dedup.DedupIndex;
+import com.dms.server.repository.MessageRepository;
+import com.dms.server.storage.MessageLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The follower side of the total order: {@link TotalOrderService#apply} against a repository on a
+ * real log in a temporary directory. The leader is {@code server-a}; entries are named after
+ * their offset and carry the epoch that sequenced them.
+ */
+class TotalOrderServiceTest {
+    private static final String LEADER = "server-a";
+
+    private Path dir;
+    private MessageLog messageLog;
+    private MessageRepository repo;
+    private TotalOrderService order;
+    private long lamport;
+
+    @BeforeEach
+    void start() throws IOException {
+        dir = Files.createTempDirectory("total-order-test");
+        open();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        order.stop();
+        messageLog.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void appliesEntriesAndCommitsUpToTheLeadersCommitOffset() {
+        Map<String, Object> reply = apply(5, 0, 1, -1, entry("e1", 5), entry("e2", 5), entry("e3", 5));
+        assertEquals(true, reply.get("ok"));
+        assertEquals(3L, reply.get("match"));
+        assertEquals(0L, status("commit"));
+        assertTrue(order.read(1, 10, false).isEmpty());
+        assertEquals(3, order.read(1, 10, true).size());
+
+        // a heartbeat carries the commit offset
+        reply = apply(5, 2, 4, 5);
+        assertEquals(true, reply.get("ok"));
+        assertEquals(2L, status("commit"));
+        assertEquals(Arrays.asList("e1", "e2"), ids(order.read(1, 10, false)));
+        assertEquals(2L, repo.findById("e2").getSequence());
+
+        // never past what this follower holds
+        apply(5, 9, 4, 5);
+        assertEquals(3L, status("commit"));
+    }
+
+    @Test
+    void rejectsAppendsFromAnOlderEpoch() {
+        apply(5, 0, 1, -1, entry("e1", 5));
+
+        Map<String, Object> reply = apply(4, 1, 2, 5, entry("stale", 4));
+        assertEquals(false, reply.get("ok"));
+        assertEquals("stale-epoch", reply.get("reason"));
+        assertEquals(5L, reply.get("epoch"));
+        assertEquals(1L, reply.get("last"));
+        assertEquals(1L, status("rejectedStale"));
+        assertFalse(repo.contains("stale"));
+
+        assertEquals(true, apply(6, 0, 2, 5, entry("e2", 6)).get("ok"));
+        assertEquals(6L, status("epoch"));
+    }
+
+    @Test
+    void answersAGapWithItsLastOffsetSoTheLeaderCanResend() {
+        apply(5, 0, 1, -1, entry("e1", 5));
+
+        Map<String, Object> reply = apply(5, 0, 4, 5, entry("e4", 5));
+        assertEquals(false, reply.get("ok"));
+        assertEquals("gap", reply.get("reason"));
+        assertEquals(1L, reply.get("last"));
+
+        reply = apply(5, 0, 2, 5, entry("e2", 5), entry("e3", 5), entry("e4", 5));
+        assertEquals(true, reply.get("ok"));
+        assertEquals(4L, reply.get("match"));
+    }
+
+    @Test
+    void reappliedEntriesOfTheSameEpochAreKept() {
+        apply(5, 0, 1, -1, entry("e1", 5), entry("e2", 5));
+
+        // a retried batch overlapping what is held changes nothing
+        Map<String, Object> reply = apply(5, 0, 1, -1, entry("e1", 5), entry("e2", 5), entry("e3", 5));
+        assertEquals(3L, reply.get("match"));
+        assertEquals(0L, status("truncated"));
+        assertEquals(3L, status("last"));
+    }
+
+    @Test
+    void divergedHistoryDropsTheUncommittedTail() {
+        apply(5, 1, 1, -1, entry("e1", 5), entry("e2", 5), entry("e3", 5));
+
+        // the new leader's entry 2 is from epoch 6, not 5
+        Map<String, Object> reply = apply(7, 1, 3, 6, entry("x3", 7));
+        assertEquals(false, reply.get("ok"));
+        assertEquals("diverged", reply.get("reason"));
+        assertEquals(1L, reply.get("last"));
+        assertEquals(1L, status("truncated"));
+        assertTrue(repo.contains("e1"));
+        assertFalse(repo.contains("e2"));
+        assertFalse(repo.contains("e3"));
+
+        reply = apply(7, 1, 2, 5, entry("x2", 6), entry("x3", 7));
+        assertEquals(true, reply.get("ok"));
+        assertEquals(3L, reply.get("match"));
+        assertEquals(Arrays.asList("e1", "x2", "x3"), ids(order.read(1, 10, true)));
+        assertEquals(7L, status("lastEpoch"));
+    }
+
+    @Test
+    void entryOfADifferentEpochReplacesTheTailFromThere() {
+        apply(5, 1, 1, -1, entry("e1", 5), entry("e2", 5), entry("e3", 5));
+
+        Map<String, Object> reply = apply(6, 1, 2, 5, entry("e2", 5), entry("y3", 6));
+        assertEquals(true, reply.get("ok"));
+        assertEquals(Arrays.asList("e1", "e2", "y3"), ids(order.read(1, 10, true)));
+        assertFalse(repo.contains("e3"));
+        assertEquals(3L, repo.findById("y3").getSequence());
+        assertEquals(6L, repo.findById("y3").getSequenceEpoch());
+    }
+
+    @Test
+    void droppedEntriesStayWithdrawnAfterARestart() throws IOException {
+        apply(5, 1, 1, -1, entry("e1", 5), entry("e2", 5), entry("e3", 5));
+        apply(6, 1, 2, 5, entry("y2", 6));
+
+        order.stop();
+        messageLog.close();
+        open();
+
+        assertTrue(repo.contains("e1"));
+        assertTrue(repo.contains("y2"));
+        assertFalse(repo.contains("e2"));
+        assertFalse(repo.contains("e3"));
+        assertEquals(2L, repo.findById("y2").getSequence());
+    }
+
+    private void open() throws IOException {
+        messageLog = new MessageLog(true, dir.toString(), 1 << 20, 3_600_000, 10, false, 1000, 4096);
+        repo = new MessageRepository(messageLog);
+        repo.recover();
+        DedupIndex seen = new DedupIndex(repo::contains, 1024, 600_000, 4, 1024, 0.01);
+        order = new TotalOrderService(repo, null, null, seen, true, 256, 4, 3, 200, 5000);
+    }
+
+    private Map<String, Object> apply(long epoch, long commit, long from, long prevEpoch, Message... entries) {
+        return order.apply(LEADER, epoch, commit, from, prevEpoch, new ArrayList<>(Arrays.asList(entries)));
+    }
+
+    private Object status(String key) {
+        Object v = order.status().get(key);
+        return v instanceof Number ? ((Number) v).longValue() : v;
+    }
+
+    // a fresh copy per call, as if decoded from the leader's request
+    private Message entry(String id, long epoch) {
+        Message m = new Message("alice", "BROADCAST", "payload of " + id);
+        m.setId(id);
+        m.setLamport(++lamport);
+        m.setOriginNodeId(LEADER);
+        m.setSequenceEpoch(epoch);
+        return m;
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> out = new ArrayList<>(messages.size());
+        for (Message m : messages) out.add(m.getId());
+        return out;
+    }
+}
@@ -0,0 +1,108 @@
+package com.dms.server.partition;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Placement of keys on {@link ConsistentHashRing}: replica sets, stability and movement on membership changes. */
+class ConsistentHashRingTest {
+    private static final int VIRTUAL_NODES = 128;
+    private static final int KEYS = 10_000;
+
+    @Test
+    void ownersAreDistinctAndCappedAtTheNodeCount() {
+        ConsistentHashRing ring = ring("a", "b", "c");
+
+        for (String key : keys()) {
+            List<String> two = ring.owners(key, 2);
+            assertEquals(2, two.size());
+            assertEquals(2, new HashSet<>(two).size());
+            assertEquals(two, ring.owners(key, 3).subList(0, 2), "a wider replica set keeps the same primary and order");
+            assertEquals(3, ring.owners(key, 5).size());
+        }
+        assertTrue(ring("a").owners("k", 0).isEmpty());
+        assertTrue(new ConsistentHashRing(Collections.emptyList(), VIRTUAL_NODES).owners("k", 2).isEmpty());
+    }
+
+    @Test
+    void placementDoesNotDependOnMembershipOrder() {
+        ConsistentHashRing one = ring("a", "b", "c", "d");
+        ConsistentHashRing other = ring("d", "b", "a", "c");
+
+        assertEquals(one, other);
+        for (String key : keys()) assertEquals(one.owners(key, 2), other.owners(key, 2));
+    }
+
+    @Test
+    void keysSpreadEvenlyAcrossNodes() {
+        ConsistentHashRing ring = ring("a", "b", "c", "d");
+        Map<String, Integer> load = new HashMap<>();
+        for (String key : keys()) load.merge(ring.owners(key, 1).get(0), 1, Integer::sum);
+
+        int fair = KEYS / 4;
+        for (String node : ring.nodes()) {
+            int n = load.getOrDefault(node, 0);
+            assertTrue(Math.abs(n - fair) < fair / 4, node + " holds " + n + " of " + KEYS + " keys");
+        }
+    }
+
+    @Test
+    void joiningNodeOnlyTakesKeysForItself() {
+        ConsistentHashRing before = ring("a", "b", "c");
+        ConsistentHashRing after = ring("a", "b", "c", "d");
+
+        int moved = 0;
+        for (String key : keys()) {
+            String was = before.owners(key, 1).get(0);
+            String is = after.owners(key, 1).get(0);
+            if (!was.equals(is)) {
+                assertEquals("d", is, key + " moved between existing nodes");
+                moved++;
+            }
+        }
+        assertMovedAboutAQuarter(moved);
+    }
+
+    @Test
+    void leavingNodeOnlyGivesUpItsOwnKeys() {
+        ConsistentHashRing before = ring("a", "b", "c", "d");
+        ConsistentHashRing after = ring("a", "b", "c");
+
+        int moved = 0;
+        for (String key : keys()) {
+            List<String> was = before.owners(key, 2);
+            List<String> is = after.owners(key, 2);
+            if (!was.get(0).equals(is.get(0))) {
+                assertEquals("d", was.get(0), key + " lost a primary that is still a member");
+                // the old backup takes over, so the data is already there
+                assertEquals(was.get(1), is.get(0));
+                moved++;
+            }
+        }
+        assertMovedAboutAQuarter(moved);
+    }
+
+    private static void assertMovedAboutAQuarter(int moved) {
+        int fair = KEYS / 4;
+        assertTrue(Math.abs(moved - fair) < fair / 4, moved + " of " + KEYS + " keys moved");
+    }
+
+    private static ConsistentHashRing ring(String... nodes) {
+        return new ConsistentHashRing(Arrays.asList(nodes), VIRTUAL_NODES);
+    }
+
+    private static List<String> keys() {
+        List<String> out = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) out.add("orders/" + i);
+        return out;
+    }
+}
@@ -0,0 +1,207 @@
+package com.dms.server.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Framing, recovery and scans of {@link SegmentLog}. Records are {@code "record-N"} payloads,
+ * 17 bytes framed, and a segment rolls before it would pass 68 bytes, so each holds four records.
+ */
+class SegmentLogTest {
+    private static final long SEGMENT_BYTES = 68;
+    private static final byte FORMAT = 2;
+
+    private Path dir;
+    private SegmentLog log;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("segment-log-test");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        if (log != null) log.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void recoversEveryRecordAcrossSegments() throws IOException {
+        List<Long> positions = appendRecords(0, 10);
+        reopen();
+
+        List<String> recovered = new ArrayList<>();
+        List<Long> recoveredPositions = new ArrayList<>();
+        log.recover((position, format, payload) -> {
+            assertEquals(FORMAT, format);
+            recovered.add(text(payload));
+            recoveredPositions.add(position);
+        });
+
+        assertEquals(names(0, 10), recovered);
+        assertEquals(positions, recoveredPositions);
+        assertTrue(log.segmentBases().size() > 1, "records should span several segments");
+        assertEquals(names(0, 10), scanFrom(0));
+    }
+
+    @Test
+    void truncatesTornTailAndAppendsAfterIt() throws IOException {
+        List<Long> positions = appendRecords(0, 3);
+        long end = log.endPosition();
+        log.close();
+        // a record whose header promises more bytes than reached the disk
+        Path last = lastSegment();
+        long sizeBefore = Files.size(last);
+        try (FileChannel ch = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(12).putInt(100).putInt(0).put(FORMAT).put(new byte[3]).flip());
+        }
+
+        reopen();
+        List<String> recovered = recoverAll();
+
+        assertEquals(names(0, 3), recovered);
+        assertEquals(sizeBefore, Files.size(last));
+        assertEquals(end, log.endPosition());
+        long next = log.append(FORMAT, bytes("record-3"));
+        assertEquals(end, next);
+        assertEquals(names(0, 4), scanFrom(positions.get(0)));
+    }
+
+    @Test
+    void truncatesLastRecordWithBadChecksum() throws IOException {
+        List<Long> positions = appendRecords(0, 3);
+        log.close();
+        corruptPayload(positions.get(2));
+
+        reopen();
+
+        assertEquals(names(0, 2), recoverAll());
+        assertEquals(positions.get(2).longValue(), log.endPosition());
+    }
+
+    @Test
+    void damagedEarlierSegmentIsSkippedByRecoveryAndReads() throws IOException {
+        List<Long> positions = appendRecords(0, 8);
+        log.close();
+        assertEquals(2, log.segmentBases().size());
+        corruptPayload(positions.get(1));
+
+        reopen();
+        List<String> expected = new ArrayList<>(names(0, 1));
+        expected.addAll(names(4, 8));
+
+        assertEquals(expected, recoverAll());
+        assertEquals(expected, scanFrom(0));
+        byte[] format = new byte[1];
+        assertEquals("record-0", text(log.read(positions.get(0), format)));
+        // the damaged record is never handed out, nor is the next valid one in its place
+        assertNull(log.read(positions.get(1), format));
+    }
+
+    @Test
+    void scanStartsMidLogAndStopsWhenTold() throws IOException {
+        List<Long> positions = appendRecords(0, 10);
+
+        assertEquals(names(3, 10), scanFrom(positions.get(3)));
+
+        List<String> firstTwo = new ArrayList<>();
+        log.scan(positions.get(5), (position, format, payload) -> {
+            firstTwo.add(text(payload));
+            return firstTwo.size() < 2;
+        });
+        assertEquals(names(5, 7), firstTwo);
+    }
+
+    @Test
+    void awaitDurableReportsATimeout() throws Exception {
+        // no background flush within the test
+        log = new SegmentLog(dir, SEGMENT_BYTES, 0, 60_000);
+        log.recover((position, format, payload) -> {});
+        long position = log.append(FORMAT, bytes("record-0"));
+
+        assertFalse(log.awaitDurable(position + 1, 50));
+        log.flush();
+        assertTrue(log.awaitDurable(position + 1, 50));
+    }
+
+    private List<Long> appendRecords(int from, int to) throws IOException {
+        if (log == null) {
+            log = new SegmentLog(dir, SEGMENT_BYTES, 0, 10);
+            log.recover((position, format, payload) -> {});
+        }
+        List<Long> positions = new ArrayList<>();
+        for (int i = from; i < to; i++) positions.add(log.append(FORMAT, bytes("record-" + i)));
+        return positions;
+    }
+
+    private void reopen() throws IOException {
+        log.close();
+        log = new SegmentLog(dir, SEGMENT_BYTES, 0, 10);
+    }
+
+    private List<String> recoverAll() throws IOException {
+        List<String> out = new ArrayList<>();
+        log.recover((position, format, payload) -> out.add(text(payload)));
+        return out;
+    }
+
+    private List<String> scanFrom(long position) throws IOException {
+        List<String> out = new ArrayList<>();
+        log.scan(position, (pos, format, payload) -> out.add(text(payload)));
+        return out;
+    }
+
+    // flips the first payload byte of the record at a logical position
+    private void corruptPayload(long position) throws IOException {
+        long base = log.segmentBases().stream().filter(b -> b <= position).reduce((a, b) -> b).orElseThrow();
+        try (FileChannel ch = FileChannel.open(log.segmentPath(base), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long at = position - base + SegmentLog.HEADER_BYTES;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, at);
+            b.flip();
+            byte flipped = (byte) (b.get() ^ 0xFF);
+            ch.write(ByteBuffer.wrap(new byte[] {flipped}), at);
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Long> bases = log.segmentBases();
+        return log.segmentPath(bases.get(bases.size() - 1));
+    }
+
+    private static List<String> names(int from, int to) {
+        List<String> out = new ArrayList<>();
+        for (int i = from; i < to; i++) out.add("record-" + i);
+        return out;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ByteBuffer payload) {
+        byte[] b = new byte[payload.remaining()];
+        payload.duplicate().get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package com.dms.tests.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Records when each message first shows up on each node, from the nodes' {@code /api/stream}
+ * message events, so delivery is observed the way a subscriber sees it rather than by polling.
+ * A node that is restarted has to be tracked again once it is back.
+ */
+class DeliveryTracker implements AutoCloseable {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    // message id -> node id -> System.nanoTime() of its arrival there
+    private final Map<String, Map<String, Long>> arrivals = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<?>> streams = new ConcurrentHashMap<>();
+
+    void track(LocalCluster.Node node) throws Exception {
+        CompletableFuture<?> previous = streams.remove(node.id);
+        if (previous != null) previous.cancel(true);
+        HttpRequest req = HttpRequest.newBuilder(URI.create(node.url() + "/api/stream?types=message"))
+                .header("Accept", "text/event-stream").GET().build();
+        CompletableFuture<HttpResponse<Stream<String>>> resp = http.sendAsync(req, HttpResponse.BodyHandlers.ofLines());
+        // the hello event is sent on subscribe, so the response headers arrive straight away
+        resp.get();
+        streams.put(node.id, resp.thenAcceptAsync(r -> read(node.id, r.body())));
+        // what the node stored before the stream opened, e.g. while it recovered and caught up
+        for (JsonNode m : mapper.readTree(URI.create(node.url() + "/admin/messages").toURL())) {
+            record(node.id, m);
+        }
+    }
+
+    private void read(String nodeId, Stream<String> lines) {
+        String[] event = new String[1];
+        StringBuilder data = new StringBuilder();
+        try {
+            lines.forEach(line -> {
+                if (line.isEmpty()) {
+                    if ("message".equals(event[0]) && data.length() > 0) record(nodeId, data.toString());
+                    event[0] = null;
+                    data.setLength(0);
+                } else if (line.startsWith("event:")) {
+                    event[0] = line.substring(6).trim();
+                } else if (line.startsWith("data:")) {
+                    data.append(line.substring(5));
+                }
+            });
+        } catch (Exception ignored) {
+            // the node went away; its stream just ends
+        }
+    }
+
+    private void record(String nodeId, String json) {
+        try {
+            record(nodeId, mapper.readTree(json));
+        } catch (Exception ignored) {
+            // not a message
+        }
+    }
+
+    private void record(String nodeId, JsonNode message) {
+        long now = System.nanoTime();
+        JsonNode id = message.get("id");
+        if (id != null) arrivals.computeIfAbsent(id.asText(), k -> new ConcurrentHashMap<>()).putIfAbsent(nodeId, now);
+    }
+
+    /** Arrival time of {@code id} on {@code nodeId}, or null if it has not arrived. */
+    Long arrival(String id, String nodeId) {
+        Map<String, Long> at = arrivals.get(id);
+        return at == null ? null : at.get(nodeId);
+    }
+
+    @Override
+    public void close() {
+        streams.values().forEach(s -> s.cancel(true));
+    }
+}
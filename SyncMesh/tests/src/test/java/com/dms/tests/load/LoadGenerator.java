@@ -0,0 +1,180 @@
+package com.dms.tests.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a unicast/broadcast mix through {@code POST /api/messages/send} from closed-loop workers
+ * spread round-robin over the live nodes, optionally paced to a fixed rate. A message the cluster
+ * accepted is expected on its entry node and its receiver (every node for a broadcast) among the
+ * nodes that were up when it was sent and are up at the end; one that has not arrived on all of
+ * them within the drain time counts as lost. Failure actions run inline after a given number of
+ * sends, so they land in the middle of the load.
+ */
+class LoadGenerator {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    /** Workload knobs, read from {@code load.*} system properties. */
+    static final class Settings {
+        int messages = Integer.getInteger("load.messages", 600);
+        int concurrency = Integer.getInteger("load.concurrency", 8);
+        double broadcastRatio = Double.parseDouble(System.getProperty("load.broadcast-ratio", "0.3"));
+        int rate = Integer.getInteger("load.rate", 0);
+        long drainMs = Long.getLong("load.drain-ms", 20_000L);
+    }
+
+    interface Action {
+        void run() throws Exception;
+    }
+
+    private static final class Sent {
+        final String id;
+        final String entry;
+        final List<String> targets;
+        final long sentAt;
+
+        Sent(String id, String entry, List<String> targets, long sentAt) {
+            this.id = id;
+            this.entry = entry;
+            this.targets = targets;
+            this.sentAt = sentAt;
+        }
+    }
+
+    LoadReport run(String scenario, LocalCluster cluster, DeliveryTracker tracker, Settings settings,
+                   Map<Integer, Action> actions) throws Exception {
+        ConcurrentLinkedQueue<Sent> accepted = new ConcurrentLinkedQueue<>();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(settings.concurrency);
+        long start = System.nanoTime();
+        for (int w = 0; w < settings.concurrency; w++) {
+            workers.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < settings.messages) {
+                    Action action = actions.get(i);
+                    if (action != null) {
+                        try {
+                            action.run();
+                        } catch (Exception e) {
+                            throw new IllegalStateException("failure action at message " + i + " failed", e);
+                        }
+                    }
+                    if (settings.rate > 0) pace(start, i, settings.rate);
+                    Sent s = send(cluster, i, settings.broadcastRatio);
+                    if (s != null) accepted.add(s);
+                    else rejected.incrementAndGet();
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // wait for every expected copy, on the nodes that are still up
+        long deadline = System.currentTimeMillis() + settings.drainMs;
+        long missing;
+        do {
+            missing = missing(accepted, cluster, tracker);
+            if (missing == 0) break;
+            Thread.sleep(200);
+        } while (System.currentTimeMillis() < deadline);
+
+        long expected = 0;
+        List<Long> latencies = new ArrayList<>();
+        for (Sent s : accepted) {
+            for (String node : s.targets) {
+                if (!cluster.node(node).isUp()) continue;
+                expected++;
+                Long at = tracker.arrival(s.id, node);
+                if (at != null && !node.equals(s.entry)) latencies.add(at - s.sentAt);
+            }
+        }
+        long[] nanos = new long[latencies.size()];
+        for (int i = 0; i < nanos.length; i++) nanos[i] = latencies.get(i);
+        LoadReport report = new LoadReport(scenario, settings.messages, rejected.get(), accepted.size() / seconds,
+                expected, missing, nanos);
+        System.out.println(report);
+        return report;
+    }
+
+    private static long missing(Iterable<Sent> accepted, LocalCluster cluster, DeliveryTracker tracker) {
+        long missing = 0;
+        for (Sent s : accepted) {
+            for (String node : s.targets) {
+                if (cluster.node(node).isUp() && tracker.arrival(s.id, node) == null) missing++;
+            }
+        }
+        return missing;
+    }
+
+    private Sent send(LocalCluster cluster, int i, double broadcastRatio) {
+        List<LocalCluster.Node> live = cluster.liveNodes();
+        if (live.isEmpty()) return null;
+        LocalCluster.Node entry = live.get(i % live.size());
+        List<String> targets = new ArrayList<>();
+        String receiver;
+        if (live.size() == 1 || ThreadLocalRandom.current().nextDouble() < broadcastRatio) {
+            receiver = "BROADCAST";
+            for (LocalCluster.Node n : live) targets.add(n.id);
+        } else {
+            LocalCluster.Node to;
+            do {
+                to = live.get(ThreadLocalRandom.current().nextInt(live.size()));
+            } while (to == entry);
+            receiver = to.id;
+            targets.add(entry.id);
+            targets.add(to.id);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        String id = UUID.randomUUID().toString();
+        body.put("id", id);
+        body.put("sender", "load-" + entry.id);
+        body.put("receiver", receiver);
+        body.put("payload", "load message " + i);
+        long sentAt = System.nanoTime();
+        try {
+            HttpResponse<String> resp = http.send(HttpRequest.newBuilder(URI.create(entry.url() + "/api/messages/send"))
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(body)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            return resp.statusCode() / 100 == 2 ? new Sent(id, entry.id, targets, sentAt) : null;
+        } catch (Exception e) {
+            // the entry node went down under us
+            return null;
+        }
+    }
+
+    private static void pace(long start, int i, int rate) {
+        long due = start + (long) (i * 1e9 / rate);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.dms.tests.load;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Load and failure scenarios against an in-process cluster of {@code load.nodes} servers. Each
+ * prints a {@link LoadReport}. Run with {@code mvn -pl tests -am test -Pload}; the {@code load.*}
+ * properties ({@code messages}, {@code concurrency}, {@code broadcast-ratio}, {@code rate},
+ * {@code drain-ms}) size the workload.
+ */
+@EnabledIfSystemProperty(named = "load.enabled", matches = "true")
+class LoadHarnessTest {
+    private static final int NODES = Integer.getInteger("load.nodes", 3);
+
+    private final LoadGenerator generator = new LoadGenerator();
+    private final LoadGenerator.Settings settings = new LoadGenerator.Settings();
+    private LocalCluster cluster;
+    private DeliveryTracker tracker;
+
+    @BeforeEach
+    void start() throws Exception {
+        cluster = new LocalCluster(NODES, Collections.emptyList());
+        tracker = new DeliveryTracker();
+        for (LocalCluster.Node n : cluster.nodes()) tracker.track(n);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        tracker.close();
+        cluster.close();
+    }
+
+    @Test
+    void steadyMix() throws Exception {
+        LoadReport r = generator.run("steady", cluster, tracker, settings, Collections.emptyMap());
+        assertEquals(0, r.rejected);
+        assertEquals(0, r.lost);
+    }
+
+    // a node leaves a third of the way in and rejoins at two thirds; it must catch up on what it missed
+    @Test
+    void nodeStoppedAndRestarted() throws Exception {
+        List<LocalCluster.Node> nodes = cluster.nodes();
+        String victim = nodes.get(nodes.size() - 1).id;
+        Map<Integer, LoadGenerator.Action> actions = new HashMap<>();
+        actions.put(settings.messages / 3, () -> cluster.stop(victim));
+        actions.put(2 * settings.messages / 3, () -> restart(victim));
+        LoadReport r = generator.run("node-restart", cluster, tracker, settings, actions);
+        assertEquals(0, r.lost);
+    }
+
+    // quorum enforcement off and on again mid-run must not lose anything
+    @Test
+    void partitionModeToggled() throws Exception {
+        Map<Integer, LoadGenerator.Action> actions = new HashMap<>();
+        actions.put(settings.messages / 3, () -> cluster.setPartitionMode(true));
+        actions.put(2 * settings.messages / 3, () -> cluster.setPartitionMode(false));
+        LoadReport r = generator.run("partition-mode", cluster, tracker, settings, actions);
+        assertEquals(0, r.rejected);
+        assertEquals(0, r.lost);
+    }
+
+    // the leader leaves, another node takes over, and the old leader rejoins as a follower
+    @Test
+    void leaderChange() throws Exception {
+        String leader = cluster.leader();
+        String[] successor = new String[1];
+        Map<Integer, LoadGenerator.Action> actions = new HashMap<>();
+        actions.put(settings.messages / 3, () -> {
+            cluster.stop(leader);
+            successor[0] = awaitLeaderOtherThan(leader);
+        });
+        actions.put(2 * settings.messages / 3, () -> restart(leader));
+        LoadReport r = generator.run("leader-change", cluster, tracker, settings, actions);
+        assertNotEquals(leader, successor[0]);
+        assertEquals(0, r.lost);
+    }
+
+    private void restart(String id) throws Exception {
+        cluster.start(id);
+        cluster.awaitMembership();
+        tracker.track(cluster.node(id));
+    }
+
+    private String awaitLeaderOtherThan(String old) throws Exception {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            String leader = cluster.leader();
+            if (!leader.isEmpty() && !leader.equals(old)) return leader;
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("no new leader after " + old + " left");
+    }
+}
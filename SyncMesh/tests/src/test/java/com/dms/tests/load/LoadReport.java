@@ -0,0 +1,44 @@
+package com.dms.tests.load;
+
+import java.util.Arrays;
+
+/** Outcome of one load run. Latencies are in milliseconds, from send to arrival on a replica. */
+class LoadReport {
+    final String scenario;
+    final int sent;
+    final int rejected;
+    final double throughput;
+    final long expectedDeliveries;
+    final long lost;
+    final double p50;
+    final double p99;
+    final double p999;
+    final double max;
+
+    LoadReport(String scenario, int sent, int rejected, double throughput, long expectedDeliveries, long lost, long[] latenciesNanos) {
+        this.scenario = scenario;
+        this.sent = sent;
+        this.rejected = rejected;
+        this.throughput = throughput;
+        this.expectedDeliveries = expectedDeliveries;
+        this.lost = lost;
+        long[] sorted = latenciesNanos.clone();
+        Arrays.sort(sorted);
+        this.p50 = percentile(sorted, 0.50);
+        this.p99 = percentile(sorted, 0.99);
+        this.p999 = percentile(sorted, 0.999);
+        this.max = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s] sent=%d rejected=%d throughput=%.1f msg/s replicas=%d lost=%d latency p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms",
+                scenario, sent, rejected, throughput, expectedDeliveries, lost, p50, p99, p999, max);
+    }
+}
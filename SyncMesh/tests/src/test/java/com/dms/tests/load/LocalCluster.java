@@ -0,0 +1,137 @@
+package com.dms.tests.load;
+
+import com.dms.server.ServerApplication;
+import org.apache.curator.test.TestingServer;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An in-process cluster: a curator-test {@link TestingServer} and N {@link ServerApplication}
+ * contexts on free local ports, each with its own log directory. Nodes can be stopped and started
+ * again on the same port and directory, so they rejoin with their stored messages.
+ */
+class LocalCluster implements AutoCloseable {
+    private final TestingServer zk;
+    private final Path dataDir;
+    private final List<String> extraArgs;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    static final class Node {
+        final String id;
+        final int port;
+        volatile ConfigurableApplicationContext context;
+
+        Node(String id, int port) {
+            this.id = id;
+            this.port = port;
+        }
+
+        String url() { return "http://localhost:" + port; }
+
+        boolean isUp() { return context != null && context.isActive(); }
+    }
+
+    LocalCluster(int size, List<String> extraArgs) throws Exception {
+        this.zk = new TestingServer(true);
+        this.dataDir = Files.createTempDirectory("syncmesh-load");
+        this.extraArgs = new ArrayList<>(extraArgs);
+        for (int i = 0; i < size; i++) {
+            int port = freePort();
+            Node n = new Node("server-" + port, port);
+            nodes.put(n.id, n);
+            start(n.id);
+        }
+        awaitMembership();
+    }
+
+    List<Node> nodes() { return new ArrayList<>(nodes.values()); }
+
+    List<Node> liveNodes() {
+        List<Node> out = new ArrayList<>();
+        for (Node n : nodes.values()) if (n.isUp()) out.add(n);
+        return out;
+    }
+
+    Node node(String id) { return nodes.get(id); }
+
+    void start(String id) {
+        Node n = nodes.get(id);
+        List<String> args = new ArrayList<>();
+        args.add("--server.port=" + n.port);
+        args.add("--node.id=" + n.id);
+        args.add("--zookeeper.connect=" + zk.getConnectString());
+        args.add("--storage.dir=" + dataDir.resolve(n.id));
+        args.addAll(extraArgs);
+        n.context = new SpringApplicationBuilder(ServerApplication.class).run(args.toArray(new String[0]));
+    }
+
+    // a clean shutdown: the node's ZooKeeper session closes and its peers see it leave
+    void stop(String id) {
+        Node n = nodes.get(id);
+        if (n.context != null) n.context.close();
+        n.context = null;
+    }
+
+    String get(Node n, String path) throws IOException, InterruptedException {
+        HttpResponse<String> resp = http.send(HttpRequest.newBuilder(URI.create(n.url() + path))
+                .timeout(Duration.ofSeconds(5)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        return resp.body();
+    }
+
+    String leader() throws IOException, InterruptedException {
+        return get(liveNodes().get(0), "/admin/leader").replace("\"", "").trim();
+    }
+
+    void setPartitionMode(boolean enabled) throws IOException, InterruptedException {
+        for (Node n : liveNodes()) get(n, "/admin/partition/" + (enabled ? "enable" : "disable"));
+    }
+
+    /** Waits until every live node lists every other live node as a replica. */
+    void awaitMembership() throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean ready = true;
+            for (Node n : liveNodes()) {
+                String replicas = get(n, "/admin/replicas");
+                for (Node other : liveNodes()) {
+                    if (other != n && !replicas.contains(":" + other.port)) ready = false;
+                }
+            }
+            if (ready) return;
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("cluster did not converge on its membership");
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Node n : nodes.values()) stop(n.id);
+        zk.close();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}